@@ -0,0 +1,231 @@
+/*
+ * Copyright 2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.amazonaws.transcribestreaming.benchmark;
+
+import com.amazonaws.transcribestreaming.AudioStreamPublisher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import software.amazon.awssdk.services.transcribestreaming.model.AudioEvent;
+import software.amazon.awssdk.services.transcribestreaming.model.AudioStream;
+
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the path from an audio InputStream through AudioStreamPublisher and ByteToAudioEventSubscription to a
+ * subscriber, with an in-process subscriber standing in for the SDK. Run with "-prof gc" to see the allocation rate
+ * per operation alongside throughput.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class AudioIngestBenchmark {
+
+    /**
+     * One minute of 16 kHz 16-bit mono audio
+     */
+    private static final long STREAM_BYTES = 16_000 * 2 * 60;
+    private static final int REQUEST_BATCH = 16;
+
+    @State(Scope.Benchmark)
+    public static class StreamState {
+        @Param({"1024", "4096", "16384"})
+        public int chunkSizeInBytes;
+
+        @Param({"false", "true"})
+        public boolean pooled;
+
+        @Param({"1", "16", "128"})
+        public int streams;
+    }
+
+    /**
+     * Stream one minute of audio on each of the configured number of concurrent streams, until all complete
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public long publishStreams(StreamState state) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(state.streams);
+        CountingSubscriber[] subscribers = new CountingSubscriber[state.streams];
+        for (int i = 0; i < state.streams; i++) {
+            AudioStreamPublisher publisher = new AudioStreamPublisher(new SyntheticAudioInputStream(STREAM_BYTES));
+            publisher.setChunkSizeInBytes(state.chunkSizeInBytes);
+            if (state.pooled) {
+                publisher.setBufferPooling(REQUEST_BATCH, false);
+            }
+            subscribers[i] = new CountingSubscriber(done);
+            publisher.subscribe(subscribers[i]);
+        }
+        done.await();
+        long bytes = 0;
+        for (CountingSubscriber subscriber : subscribers) {
+            bytes += subscriber.bytes;
+        }
+        return bytes;
+    }
+
+    @State(Scope.Thread)
+    public static class LatencyState {
+        @Param({"1024", "4096", "16384"})
+        public int chunkSizeInBytes;
+
+        @Param({"false", "true"})
+        public boolean pooled;
+
+        HandOffSubscriber subscriber;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            AudioStreamPublisher publisher = new AudioStreamPublisher(new SyntheticAudioInputStream(Long.MAX_VALUE));
+            publisher.setChunkSizeInBytes(chunkSizeInBytes);
+            if (pooled) {
+                publisher.setBufferPooling(2, false);
+            }
+            subscriber = new HandOffSubscriber();
+            publisher.subscribe(subscriber);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            subscriber.subscription.cancel();
+        }
+    }
+
+    /**
+     * Time from requesting one chunk to receiving it
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public AudioStream chunkLatency(LatencyState state) throws InterruptedException {
+        state.subscriber.subscription.request(1);
+        return state.subscriber.events.take();
+    }
+
+    /**
+     * Requests events in batches, like the SDK, and counts the bytes it receives
+     */
+    private static class CountingSubscriber implements Subscriber<AudioStream> {
+        private final CountDownLatch done;
+        private Subscription subscription;
+        private long received = 0;
+        private long bytes = 0;
+
+        private CountingSubscriber(CountDownLatch done) {
+            this.done = done;
+        }
+
+        @Override
+        public void onSubscribe(Subscription s) {
+            subscription = s;
+            s.request(REQUEST_BATCH);
+        }
+
+        @Override
+        public void onNext(AudioStream event) {
+            bytes += ((AudioEvent) event).audioChunk().asByteBuffer().remaining();
+            if (++received % REQUEST_BATCH == 0) {
+                subscription.request(REQUEST_BATCH);
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            done.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            done.countDown();
+        }
+    }
+
+    /**
+     * Hands every event to the benchmark thread
+     */
+    private static class HandOffSubscriber implements Subscriber<AudioStream> {
+        private final BlockingQueue<AudioStream> events = new ArrayBlockingQueue<>(1);
+        private volatile Subscription subscription;
+
+        @Override
+        public void onSubscribe(Subscription s) {
+            subscription = s;
+        }
+
+        @Override
+        public void onNext(AudioStream event) {
+            events.offer(event);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+        }
+
+        @Override
+        public void onComplete() {
+        }
+    }
+
+    /**
+     * Endless or bounded source of audio bytes that costs nothing to read, so the benchmark measures the pipeline
+     * rather than the disk
+     */
+    private static class SyntheticAudioInputStream extends InputStream {
+        private long remaining;
+
+        private SyntheticAudioInputStream(long length) {
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() {
+            if (remaining <= 0) {
+                return -1;
+            }
+            remaining--;
+            return 0;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int count = (int) Math.min(len, remaining);
+            remaining -= count;
+            return count;
+        }
+    }
+}
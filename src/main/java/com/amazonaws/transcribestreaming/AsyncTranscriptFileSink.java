@@ -0,0 +1,349 @@
+/*
+ * Copyright 2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.amazonaws.transcribestreaming;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes final segments to a file in a TranscriptFileFormat on a writer thread of its own, so the thread delivering
+ * results never waits on the disk. write() only puts the segment on a bounded queue. The writer thread takes
+ * whatever has queued up, up to MAX_BATCH segments, formats it and writes it with one call, so a burst of results
+ * costs one write rather than one per segment.
+ *
+ * The queue bounds the memory a slow disk can take. If it is full the segment is dropped and counted rather than
+ * blocking the caller; at the default capacity that takes minutes of a stalled disk. A segment dropped this way, or
+ * written after close(), makes the future returned by close() complete exceptionally, so a transcript with missing
+ * segments is never mistaken for a complete one.
+ *
+ * How often the file is forced to the disk is set by the FsyncPolicy: never, leaving it to the OS, after every
+ * batch, or at most once per interval. The file can be rotated once it reaches a size, continuing in
+ * &lt;name&gt;.1.&lt;ext&gt;, &lt;name&gt;.2.&lt;ext&gt; and so on, each starting with the header of the format and
+ * numbering its cues from 1.
+ */
+public class AsyncTranscriptFileSink implements TranscriptSink {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 4096;
+    public static final int MAX_BATCH = 256;
+    public static final long DEFAULT_FSYNC_INTERVAL_MILLIS = 1000;
+    private static final long POLL_MILLIS = 100;
+
+    /**
+     * When to force written segments to the disk
+     */
+    public enum FsyncPolicy {
+        /** Leave it to the OS, except when the sink is closed */
+        NEVER,
+        /** After every batch, so a segment is on the disk once the writer thread has handled it */
+        EVERY_BATCH,
+        /** At most once per fsync interval, bounding both the data lost on a power failure and the cost */
+        INTERVAL
+    }
+
+    private final Path path;
+    private final TranscriptFileFormat format;
+    private final BlockingQueue<TranscriptUpdate.Segment> queue;
+    private final CompletableFuture<Void> closed = new CompletableFuture<>();
+    private final AtomicLong droppedSegments = new AtomicLong(0);
+    private final Thread writerThread;
+    private volatile boolean closing = false;
+    private volatile FsyncPolicy fsyncPolicy = FsyncPolicy.INTERVAL;
+    private volatile long fsyncIntervalMillis = DEFAULT_FSYNC_INTERVAL_MILLIS;
+    private volatile long maxFileBytes = Long.MAX_VALUE;
+    private volatile long writtenSegments = 0;
+
+    //Only used by the writer thread once it is started
+    private FileChannel channel;
+    private int fileIndex = 0;
+    private long fileBytes = 0;
+    private long fileSequence = 0;
+    private boolean unsynced = false;
+    private long lastFsyncNanos = System.nanoTime();
+
+    /**
+     * Create the file, replacing any file at the path, and start the writer thread
+     * @param path File to write
+     * @param format Format to write the segments in
+     */
+    public AsyncTranscriptFileSink(Path path, TranscriptFileFormat format) throws IOException {
+        this(path, format, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Create the file, replacing any file at the path, and start the writer thread
+     * @param path File to write
+     * @param format Format to write the segments in
+     * @param queueCapacity Number of segments that can be waiting to be written before write() has to wait
+     */
+    public AsyncTranscriptFileSink(Path path, TranscriptFileFormat format, int queueCapacity) throws IOException {
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("Queue capacity must be positive");
+        }
+        this.path = path;
+        this.format = format;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        openFile(path);
+        this.writerThread = new Thread(this::run, "transcript-sink-" + path.getFileName());
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * @param fsyncPolicy When to force written segments to the disk, INTERVAL by default
+     */
+    public void setFsyncPolicy(FsyncPolicy fsyncPolicy) {
+        this.fsyncPolicy = fsyncPolicy;
+    }
+
+    public FsyncPolicy getFsyncPolicy() {
+        return fsyncPolicy;
+    }
+
+    /**
+     * @param fsyncIntervalMillis Shortest time between two forces to the disk with the INTERVAL policy
+     */
+    public void setFsyncIntervalMillis(long fsyncIntervalMillis) {
+        if (fsyncIntervalMillis < 0) {
+            throw new IllegalArgumentException("Fsync interval cannot be negative");
+        }
+        this.fsyncIntervalMillis = fsyncIntervalMillis;
+    }
+
+    public long getFsyncIntervalMillis() {
+        return fsyncIntervalMillis;
+    }
+
+    /**
+     * Rotate to a new file once a segment would take the current one past a size. A single segment larger than the
+     * size still gets a file of its own.
+     * @param maxFileBytes Size in bytes, Long.MAX_VALUE to never rotate
+     */
+    public void setMaxFileBytes(long maxFileBytes) {
+        if (maxFileBytes <= 0) {
+            throw new IllegalArgumentException("Max file size must be positive");
+        }
+        this.maxFileBytes = maxFileBytes;
+    }
+
+    public long getMaxFileBytes() {
+        return maxFileBytes;
+    }
+
+    @Override
+    public void write(TranscriptUpdate.Segment segment) {
+        if (closing || !queue.offer(segment)) {
+            if (droppedSegments.incrementAndGet() == 1) {
+                System.out.println("Transcript sink for " + path + " cannot keep up, dropping segments");
+            }
+        }
+    }
+
+    /**
+     * Queue segments, waiting for room for as long as the writer thread is running. Used for segments that must not
+     * be dropped whatever the state of the queue, such as those recovered from an earlier run. Unlike write() this
+     * blocks, so it must not be called from the thread delivering results.
+     * @param segments Segments to write, in order
+     * @throws IOException if the sink was closed, or failed, before all segments were queued
+     */
+    public void writeAll(List<TranscriptUpdate.Segment> segments) throws IOException, InterruptedException {
+        for (TranscriptUpdate.Segment segment : segments) {
+            do {
+                if (closing) {
+                    throw new IOException("Transcript sink for " + path + " is closed");
+                }
+            } while (!queue.offer(segment, POLL_MILLIS, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    /**
+     * Stop accepting segments and write out those queued
+     * @return Future completed once the file is closed, exceptionally if it could not be written or segments were
+     * dropped
+     */
+    @Override
+    public CompletableFuture<Void> close() {
+        closing = true;
+        return closed;
+    }
+
+    /**
+     * @return Number of segments written to the file so far
+     */
+    public long getWrittenSegments() {
+        return writtenSegments;
+    }
+
+    /**
+     * @return Number of segments dropped because the queue was full or the sink was closed
+     */
+    public long getDroppedSegments() {
+        return droppedSegments.get();
+    }
+
+    /**
+     * @return Number of segments waiting to be written
+     */
+    public int getQueuedSegments() {
+        return queue.size();
+    }
+
+    private void run() {
+        List<TranscriptUpdate.Segment> batch = new ArrayList<>(MAX_BATCH);
+        try {
+            while (true) {
+                TranscriptUpdate.Segment first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (closing && queue.isEmpty()) {
+                        break;
+                    }
+                    if (fsyncPolicy == FsyncPolicy.INTERVAL) {
+                        fsyncIfDue();
+                    }
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH - 1);
+                writeBatch(batch);
+                batch.clear();
+                if (fsyncPolicy == FsyncPolicy.EVERY_BATCH) {
+                    fsync();
+                } else if (fsyncPolicy == FsyncPolicy.INTERVAL) {
+                    fsyncIfDue();
+                }
+            }
+            fsync();
+            channel.close();
+            long dropped = droppedSegments.get();
+            if (dropped > 0) {
+                closed.completeExceptionally(new IOException(dropped + " segments were dropped from " + path));
+            } else {
+                closed.complete(null);
+            }
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            closing = true;
+            System.out.println("Error writing transcript to " + path + ": " + e);
+            try {
+                channel.close();
+            } catch (IOException closeException) {
+                e.addSuppressed(closeException);
+            }
+            queue.clear();
+            closed.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Format a batch and write it with as few calls as rotation allows
+     */
+    private void writeBatch(List<TranscriptUpdate.Segment> batch) throws IOException {
+        StringBuilder pending = new StringBuilder();
+        long pendingBytes = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            String text = format.format(batch.get(i), fileSequence + 1);
+            long textBytes = utf8Length(text);
+            if (fileSequence > 0 && fileBytes + pendingBytes + textBytes > maxFileBytes) {
+                write(pending);
+                pending.setLength(0);
+                pendingBytes = 0;
+                rotate();
+                text = format.format(batch.get(i), 1);
+                textBytes = utf8Length(text);
+            }
+            pending.append(text);
+            pendingBytes += textBytes;
+            fileSequence++;
+        }
+        write(pending);
+        writtenSegments += batch.size();
+    }
+
+    private void write(CharSequence text) throws IOException {
+        if (text.length() == 0) {
+            return;
+        }
+        ByteBuffer bytes = StandardCharsets.UTF_8.encode(text.toString());
+        fileBytes += bytes.remaining();
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+        unsynced = true;
+    }
+
+    private void rotate() throws IOException {
+        fsync();
+        channel.close();
+        fileIndex++;
+        String name = path.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String rotatedName = dot > 0
+                ? name.substring(0, dot) + "." + fileIndex + name.substring(dot)
+                : name + "." + fileIndex;
+        openFile(path.resolveSibling(rotatedName));
+    }
+
+    private void openFile(Path filePath) throws IOException {
+        channel = FileChannel.open(filePath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        fileBytes = 0;
+        fileSequence = 0;
+        write(format.getHeader());
+    }
+
+    private void fsyncIfDue() throws IOException {
+        if (unsynced && System.nanoTime() - lastFsyncNanos >= TimeUnit.MILLISECONDS.toNanos(fsyncIntervalMillis)) {
+            fsync();
+        }
+    }
+
+    private void fsync() throws IOException {
+        if (unsynced) {
+            channel.force(false);
+            unsynced = false;
+        }
+        lastFsyncNanos = System.nanoTime();
+    }
+
+    private static long utf8Length(String text) {
+        long length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
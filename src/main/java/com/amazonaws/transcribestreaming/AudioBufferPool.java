@@ -0,0 +1,118 @@
+/*
+ * Copyright 2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.amazonaws.transcribestreaming;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed size pool of equally sized chunk buffers, used by ByteToAudioEventSubscription to read audio without
+ * allocating a new array for every chunk. Buffers are handed out with acquire() and must be handed back with
+ * release() once the AudioEvent built from them no longer references their contents.
+ *
+ * When the pool is empty a new buffer is allocated and counted as a miss; buffers released into a full pool are
+ * simply dropped, so the pool never holds more than its capacity.
+ */
+public class AudioBufferPool {
+
+    private final BlockingQueue<ByteBuffer> buffers;
+    private final int bufferSize;
+    private final boolean direct;
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+
+    /**
+     * Create a pool and pre-allocate all of its buffers
+     * @param capacity Number of buffers held by the pool
+     * @param bufferSize Size of each buffer in bytes
+     * @param direct True to use direct (off-heap) buffers, false for heap buffers
+     */
+    public AudioBufferPool(int capacity, int bufferSize, boolean direct) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Pool capacity must be positive");
+        }
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("Buffer size must be positive");
+        }
+        this.buffers = new ArrayBlockingQueue<>(capacity);
+        this.bufferSize = bufferSize;
+        this.direct = direct;
+        for (int i = 0; i < capacity; i++) {
+            buffers.offer(allocate());
+        }
+    }
+
+    /**
+     * Take a cleared buffer from the pool, allocating a new one if the pool is empty.
+     * @return buffer of getBufferSize() bytes, ready for writing
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            misses.incrementAndGet();
+            return allocate();
+        }
+        hits.incrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Hand a buffer back to the pool. Buffers of the wrong size or type are ignored.
+     * @param buffer buffer previously returned by acquire()
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer != null && buffer.capacity() == bufferSize && buffer.isDirect() == direct) {
+            buffers.offer(buffer);
+        }
+    }
+
+    /**
+     * @return Size of each buffer in bytes
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return True if this pool hands out direct buffers
+     */
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * @return Number of acquire() calls served from the pool
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return Number of acquire() calls that had to allocate a new buffer
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private ByteBuffer allocate() {
+        return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.amazonaws.transcribestreaming;
+
+import software.amazon.awssdk.services.transcribestreaming.model.MediaEncoding;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Builds the stages between a WAV file and the AudioEvents sent for it. Audio that is not already 16-bit mono PCM at
+ * or below the maximum sample rate goes through a PcmConvertingInputStream, which keeps both channels of a stereo
+ * file instead of downmixing it when channel identification is on, long silences are cut by a
+ * SilenceSkippingInputStream if enabled, and the result is compressed by a FlacEncodingInputStream if FLAC is
+ * chosen. Audio that needs none of these is sent straight from the memory-mapped file.
+ *
+ * Requests must be made with the sample rate and channel count of the audio actually sent, from getFormat, and the
+ * media encoding from getMediaEncoding. Result times are mapped back with mapTimes when silences are cut.
+ */
+public class AudioFilePipeline {
+
+    public static final int MAX_IDENTIFIED_CHANNELS = 2;
+
+    private final MappedWavFile wavFile;
+    private int maxSampleRate = PcmConvertingInputStream.DEFAULT_SAMPLE_RATE;
+    private int maxSilenceMillis = -1;
+    private MediaEncoding mediaEncoding = MediaEncoding.PCM;
+    private double pacingSpeed = 0;
+    private boolean channelIdentification = false;
+    private AudioFormat format;
+    private AudioTimeMap timeMap;
+    private FlacEncodingInputStream encoder;
+
+    /**
+     * @param wavFile File to send, closed if a publisher cannot be created for it
+     */
+    public AudioFilePipeline(MappedWavFile wavFile) {
+        this.wavFile = wavFile;
+        this.format = wavFile.getFormat();
+    }
+
+    /**
+     * Set the highest sample rate to send at. Audio above it is resampled down to it.
+     * @param maxSampleRate Sample rate in Hertz, e.g. 8000 or 16000
+     */
+    public void setMaxSampleRate(int maxSampleRate) {
+        if (maxSampleRate <= 0) {
+            throw new IllegalArgumentException("Sample rate must be positive");
+        }
+        this.maxSampleRate = maxSampleRate;
+    }
+
+    /**
+     * Cut silences longer than the given length out of the audio before it is sent
+     * @param maxSilenceMillis Milliseconds of each silence to keep, or a negative number to send all audio
+     */
+    public void setMaxSilenceMillis(int maxSilenceMillis) {
+        this.maxSilenceMillis = maxSilenceMillis;
+    }
+
+    /**
+     * Set the encoding the audio is sent in
+     * @param mediaEncoding PCM or FLAC
+     */
+    public void setMediaEncoding(MediaEncoding mediaEncoding) {
+        if (mediaEncoding != MediaEncoding.PCM && mediaEncoding != MediaEncoding.FLAC) {
+            throw new IllegalArgumentException("Cannot encode audio as " + mediaEncoding + ", use PCM or FLAC");
+        }
+        this.mediaEncoding = mediaEncoding;
+    }
+
+    /**
+     * Send the audio no faster than the given speed relative to real time
+     * @param pacingSpeed Multiple of real time to send at, or 0 to send as fast as possible
+     */
+    public void setPacingSpeed(double pacingSpeed) {
+        if (pacingSpeed < 0) {
+            throw new IllegalArgumentException("Pacing speed must not be negative");
+        }
+        this.pacingSpeed = pacingSpeed;
+    }
+
+    /**
+     * Send the channels of a stereo file separately, so the service transcribes each on its own, rather than
+     * downmixing them. Mono files are sent as they are.
+     * @param channelIdentification True to keep the channels of stereo files
+     */
+    public void setChannelIdentification(boolean channelIdentification) {
+        this.channelIdentification = channelIdentification;
+    }
+
+    /**
+     * Create a publisher for the file with the stages that are needed
+     * @return publisher of the audio to send
+     * @throws IOException if the format cannot be converted, after closing the file
+     */
+    public AudioStreamPublisher createPublisher() throws IOException {
+        int channels = channelIdentification ? wavFile.getFormat().getChannels() : 1;
+        if (channels > MAX_IDENTIFIED_CHANNELS) {
+            wavFile.close();
+            throw new IOException("Channel identification supports at most " + MAX_IDENTIFIED_CHANNELS
+                    + " channels, got " + wavFile.getFormat());
+        }
+        boolean convert = PcmConvertingInputStream.needsConversion(wavFile.getFormat(), maxSampleRate, channels);
+        if (!convert && maxSilenceMillis < 0 && mediaEncoding == MediaEncoding.PCM) {
+            AudioStreamPublisher publisher = new AudioStreamPublisher(wavFile);
+            publisher.setPacing(format, pacingSpeed);
+            return publisher;
+        }
+        try {
+            InputStream audio = wavFile.asInputStream();
+            if (convert) {
+                int sampleRate = (int) Math.min(wavFile.getFormat().getSampleRate(), maxSampleRate);
+                PcmConvertingInputStream converting =
+                        new PcmConvertingInputStream(audio, wavFile.getFormat(), sampleRate, channels);
+                format = converting.getFormat();
+                audio = converting;
+            }
+            if (maxSilenceMillis >= 0) {
+                SilenceSkippingInputStream silenceSkipping = new SilenceSkippingInputStream(audio, format);
+                silenceSkipping.setMaxSilenceMillis(maxSilenceMillis);
+                timeMap = silenceSkipping.getTimeMap();
+                audio = silenceSkipping;
+            }
+            if (mediaEncoding != MediaEncoding.FLAC) {
+                AudioStreamPublisher publisher = new AudioStreamPublisher(audio);
+                publisher.setPacing(format, pacingSpeed);
+                return publisher;
+            }
+            int chunkSizeInBytes = ByteToAudioEventSubscription.DEFAULT_CHUNK_SIZE_IN_BYTES;
+            int blockSize = FlacEncodingInputStream.blockSizeFor(format, chunkSizeInBytes);
+            encoder = new FlacEncodingInputStream(audio, format, blockSize);
+            AudioStreamPublisher publisher = new AudioStreamPublisher(encoder);
+            publisher.setChunkSizeInBytes(chunkSizeInBytes);
+            //Every read returns one frame, and so one block of audio, and takes a whole chunk from the pacer
+            publisher.setPacingBytesPerSecond(chunkSizeInBytes * format.getSampleRate() / blockSize * pacingSpeed);
+            return publisher;
+        } catch (IllegalArgumentException e) {
+            wavFile.close();
+            throw new IOException("Cannot stream " + wavFile.getFormat(), e);
+        }
+    }
+
+    /**
+     * @return Format of the PCM audio sent, or encoded to FLAC, which the request sample rate and number of channels
+     * must use
+     */
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * @return Encoding the audio is sent in, which the request must use
+     */
+    public MediaEncoding getMediaEncoding() {
+        return mediaEncoding;
+    }
+
+    /**
+     * Get the FLAC encoder, to read how many bytes it has taken in and written out
+     * @return encoder, or null if the audio is sent as PCM
+     */
+    public FlacEncodingInputStream getEncoder() {
+        return encoder;
+    }
+
+    /**
+     * Map result times back onto the original audio if silences are cut
+     * @param behavior Behavior to pass results on to
+     * @return the behavior, wrapped if result times need mapping
+     */
+    public StreamTranscriptionBehavior mapTimes(StreamTranscriptionBehavior behavior) {
+        return timeMap == null ? behavior : new TimeMappingTranscriptionBehavior(behavior, timeMap);
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.amazonaws.transcribestreaming;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the blocking audio reads of ByteToAudioEventSubscription. One scheduler is shared by many subscriptions, so
+ * the number of reader threads no longer grows with the number of open streams.
+ *
+ * The default scheduler uses virtual threads when the JVM running the application supports them, and otherwise a
+ * fixed pool of daemon threads, four per available processor unless setDefaultPoolSize is called first. Reads
+ * beyond the size of the pool queue until a thread is free. A fixed pool of any size can also be created and
+ * injected.
+ *
+ * Delayed work, such as resuming a paced stream, goes through a single timer thread shared by all schedulers. The
+ * timer only hands tasks back to the reader threads, so it never runs a read itself.
+ */
+public class AudioReaderScheduler implements AutoCloseable {
+
+    private static final int DEFAULT_THREADS_PER_PROCESSOR = 4;
+    private static volatile AudioReaderScheduler defaultScheduler;
+    private static int defaultPoolSize = DEFAULT_THREADS_PER_PROCESSOR * Runtime.getRuntime().availableProcessors();
+    private static final ScheduledExecutorService TIMER =
+            Executors.newSingleThreadScheduledExecutor(daemonThreadFactory("audio-reader-timer-"));
+
+    private final ExecutorService executor;
+    private final boolean shared;
+    private final AtomicInteger activeReaders = new AtomicInteger(0);
+    private final AtomicInteger runningTasks = new AtomicInteger(0);
+
+    private AudioReaderScheduler(ExecutorService executor, boolean shared) {
+        this.executor = executor;
+        this.shared = shared;
+    }
+
+    /**
+     * Get the scheduler used by publishers that were not given one explicitly. It lives as long as the JVM and
+     * close() has no effect on it.
+     * @return the shared default scheduler
+     */
+    public static AudioReaderScheduler getDefault() {
+        AudioReaderScheduler scheduler = defaultScheduler;
+        if (scheduler == null) {
+            synchronized (AudioReaderScheduler.class) {
+                scheduler = defaultScheduler;
+                if (scheduler == null) {
+                    scheduler = new AudioReaderScheduler(newDefaultExecutor(), true);
+                    defaultScheduler = scheduler;
+                }
+            }
+        }
+        return scheduler;
+    }
+
+    /**
+     * Set the number of threads of the default scheduler when virtual threads are not available. Must be called
+     * before the default scheduler is first used.
+     * @param threads Number of worker threads
+     */
+    public static void setDefaultPoolSize(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Thread count must be positive");
+        }
+        synchronized (AudioReaderScheduler.class) {
+            if (defaultScheduler != null) {
+                throw new IllegalStateException("The default scheduler is already in use");
+            }
+            defaultPoolSize = threads;
+        }
+    }
+
+    /**
+     * Create a scheduler backed by a fixed number of worker threads. Reads beyond that number queue until a worker
+     * is free. The caller is responsible for closing it.
+     * @param threads Number of worker threads
+     * @return new scheduler
+     */
+    public static AudioReaderScheduler newFixedPool(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Thread count must be positive");
+        }
+        return new AudioReaderScheduler(
+                Executors.newFixedThreadPool(threads, daemonThreadFactory("audio-reader-")), false);
+    }
+
+    /**
+     * Create an executor that runs tasks submitted to it one at a time, in order, on this scheduler. Each
+     * subscription uses its own serial executor so that its reads and signals never overlap.
+     * @return serial executor
+     */
+    public Executor newSerialExecutor() {
+        return new SerialExecutor();
+    }
+
+    /**
+     * Run a short task after a delay on the shared timer thread. The task should only hand work off, for example to
+     * a serial executor, and never block.
+     * @param task Task to run
+     * @param delay Delay before running the task
+     * @param unit Unit of the delay
+     * @return Future that can be used to cancel the task
+     */
+    public ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        return TIMER.schedule(task, delay, unit);
+    }
+
+    /**
+     * Record that a subscription has started using this scheduler
+     */
+    void readerStarted() {
+        activeReaders.incrementAndGet();
+    }
+
+    /**
+     * Record that a subscription has reached a terminal state. Must be called once per readerStarted().
+     */
+    void readerFinished() {
+        activeReaders.decrementAndGet();
+    }
+
+    /**
+     * @return Number of subscriptions currently open on this scheduler
+     */
+    public int getActiveReaders() {
+        return activeReaders.get();
+    }
+
+    /**
+     * @return Number of read tasks currently executing
+     */
+    public int getRunningTasks() {
+        return runningTasks.get();
+    }
+
+    /**
+     * Shut down the worker threads of this scheduler. Does nothing for the default scheduler.
+     */
+    @Override
+    public void close() {
+        if (!shared) {
+            executor.shutdown();
+        }
+    }
+
+    private static ExecutorService newDefaultExecutor() {
+        try {
+            //Virtual threads are only available from Java 21, so look them up at runtime
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return Executors.newFixedThreadPool(defaultPoolSize, daemonThreadFactory("audio-reader-"));
+        }
+    }
+
+    private static ThreadFactory daemonThreadFactory(String namePrefix) {
+        AtomicInteger count = new AtomicInteger(0);
+        return r -> {
+            Thread thread = new Thread(r, namePrefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Executor that hands its tasks to the scheduler one at a time
+     */
+    private class SerialExecutor implements Executor {
+        private final Queue<Runnable> tasks = new ArrayDeque<>();
+        private Runnable active;
+
+        @Override
+        public synchronized void execute(Runnable task) {
+            tasks.add(() -> {
+                runningTasks.incrementAndGet();
+                try {
+                    task.run();
+                } finally {
+                    runningTasks.decrementAndGet();
+                    try {
+                        scheduleNext();
+                    } catch (RejectedExecutionException e) {
+                        //The scheduler was closed while this task ran, so the tasks queued behind it are dropped
+                    }
+                }
+            });
+            if (active == null) {
+                scheduleNext();
+            }
+        }
+
+        /**
+         * Hand the next task to the scheduler. If the scheduler has been closed, the queue is cleared so the
+         * executor is left idle rather than stuck on a task that will never run, and the rejection is rethrown.
+         */
+        private synchronized void scheduleNext() {
+            active = tasks.poll();
+            if (active != null) {
+                try {
+                    executor.execute(active);
+                } catch (RejectedExecutionException e) {
+                    active = null;
+                    tasks.clear();
+                    throw e;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.amazonaws.transcribestreaming;
+
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.services.transcribestreaming.model.AudioEvent;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * A fixed size ring of the most recently sent audio bytes, kept off-heap. When the ring is full the oldest audio is
+ * overwritten, so it always holds the tail of the stream, up to its capacity.
+ */
+public class AudioReplayBuffer {
+
+    private final ByteBuffer ring;
+    private final int frameSize;
+    private long totalBytesWritten = 0;
+
+    /**
+     * @param capacityInBytes Maximum number of bytes kept for replay
+     * @param frameSize Size in bytes of one audio frame. Replayed audio always starts on a frame boundary
+     */
+    public AudioReplayBuffer(int capacityInBytes, int frameSize) {
+        if (capacityInBytes <= 0 || frameSize <= 0) {
+            throw new IllegalArgumentException("Capacity and frame size must be positive");
+        }
+        this.ring = ByteBuffer.allocateDirect(capacityInBytes);
+        this.frameSize = frameSize;
+    }
+
+    /**
+     * Append audio to the ring, overwriting the oldest audio if needed. The position of the source is not changed.
+     * @param audio Audio bytes that have been sent to the service
+     */
+    public synchronized void write(ByteBuffer audio) {
+        ByteBuffer source = audio.duplicate();
+        int capacity = ring.capacity();
+        long writeOffset = totalBytesWritten;
+        totalBytesWritten += source.remaining();
+        if (source.remaining() > capacity) {
+            int skipped = source.remaining() - capacity;
+            source.position(source.position() + skipped);
+            writeOffset += skipped;
+        }
+        while (source.hasRemaining()) {
+            int index = (int) (writeOffset % capacity);
+            int count = Math.min(capacity - index, source.remaining());
+            ByteBuffer target = ring.duplicate();
+            target.clear().position(index);
+            ByteBuffer slice = source.duplicate();
+            slice.limit(slice.position() + count);
+            target.put(slice);
+            source.position(source.position() + count);
+            writeOffset += count;
+        }
+    }
+
+    /**
+     * @return Total number of bytes ever written, including those that have since been overwritten
+     */
+    public synchronized long getTotalBytesWritten() {
+        return totalBytesWritten;
+    }
+
+    /**
+     * Copy the audio currently held by the ring into AudioEvents
+     * @param chunkSizeInBytes Maximum size of each event
+     * @return Snapshot of the replayable audio, oldest first
+     */
+    public synchronized Snapshot snapshot(int chunkSizeInBytes) {
+        int available = (int) Math.min(totalBytesWritten, ring.capacity());
+        //Start on a frame boundary of the original stream, otherwise every replayed sample would be misaligned
+        long startOffset = totalBytesWritten - available;
+        int misalignment = (int) ((frameSize - startOffset % frameSize) % frameSize);
+        available -= misalignment;
+        startOffset += misalignment;
+
+        Queue<AudioEvent> events = new ArrayDeque<>();
+        int start = (int) (startOffset % ring.capacity());
+        int copied = 0;
+        while (copied < available) {
+            int index = (start + copied) % ring.capacity();
+            int count = Math.min(chunkSizeInBytes, Math.min(available - copied, ring.capacity() - index));
+            byte[] chunk = new byte[count];
+            ByteBuffer view = ring.duplicate();
+            view.clear().position(index);
+            view.get(chunk);
+            events.add(AudioEvent.builder().audioChunk(SdkBytes.fromByteArray(chunk)).build());
+            copied += count;
+        }
+        return new Snapshot(events, startOffset);
+    }
+
+    /**
+     * Audio copied out of the ring, with the position of its first byte in the original stream
+     */
+    public static class Snapshot {
+        private final Queue<AudioEvent> events;
+        private final long startOffsetInBytes;
+
+        private Snapshot(Queue<AudioEvent> events, long startOffsetInBytes) {
+            this.events = events;
+            this.startOffsetInBytes = startOffsetInBytes;
+        }
+
+        public Queue<AudioEvent> getEvents() {
+            return events;
+        }
+
+        public long getStartOffsetInBytes() {
+            return startOffsetInBytes;
+        }
+    }
+}
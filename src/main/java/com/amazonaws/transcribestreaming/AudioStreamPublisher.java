@@ -19,24 +19,314 @@ package com.amazonaws.transcribestreaming;
 
 import org.reactivestreams.Publisher;
 import org.reactivestreams.Subscriber;
+import software.amazon.awssdk.services.transcribestreaming.model.AudioEvent;
 import software.amazon.awssdk.services.transcribestreaming.model.AudioStream;
 
+import javax.sound.sampled.AudioFormat;
+import java.io.IOException;
 import java.io.InputStream;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * AudioStreamPublisher implements audio stream publisher.
  * AudioStreamPublisher emits audio stream asynchronously in a separate thread
+ *
+ * Chunk size and buffer pooling apply to every subscription made to this publisher. The buffer pool is shared by
+ * those subscriptions, so a retried stream keeps reusing the buffers of the previous attempt.
+ *
+ * Audio comes either from an InputStream or from a MappedWavFile, whose chunks are sliced straight out of the mapped
+ * file. Buffer pooling only applies to input streams.
+ *
+ * Reads are run on an AudioReaderScheduler, the shared default one unless another is injected.
+ *
+ * Each subscription reads a few chunks ahead of the subscriber's demand, so the network side never waits on a read.
+ * The prefetch window bounds how much audio is held in memory when the network falls behind.
+ *
+ * Only one subscription reads the audio at a time. A new subscription cancels the previous one if it is still open,
+ * waits for its reader to stop, and then sends the chunks the previous one had read ahead but not sent, so a retried
+ * stream continues exactly where the previous attempt's subscriber left off.
+ *
+ * A FlacEncodingInputStream is restarted for every subscription after the first, so a retried session receives a
+ * complete FLAC stream. Chunks read ahead of a restart belong to the old FLAC stream, so they are dropped and the
+ * encoder encodes their PCM again at the start of the new stream.
+ *
+ * Audio that can be read faster than real time, such as a file, can be paced so it reaches the service at the rate
+ * it would be spoken, or at a multiple of that rate.
  */
 public class AudioStreamPublisher implements Publisher<AudioStream> {
 
     private final InputStream inputStream;
+    private final MappedWavFile wavFile;
+    private int chunkSizeInBytes = ByteToAudioEventSubscription.DEFAULT_CHUNK_SIZE_IN_BYTES;
+    private int prefetch = ByteToAudioEventSubscription.DEFAULT_PREFETCH;
+    private int bufferPoolSize = 0;
+    private boolean directBuffers = false;
+    private AudioBufferPool bufferPool;
+    private AudioReaderScheduler readerScheduler = AudioReaderScheduler.getDefault();
+    private TranscribeStreamingMetrics metrics = TranscribeStreamingMetrics.getDefault();
+    private TranscriptLatencyTracker latencyTracker;
+    private double pacingBytesPerSecond = 0;
+    private final Queue<AudioEvent> unsent = new ConcurrentLinkedQueue<>();
+    private ByteToAudioEventSubscription currentSubscription;
+    private CompletableFuture<Void> readerStopped = CompletableFuture.completedFuture(null);
+    private long subscribed = 0;
 
     public AudioStreamPublisher(InputStream inputStream) {
         this.inputStream = inputStream;
+        this.wavFile = null;
+    }
+
+    /**
+     * @param wavFile Memory-mapped WAV file to stream the audio data of
+     */
+    public AudioStreamPublisher(MappedWavFile wavFile) {
+        this.inputStream = null;
+        this.wavFile = wavFile;
+    }
+
+    /**
+     * Get chunk size
+     * @return Maximum number of audio bytes sent per AudioEvent
+     */
+    public int getChunkSizeInBytes() {
+        return chunkSizeInBytes;
+    }
+
+    /**
+     * Set the maximum number of audio bytes sent per AudioEvent. Must be called before subscribing.
+     * @param chunkSizeInBytes chunk size in bytes
+     */
+    public void setChunkSizeInBytes(int chunkSizeInBytes) {
+        if (chunkSizeInBytes <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive");
+        }
+        this.chunkSizeInBytes = chunkSizeInBytes;
+    }
+
+    /**
+     * Get prefetch
+     * @return Maximum number of chunks read ahead of demand
+     */
+    public int getPrefetch() {
+        return prefetch;
+    }
+
+    /**
+     * Set how many chunks are read ahead of the subscriber's demand. Must be called before subscribing.
+     * @param prefetch Maximum number of chunks read ahead of demand
+     */
+    public void setPrefetch(int prefetch) {
+        if (prefetch <= 0) {
+            throw new IllegalArgumentException("Prefetch must be positive");
+        }
+        this.prefetch = prefetch;
+    }
+
+    /**
+     * Read audio into a fixed set of reusable buffers instead of allocating a new array per chunk. Must be called
+     * before subscribing.
+     * @param poolSize Number of buffers to keep, or 0 to disable pooling
+     * @param direct True to use direct (off-heap) buffers, false for heap buffers
+     */
+    public void setBufferPooling(int poolSize, boolean direct) {
+        if (poolSize < 0) {
+            throw new IllegalArgumentException("Pool size must not be negative");
+        }
+        this.bufferPoolSize = poolSize;
+        this.directBuffers = direct;
+    }
+
+    /**
+     * Get the buffer pool used by this publisher, to inspect its hit and miss counters
+     * @return Buffer pool, or null if pooling is disabled or nothing has subscribed yet
+     */
+    public synchronized AudioBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Get the scheduler that runs audio reads for this publisher
+     * @return reader scheduler
+     */
+    public AudioReaderScheduler getReaderScheduler() {
+        return readerScheduler;
+    }
+
+    /**
+     * Set the scheduler that runs audio reads for this publisher. Must be called before subscribing.
+     * @param readerScheduler reader scheduler
+     */
+    public void setReaderScheduler(AudioReaderScheduler readerScheduler) {
+        if (readerScheduler == null) {
+            throw new IllegalArgumentException("Reader scheduler is null");
+        }
+        this.readerScheduler = readerScheduler;
+    }
+
+    /**
+     * Get metrics
+     * @return Metrics that chunks read are recorded on
+     */
+    public TranscribeStreamingMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Set the metrics that chunks read are recorded on. Must be called before subscribing.
+     * @param metrics metrics
+     */
+    public void setMetrics(TranscribeStreamingMetrics metrics) {
+        if (metrics == null) {
+            throw new IllegalArgumentException("Metrics is null");
+        }
+        this.metrics = metrics;
+    }
+
+    /**
+     * Get latency tracker
+     * @return Tracker that chunks are stamped on, or null if latency is not tracked
+     */
+    public TranscriptLatencyTracker getLatencyTracker() {
+        return latencyTracker;
+    }
+
+    /**
+     * Stamp every chunk read with its offset and the time it was read, so the latency of results can be measured.
+     * Must be called before subscribing.
+     * @param latencyTracker Tracker of the stream, or null to not track latency
+     */
+    public void setLatencyTracker(TranscriptLatencyTracker latencyTracker) {
+        this.latencyTracker = latencyTracker;
+    }
+
+    /**
+     * Send audio no faster than the given speed relative to real time. Must be called before subscribing.
+     * @param format Format of the audio, used to work out how many bytes make up one second
+     * @param speed Multiple of real time to send at, e.g. 1.0 for real time or 2.0 for twice as fast. 0 disables
+     *              pacing
+     */
+    public void setPacing(AudioFormat format, double speed) {
+        if (speed < 0) {
+            throw new IllegalArgumentException("Pacing speed must not be negative");
+        }
+        this.pacingBytesPerSecond = speed == 0 ? 0 : bytesPerSecond(format) * speed;
+    }
+
+    /**
+     * Send audio no faster than the given number of bytes per second, for audio whose byte rate does not follow from
+     * a PCM format, such as encoded audio. Must be called before subscribing.
+     * @param pacingBytesPerSecond Maximum number of bytes sent per second, or 0 to disable pacing
+     */
+    public void setPacingBytesPerSecond(double pacingBytesPerSecond) {
+        if (pacingBytesPerSecond < 0) {
+            throw new IllegalArgumentException("Pacing rate must not be negative");
+        }
+        this.pacingBytesPerSecond = pacingBytesPerSecond;
+    }
+
+    /**
+     * Get pacing rate
+     * @return Maximum number of bytes sent per second, or 0 if pacing is disabled
+     */
+    public double getPacingBytesPerSecond() {
+        return pacingBytesPerSecond;
+    }
+
+    /**
+     * Close the underlying input stream or file, which ends the audio stream after the chunk currently being read
+     * @throws IOException if the input stream cannot be closed
+     */
+    public void close() throws IOException {
+        if (wavFile != null) {
+            wavFile.close();
+        } else {
+            inputStream.close();
+        }
     }
 
     @Override
     public void subscribe(Subscriber<? super AudioStream> s) {
-        s.onSubscribe(new ByteToAudioEventSubscription(s, inputStream));
+        if (s == null) {
+            throw new NullPointerException("Subscriber is null");
+        }
+        ByteToAudioEventSubscription subscription;
+        if (wavFile != null) {
+            subscription = new ByteToAudioEventSubscription(s, wavFile, chunkSizeInBytes, prefetch, readerScheduler,
+                    newPacer(), metrics, latencyTracker);
+        } else {
+            subscription = new ByteToAudioEventSubscription(s, inputStream, chunkSizeInBytes, prefetch,
+                    getOrCreateBufferPool(), readerScheduler, newPacer(), metrics,
+                    latencyTracker);
+        }
+        ByteToAudioEventSubscription previous;
+        CompletableFuture<Void> previousReaderStopped;
+        boolean first;
+        synchronized (this) {
+            previous = currentSubscription;
+            previousReaderStopped = readerStopped;
+            first = subscribed == 0;
+            subscribed++;
+            currentSubscription = subscription;
+            readerStopped = subscription.getReaderStopped();
+        }
+        //Let go of the subscription, and with it the subscriber, once it has ended
+        subscription.getReaderStopped().thenRun(() -> releaseSubscription(subscription));
+        if (previous != null) {
+            previous.cancel();
+        }
+
+        FlacEncodingInputStream encoder = getFlacEncoder();
+        if (encoder != null && first) {
+            encoder.setReadAheadBlocks(prefetch);
+        } else if (encoder != null) {
+            previousReaderStopped = previousReaderStopped.thenRun(() -> {
+                //Each chunk read ahead holds one frame, except the stream header when nothing was sent at all
+                int unsentFrames = unsent.size();
+                unsent.clear();
+                encoder.restartStream(unsentFrames);
+            });
+        }
+        subscription.continueAfter(unsent, previousReaderStopped);
+        s.onSubscribe(subscription);
+    }
+
+    /**
+     * @return The FLAC encoder the audio is read from, or null when the audio is not FLAC encoded
+     */
+    public FlacEncodingInputStream getFlacEncoder() {
+        return inputStream instanceof FlacEncodingInputStream ? (FlacEncodingInputStream) inputStream : null;
+    }
+
+    private synchronized void releaseSubscription(ByteToAudioEventSubscription subscription) {
+        if (currentSubscription == subscription) {
+            currentSubscription = null;
+        }
+    }
+
+    /**
+     * Each subscription gets its own bucket, so a retried stream is not held back by the pace of the previous
+     * attempt. The bucket holds at least one chunk, or a tenth of a second of audio, whichever is larger.
+     */
+    private TokenBucket newPacer() {
+        if (pacingBytesPerSecond <= 0) {
+            return null;
+        }
+        return new TokenBucket(Math.max(chunkSizeInBytes, pacingBytesPerSecond / 10), pacingBytesPerSecond);
+    }
+
+    private static double bytesPerSecond(AudioFormat format) {
+        if (format.getFrameRate() > 0 && format.getFrameSize() > 0) {
+            return format.getFrameRate() * format.getFrameSize();
+        }
+        return format.getSampleRate() * (format.getSampleSizeInBits() / 8) * format.getChannels();
+    }
+
+    private synchronized AudioBufferPool getOrCreateBufferPool() {
+        if (bufferPoolSize > 0 && bufferPool == null) {
+            bufferPool = new AudioBufferPool(bufferPoolSize, chunkSizeInBytes, directBuffers);
+        }
+        return bufferPool;
     }
 }
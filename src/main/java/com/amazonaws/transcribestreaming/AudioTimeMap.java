@@ -0,0 +1,104 @@
+/*
+ * Copyright 2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.amazonaws.transcribestreaming;
+
+import java.util.Arrays;
+
+/**
+ * Maps positions in audio that had parts cut out of it back to positions in the original audio. Each cut is stored
+ * as the offset in the sent audio where it happened and the total number of bytes cut up to that point, so looking
+ * up a time is a binary search over the cuts and does not allocate.
+ *
+ * The map is written by the thread reading the audio and read by the thread handling results, so all methods are
+ * synchronized.
+ */
+public class AudioTimeMap {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final double bytesPerSecond;
+    private long[] sentOffsets = new long[INITIAL_CAPACITY];
+    private long[] skippedTotals = new long[INITIAL_CAPACITY];
+    private int count = 0;
+
+    /**
+     * @param bytesPerSecond Bytes of audio per second, used to convert times to offsets and back
+     */
+    public AudioTimeMap(double bytesPerSecond) {
+        if (bytesPerSecond <= 0) {
+            throw new IllegalArgumentException("Bytes per second must be positive");
+        }
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Record that audio was cut out
+     * @param sentOffset Number of bytes sent before the cut
+     * @param skippedBytes Number of bytes cut out
+     */
+    public synchronized void skip(long sentOffset, long skippedBytes) {
+        if (count > 0 && sentOffsets[count - 1] == sentOffset) {
+            skippedTotals[count - 1] += skippedBytes;
+            return;
+        }
+        if (count == sentOffsets.length) {
+            sentOffsets = Arrays.copyOf(sentOffsets, count * 2);
+            skippedTotals = Arrays.copyOf(skippedTotals, count * 2);
+        }
+        sentOffsets[count] = sentOffset;
+        skippedTotals[count] = getSkippedBytes() + skippedBytes;
+        count++;
+    }
+
+    /**
+     * @param sentOffset Offset in bytes in the audio that was sent
+     * @return Offset in bytes of the same audio in the original
+     */
+    public synchronized long toOriginalOffset(long sentOffset) {
+        int index = Arrays.binarySearch(sentOffsets, 0, count, sentOffset);
+        if (index < 0) {
+            //Insertion point minus one is the last cut before the offset
+            index = -index - 2;
+        }
+        return index < 0 ? sentOffset : sentOffset + skippedTotals[index];
+    }
+
+    /**
+     * @param sentSeconds Time in seconds in the audio that was sent, e.g. a result time from the service
+     * @return Time in seconds of the same audio in the original
+     */
+    public double toOriginalSeconds(double sentSeconds) {
+        long sentOffset = (long) (sentSeconds * bytesPerSecond);
+        double remainder = sentSeconds - sentOffset / bytesPerSecond;
+        return toOriginalOffset(sentOffset) / bytesPerSecond + remainder;
+    }
+
+    /**
+     * @return Total number of bytes cut out so far
+     */
+    public synchronized long getSkippedBytes() {
+        return count == 0 ? 0 : skippedTotals[count - 1];
+    }
+
+    /**
+     * @return Total seconds of audio cut out so far
+     */
+    public double getSkippedSeconds() {
+        return getSkippedBytes() / bytesPerSecond;
+    }
+}
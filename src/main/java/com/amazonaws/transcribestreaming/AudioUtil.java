@@ -5,7 +5,6 @@ import java.util.ArrayList;
 import java.util.List;
 
 import javax.sound.sampled.AudioFormat;
-import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.DataLine;
 import javax.sound.sampled.LineUnavailableException;
@@ -50,10 +49,55 @@ public class AudioUtil {
     return mics;
   }
 
+  /**
+   * @return Format of the audio returned by getStreamFromMic
+   */
+  public static AudioFormat getMicFormat() {
+    return MIC_FORMAT;
+  }
+
+  /**
+   * @param channels Number of channels to record, e.g. 2 for a stereo interface with one speaker on each side
+   * @return Format of the audio returned by getStreamFromMic for that many channels
+   */
+  public static AudioFormat getMicFormat(int channels) {
+    if (channels == MIC_CHANNELS) {
+      return MIC_FORMAT;
+    }
+    return new AudioFormat(MIC_SAMPLE_RATE, MIC_SAMPLE_SIZE_IN_BITS, channels, MIC_FLAG_SIGNED, MIC_FLAG_BIGENDIAN);
+  }
+
   public static InputStream getStreamFromMic(Mixer mic) throws LineUnavailableException{
-    TargetDataLine line = (TargetDataLine) mic.getLine(MIC_DATALINE_INFO);
-    line.open(MIC_FORMAT);
+    return getStreamFromMic(mic, MIC_CHANNELS);
+  }
+
+  /**
+   * Record from a microphone with the channels interleaved, buffering up to the default depth and dropping the
+   * oldest audio beyond it
+   * @param mic Mixer to record from
+   * @param channels Number of channels to record
+   * @throws LineUnavailableException if the mixer cannot record that many channels
+   */
+  public static InputStream getStreamFromMic(Mixer mic, int channels) throws LineUnavailableException{
+    return getStreamFromMic(mic, channels, MicCaptureInputStream.DEFAULT_BUFFER_MILLIS,
+        MicCaptureInputStream.OverflowPolicy.DROP_OLDEST);
+  }
+
+  /**
+   * Record from a microphone with the channels interleaved. A capture thread drains the line into a buffer of the
+   * given depth, so audio is not lost while the stream is not read, see MicCaptureInputStream.
+   * @param mic Mixer to record from
+   * @param channels Number of channels to record
+   * @param bufferMillis Depth of the buffer in milliseconds of audio
+   * @param overflowPolicy What to do with captured audio when the buffer is full
+   * @throws LineUnavailableException if the mixer cannot record that many channels
+   */
+  public static MicCaptureInputStream getStreamFromMic(Mixer mic, int channels, int bufferMillis,
+      MicCaptureInputStream.OverflowPolicy overflowPolicy) throws LineUnavailableException{
+    AudioFormat format = getMicFormat(channels);
+    TargetDataLine line = (TargetDataLine) mic.getLine(new DataLine.Info(TargetDataLine.class, format));
+    line.open(format);
     line.start();
-    return new AudioInputStream(line);
+    return new MicCaptureInputStream(line, bufferMillis, overflowPolicy);
   }
 }
@@ -0,0 +1,529 @@
+/*
+ * Copyright 2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.amazonaws.transcribestreaming;
+
+import software.amazon.awssdk.services.transcribestreaming.model.MediaEncoding;
+import software.amazon.awssdk.services.transcribestreaming.model.StartStreamTranscriptionRequest;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Headless entry point that transcribes a batch of audio files without starting the GUI. Files are transcribed in
+ * parallel, up to a fixed number at a time, and each file's final transcripts are appended to its own transcript file
+ * as they arrive, by an AsyncTranscriptFileSink so the SDK threads never wait on the disk. A file is only recorded as
+ * finished once its transcript is on the disk.
+ *
+ * Finished files are recorded in a progress journal in the output directory. Running the same batch again skips
+ * them, so a crashed run can be resumed. Files still in progress keep a SessionJournal, &lt;file&gt;.wal, of the
+ * audio sent and the final segments received, so running the batch again resumes them from their last final segment
+ * rather than from the start. A throughput summary is printed at the end.
+ *
+ * Usage: batch &lt;input directory or manifest&gt; &lt;output directory&gt; [--concurrency N] [--language CODE]
+ * [--speed X] [--endpoint URI] [--max-silence MS] [--sample-rate HZ] [--encoding pcm|flac] [--channels mix|split]
+ * [--format txt|jsonl|srt|vtt]
+ *
+ * The endpoint option sends the streams somewhere other than the Transcribe endpoint of the current region, e.g. to a
+ * MockTranscribeStreamingServer for load testing. The max silence option cuts silences longer than the given number
+ * of milliseconds out of the audio before it is sent, see SilenceSkippingInputStream. Audio above the sample rate
+ * option, 16 kHz by default, or with more than one channel is downmixed and resampled before it is sent, see
+ * PcmConvertingInputStream. The encoding option sends the audio losslessly compressed as FLAC, see
+ * FlacEncodingInputStream, and the summary then reports how many bytes were saved. With channels split, both
+ * channels of a stereo file are sent in one stream with channel identification instead of being downmixed, and the
+ * transcript of each channel is written to a file of its own, &lt;file&gt;.ch_0.txt and &lt;file&gt;.ch_1.txt. The
+ * format option writes the transcripts as text, JSON lines or SRT or WebVTT subtitles instead, see
+ * TranscriptFileFormat, with the extension of the format. The meters of TranscribeStreamingMetrics are printed after
+ * the summary.
+ */
+public class BatchTranscriptionApp {
+
+    private static final String JOURNAL_FILE_NAME = "progress.journal";
+    private static final String SESSION_JOURNAL_SUFFIX = ".wal";
+    private static final int DEFAULT_CONCURRENCY = 8;
+    private static final String DEFAULT_LANGUAGE = "en-US";
+    private static final double DEFAULT_SPEED = 1.0;
+
+    private final Path outputDirectory;
+    private final int concurrency;
+    private final String languageCode;
+    private final double speed;
+    private final String endpoint;
+    private int maxSilenceMillis = -1;
+    private int maxSampleRate = PcmConvertingInputStream.DEFAULT_SAMPLE_RATE;
+    private MediaEncoding mediaEncoding = MediaEncoding.PCM;
+    private boolean splitChannels = false;
+    private TranscriptFileFormat transcriptFormat = TranscriptFileFormat.TEXT;
+    private final Set<String> completedFiles;
+    private final BufferedWriter journal;
+    private final List<Long> sessionTimes = Collections.synchronizedList(new ArrayList<>());
+    private double audioSeconds = 0;
+    private int failedFiles = 0;
+    private long encoderBytesIn = 0;
+    private long encoderBytesOut = 0;
+
+    public BatchTranscriptionApp(Path outputDirectory, int concurrency, String languageCode, double speed,
+                                 String endpoint) throws IOException {
+        this.outputDirectory = outputDirectory;
+        this.concurrency = concurrency;
+        this.languageCode = languageCode;
+        this.speed = speed;
+        this.endpoint = endpoint;
+        Files.createDirectories(outputDirectory);
+        Path journalPath = outputDirectory.resolve(JOURNAL_FILE_NAME);
+        this.completedFiles = Files.exists(journalPath)
+                ? new HashSet<>(Files.readAllLines(journalPath, StandardCharsets.UTF_8))
+                : new HashSet<>();
+        this.journal = Files.newBufferedWriter(journalPath, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    public static void main(String[] args) throws Exception {
+        //Options come in pairs, so a trailing option without a value leaves an odd count
+        if (args.length < 2 || args.length % 2 != 0) {
+            if (args.length > 2) {
+                System.out.println("Missing value for option: " + args[args.length - 1]);
+            }
+            System.out.println("Usage: batch <input directory or manifest> <output directory> "
+                    + "[--concurrency N] [--language CODE] [--speed X] [--endpoint URI] [--max-silence MS] "
+                    + "[--sample-rate HZ] [--encoding pcm|flac] [--channels mix|split] "
+                    + "[--format txt|jsonl|srt|vtt]");
+            System.exit(1);
+        }
+        int concurrency = DEFAULT_CONCURRENCY;
+        String languageCode = DEFAULT_LANGUAGE;
+        double speed = DEFAULT_SPEED;
+        String endpoint = null;
+        int maxSilenceMillis = -1;
+        int maxSampleRate = PcmConvertingInputStream.DEFAULT_SAMPLE_RATE;
+        MediaEncoding mediaEncoding = MediaEncoding.PCM;
+        boolean splitChannels = false;
+        TranscriptFileFormat transcriptFormat = TranscriptFileFormat.TEXT;
+        for (int i = 2; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--concurrency":
+                    concurrency = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--language":
+                    languageCode = args[i + 1];
+                    break;
+                case "--speed":
+                    speed = Double.parseDouble(args[i + 1]);
+                    break;
+                case "--endpoint":
+                    endpoint = args[i + 1];
+                    break;
+                case "--max-silence":
+                    maxSilenceMillis = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--sample-rate":
+                    maxSampleRate = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--encoding":
+                    mediaEncoding = MediaEncoding.fromValue(args[i + 1].toLowerCase(Locale.ROOT));
+                    break;
+                case "--channels":
+                    if (!"mix".equals(args[i + 1]) && !"split".equals(args[i + 1])) {
+                        throw new IllegalArgumentException("Channels must be mix or split: " + args[i + 1]);
+                    }
+                    splitChannels = "split".equals(args[i + 1]);
+                    break;
+                case "--format":
+                    transcriptFormat = TranscriptFileFormat.fromExtension(args[i + 1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        SimpleMetricsRegistry metricsRegistry = new SimpleMetricsRegistry();
+        TranscribeStreamingMetrics.setDefault(new TranscribeStreamingMetrics(metricsRegistry));
+        BatchTranscriptionApp app =
+                new BatchTranscriptionApp(Paths.get(args[1]), concurrency, languageCode, speed, endpoint);
+        app.setMaxSilenceMillis(maxSilenceMillis);
+        app.setMaxSampleRate(maxSampleRate);
+        app.setMediaEncoding(mediaEncoding);
+        app.setSplitChannels(splitChannels);
+        app.setTranscriptFormat(transcriptFormat);
+        app.run(listInputFiles(Paths.get(args[0])));
+        System.out.println("=== Metrics ===");
+        System.out.print(metricsRegistry.report());
+        System.exit(0);
+    }
+
+    /**
+     * Cut silences longer than the given length out of the audio before it is sent
+     * @param maxSilenceMillis Milliseconds of each silence to keep, or a negative number to send all audio
+     */
+    public void setMaxSilenceMillis(int maxSilenceMillis) {
+        this.maxSilenceMillis = maxSilenceMillis;
+    }
+
+    /**
+     * Set the highest sample rate to send at. Audio above it is resampled down to it, e.g. 8000 for telephone audio.
+     * @param maxSampleRate Sample rate in Hertz
+     */
+    public void setMaxSampleRate(int maxSampleRate) {
+        if (maxSampleRate <= 0) {
+            throw new IllegalArgumentException("Sample rate must be positive");
+        }
+        this.maxSampleRate = maxSampleRate;
+    }
+
+    /**
+     * Set the encoding audio is sent in
+     * @param mediaEncoding PCM or FLAC
+     */
+    public void setMediaEncoding(MediaEncoding mediaEncoding) {
+        if (mediaEncoding != MediaEncoding.PCM && mediaEncoding != MediaEncoding.FLAC) {
+            throw new IllegalArgumentException("Cannot encode audio as " + mediaEncoding + ", use pcm or flac");
+        }
+        this.mediaEncoding = mediaEncoding;
+    }
+
+    /**
+     * Send both channels of stereo files in one stream with channel identification, writing a transcript per channel,
+     * instead of downmixing them
+     * @param splitChannels True to split channels
+     */
+    public void setSplitChannels(boolean splitChannels) {
+        this.splitChannels = splitChannels;
+    }
+
+    /**
+     * Set the format transcript files are written in
+     * @param transcriptFormat Format, TEXT by default
+     */
+    public void setTranscriptFormat(TranscriptFileFormat transcriptFormat) {
+        this.transcriptFormat = transcriptFormat;
+    }
+
+    /**
+     * Transcribe every file that is not yet recorded in the progress journal, then print a summary
+     * @param inputFiles Audio files to transcribe
+     */
+    public void run(List<File> inputFiles) throws InterruptedException, IOException {
+        TranscribeStreamingRetryClient client = new TranscribeStreamingRetryClient(endpoint == null
+                ? TranscribeStreamingClientWrapper.getClient(concurrency)
+                : TranscribeStreamingClientWrapper.getClient(concurrency, endpoint));
+        TranscribeStreamingSessionManager sessionManager = new TranscribeStreamingSessionManager(client, concurrency);
+        List<CompletableFuture<Void>> results = new ArrayList<>();
+        long startTime = System.nanoTime();
+        int skipped = 0;
+        Set<String> duplicateNames = duplicateNames(inputFiles);
+
+        try {
+            for (File inputFile : inputFiles) {
+                if (completedFiles.contains(inputFile.getAbsolutePath())) {
+                    skipped++;
+                    continue;
+                }
+                try {
+                    results.add(transcribe(sessionManager, inputFile, outputName(inputFile, duplicateNames)));
+                } catch (IOException | UnsupportedAudioFileException | RuntimeException e) {
+                    markFailed(inputFile, e);
+                }
+            }
+            CompletableFuture.allOf(results.toArray(new CompletableFuture[0])).exceptionally(e -> null).join();
+        } finally {
+            journal.close();
+            client.close();
+        }
+
+        printSummary(skipped, (System.nanoTime() - startTime) / 1_000_000_000d);
+    }
+
+    /**
+     * @return Names shared by more than one of the files, which a manifest can list from different directories
+     */
+    private static Set<String> duplicateNames(List<File> inputFiles) {
+        Set<String> names = new HashSet<>();
+        Set<String> duplicates = new HashSet<>();
+        for (File inputFile : inputFiles) {
+            if (!names.add(inputFile.getName())) {
+                duplicates.add(inputFile.getName());
+            }
+        }
+        return duplicates;
+    }
+
+    /**
+     * Name the transcripts and session journal of a file are written under. A name shared with another file of the
+     * batch gets a hash of the file's absolute path added, so the two never write to the same outputs.
+     */
+    private static String outputName(File inputFile, Set<String> duplicateNames) {
+        String name = inputFile.getName();
+        if (!duplicateNames.contains(name)) {
+            return name;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(inputFile.getAbsolutePath().getBytes(StandardCharsets.UTF_8));
+        return name + "." + String.format("%08x", crc.getValue());
+    }
+
+    /**
+     * Start transcribing a file, waiting for a free session slot first
+     * @param outputName Name, unique in the batch, to write the transcripts and session journal under
+     */
+    private CompletableFuture<Void> transcribe(TranscribeStreamingSessionManager sessionManager, File inputFile,
+                                               String outputName)
+            throws IOException, UnsupportedAudioFileException, InterruptedException {
+        MappedWavFile wavFile = MappedWavFile.open(inputFile.toPath());
+        SessionJournal journal;
+        try {
+            journal = SessionJournal.open(outputDirectory.resolve(outputName + SESSION_JOURNAL_SUFFIX));
+        } catch (IOException | RuntimeException e) {
+            wavFile.close();
+            throw e;
+        }
+        double resumeSeconds = resume(wavFile, journal);
+        if (journal.getRecoveredRecords() > 0) {
+            System.out.println(String.format("Resuming %s at %.1f s with %d final segments%s", inputFile,
+                    resumeSeconds, journal.getFinalSegments().size(), journal.getCorruptRecords() == 0 ? ""
+                            : ", dropped " + journal.getCorruptRecords() + " damaged journal records"));
+        }
+        double durationSeconds = wavFile.getDurationSeconds() - resumeSeconds;
+
+        AudioFilePipeline pipeline = new AudioFilePipeline(wavFile);
+        pipeline.setMaxSampleRate(maxSampleRate);
+        pipeline.setMaxSilenceMillis(maxSilenceMillis);
+        pipeline.setMediaEncoding(mediaEncoding);
+        pipeline.setPacingSpeed(speed);
+        pipeline.setChannelIdentification(splitChannels);
+        AudioStreamPublisher publisher;
+        try {
+            publisher = pipeline.createPublisher();
+        } catch (IOException e) {
+            journal.close();
+            closeAudio(null, wavFile);
+            throw e;
+        }
+        int channels = pipeline.getFormat().getChannels();
+        StartStreamTranscriptionRequest.Builder requestBuilder = StartStreamTranscriptionRequest.builder()
+                .languageCode(languageCode)
+                .mediaEncoding(pipeline.getMediaEncoding())
+                .mediaSampleRateHertz((int) pipeline.getFormat().getSampleRate());
+        StreamTranscriptionBehavior transcriptBehavior;
+        List<AsyncTranscriptFileSink> sinks = new ArrayList<>(channels);
+        if (channels > 1) {
+            requestBuilder.enableChannelIdentification(true).numberOfChannels(channels);
+            List<StreamTranscriptionBehavior> channelBehaviors = new ArrayList<>(channels);
+            for (int channel = 0; channel < channels; channel++) {
+                AsyncTranscriptFileSink sink = new AsyncTranscriptFileSink(outputDirectory.resolve(
+                        outputName + ".ch_" + channel + "." + transcriptFormat.getExtension()),
+                        transcriptFormat);
+                sinks.add(sink);
+                channelBehaviors.add(new TranscriptSinkBehavior(sink));
+            }
+            transcriptBehavior = new ChannelRoutingTranscriptionBehavior(channelBehaviors);
+        } else {
+            AsyncTranscriptFileSink sink = new AsyncTranscriptFileSink(
+                    outputDirectory.resolve(outputName + "." + transcriptFormat.getExtension()),
+                    transcriptFormat);
+            sinks.add(sink);
+            transcriptBehavior = new TranscriptSinkBehavior(sink);
+        }
+        //The transcript files are written again from the start, beginning with what the journal already has. Those
+        //segments are queued before streaming starts, waiting for room rather than being dropped
+        List<List<TranscriptUpdate.Segment>> recovered = new ArrayList<>(channels);
+        for (int channel = 0; channel < sinks.size(); channel++) {
+            recovered.add(new ArrayList<>());
+        }
+        for (TranscriptUpdate.Segment segment : journal.getFinalSegments()) {
+            recovered.get(ChannelRoutingTranscriptionBehavior.channelIndex(segment.getChannelId(), sinks.size()))
+                    .add(segment);
+        }
+        try {
+            for (int channel = 0; channel < sinks.size(); channel++) {
+                sinks.get(channel).writeAll(recovered.get(channel));
+            }
+        } catch (IOException | InterruptedException e) {
+            sinks.forEach(TranscriptSink::close);
+            journal.close();
+            closeAudio(publisher, wavFile);
+            throw e;
+        }
+        StartStreamTranscriptionRequest request = requestBuilder.build();
+        StreamTranscriptionBehavior behavior = pipeline.mapTimes(
+                new JournalingTranscriptionBehavior(transcriptBehavior, journal, resumeSeconds, wavFile.getFormat()));
+        TranscriptionSession session;
+        try {
+            session = sessionManager.startSession(request, publisher, behavior, Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException | RuntimeException e) {
+            sinks.forEach(TranscriptSink::close);
+            journal.close();
+            closeAudio(publisher, wavFile);
+            throw e;
+        }
+        System.out.println("Started " + inputFile + " as session " + session.getSessionId());
+
+        //The sinks are closed by the behavior when the stream ends, and the file is done once they have written it
+        //all. Only then is the journal, the one other copy of the transcript, deleted
+        return session.getResult().thenCompose(r -> {
+            CompletableFuture<?>[] sinksClosed = new CompletableFuture<?>[sinks.size()];
+            for (int i = 0; i < sinks.size(); i++) {
+                sinksClosed[i] = sinks.get(i).close();
+            }
+            return CompletableFuture.allOf(sinksClosed).thenRun(() -> {
+                for (AsyncTranscriptFileSink sink : sinks) {
+                    if (sink.getDroppedSegments() > 0) {
+                        throw new IllegalStateException(sink.getDroppedSegments() + " segments were dropped");
+                    }
+                }
+            });
+        }).whenComplete((r, e) -> {
+            closeAudio(publisher, wavFile);
+            if (e == null) {
+                //Measured from the start of the session, after any wait for a free slot
+                sessionTimes.add(System.currentTimeMillis() - session.getStartTimeMillis());
+                markCompleted(inputFile, durationSeconds, pipeline.getEncoder());
+                closeJournal(journal, true);
+            } else {
+                //A session that failed before the stream started never closed its sinks
+                sinks.forEach(TranscriptSink::close);
+                markFailed(inputFile, e);
+                closeJournal(journal, false);
+            }
+        });
+    }
+
+    /**
+     * Move the file to where the journal of an earlier run says to resume from
+     * @return Seconds into the audio the stream starts at
+     */
+    private static double resume(MappedWavFile wavFile, SessionJournal journal) {
+        AudioFormat format = wavFile.getFormat();
+        long frames = (long) (journal.getResumeSeconds() * format.getFrameRate());
+        long offset = Math.min(frames * format.getFrameSize(),
+                Math.min(journal.getAudioOffset(), wavFile.getDataLength()));
+        wavFile.seek(offset);
+        return (double) wavFile.getPosition() / format.getFrameSize() / format.getFrameRate();
+    }
+
+    /**
+     * Release the audio of a file once its session has ended, or could not be started
+     */
+    private static void closeAudio(AudioStreamPublisher publisher, MappedWavFile wavFile) {
+        try {
+            if (publisher != null) {
+                publisher.close();
+            }
+            wavFile.close();
+        } catch (IOException e) {
+            System.out.println("Error closing audio file: " + e);
+        }
+    }
+
+    /**
+     * Delete the journal of a finished file, or keep it to resume a failed one from
+     */
+    private static void closeJournal(SessionJournal journal, boolean finished) {
+        try {
+            if (finished) {
+                journal.delete();
+            } else {
+                journal.close();
+            }
+        } catch (IOException e) {
+            System.out.println("Error closing session journal: " + e);
+        }
+    }
+
+    private synchronized void markCompleted(File inputFile, double durationSeconds, FlacEncodingInputStream encoder) {
+        audioSeconds += durationSeconds;
+        if (encoder != null) {
+            encoderBytesIn += encoder.getBytesIn();
+            encoderBytesOut += encoder.getBytesOut();
+        }
+        try {
+            journal.write(inputFile.getAbsolutePath());
+            journal.newLine();
+            journal.flush();
+        } catch (IOException e) {
+            System.out.println("Error writing progress journal: " + e);
+        }
+        System.out.println("Finished " + inputFile);
+    }
+
+    private synchronized void markFailed(File inputFile, Throwable e) {
+        failedFiles++;
+        System.out.println("Failed " + inputFile + ": " + e);
+    }
+
+    private synchronized void printSummary(int skippedFiles, double wallSeconds) {
+        List<Long> sorted = new ArrayList<>(sessionTimes);
+        Collections.sort(sorted);
+        int completed = sorted.size();
+        System.out.println("=== Batch summary ===");
+        System.out.println(String.format("Files: %d completed, %d failed, %d skipped (already done)",
+                completed, failedFiles, skippedFiles));
+        System.out.println(String.format("Wall time: %.1f s", wallSeconds));
+        System.out.println(String.format("Throughput: %.3f files/s, %.2f audio-seconds per wall-second",
+                completed / wallSeconds, audioSeconds / wallSeconds));
+        if (completed > 0) {
+            System.out.println(String.format("Session time, from start to transcript written: p50 %d ms, p99 %d ms",
+                    percentile(sorted, 0.50), percentile(sorted, 0.99)));
+        }
+        if (encoderBytesOut > 0) {
+            System.out.println(String.format("FLAC: %d PCM bytes sent as %d bytes, ratio %.2f",
+                    encoderBytesIn, encoderBytesOut, (double) encoderBytesIn / encoderBytesOut));
+        }
+    }
+
+    private static long percentile(List<Long> sorted, double percentile) {
+        int index = (int) Math.ceil(percentile * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1)));
+    }
+
+    /**
+     * A directory is scanned for .wav files, anything else is read as a manifest with one file path per line
+     */
+    private static List<File> listInputFiles(Path input) throws IOException {
+        if (Files.isDirectory(input)) {
+            try (Stream<Path> files = Files.list(input)) {
+                return files.filter(p -> p.getFileName().toString().toLowerCase().endsWith(".wav"))
+                        .sorted()
+                        .map(Path::toFile)
+                        .collect(Collectors.toList());
+            }
+        }
+        return Files.readAllLines(input, StandardCharsets.UTF_8).stream()
+                .map(String::trim)
+                .filter(line -> !line.isEmpty() && !line.startsWith("#"))
+                .map(File::new)
+                .collect(Collectors.toList());
+    }
+}
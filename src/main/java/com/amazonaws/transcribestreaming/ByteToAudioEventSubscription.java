@@ -27,8 +27,18 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -36,73 +46,447 @@ import java.util.concurrent.atomic.AtomicLong;
  * that can be sent to the Transcribe service. It implements a simple demand system that will read chunks of bytes
  * from an input stream containing audio data
  *
+ * Reading and sending are decoupled. Chunks are read ahead into a bounded prefetch queue on the shared
+ * AudioReaderScheduler, and sent from that queue as the subscriber requests them. A request therefore never waits on
+ * a disk or microphone read, and a read never waits on the network until the prefetch window is full.
+ *
+ * Signals to the subscriber are serialized by a work-in-progress counter: whichever thread finds the counter at zero
+ * runs the drain loop, and any request, read or cancellation that arrives while it runs makes it loop once more. This
+ * keeps onNext, onComplete and onError strictly ordered, each terminal signal sent at most once, and a subscriber
+ * calling request() from onNext does not recurse.
+ *
+ * Chunks are read either into a freshly allocated array per chunk, or, when an AudioBufferPool is supplied, into
+ * buffers borrowed from the pool. SdkBytes takes its own copy of the chunk, so a pooled buffer goes straight back to
+ * the pool as soon as the AudioEvent has been built. Audio from a MappedWavFile skips both: each chunk is a slice of
+ * the mapped file.
+ *
+ * The subscription releases its place on the scheduler on whichever terminal signal comes first: completion, error
+ * or cancellation.
+ *
+ * Chunks that were read but not yet sent when the subscription ends are not lost. A subscription that continues an
+ * earlier one to the same audio waits until the reader of the earlier one has stopped, sends the chunks it left
+ * behind first, and only then starts reading itself.
+ *
+ * An optional pacer limits how fast audio is read, in bytes per second. When the pacer has no room for the next
+ * chunk the read loop stops and is resumed by the scheduler's timer, so a waiting stream does not hold a thread.
+ *
  * To read more about how Subscriptions and reactive streams work, please see
  * https://github.com/reactive-streams/reactive-streams-jvm/blob/v1.0.2/README.md
  */
 public class ByteToAudioEventSubscription implements Subscription {
-    private static final int CHUNK_SIZE_IN_BYTES = 1024 * 4;
-    private ExecutorService executor = Executors.newFixedThreadPool(1);
-    private AtomicLong demand = new AtomicLong(0);
+    public static final int DEFAULT_CHUNK_SIZE_IN_BYTES = 1024 * 4;
+    public static final int DEFAULT_PREFETCH = 8;
+    private final AtomicLong requested = new AtomicLong(0);
+    private final AtomicInteger wip = new AtomicInteger(0);
+    private final AtomicBoolean terminated = new AtomicBoolean(false);
+    private final AtomicBoolean readScheduled = new AtomicBoolean(false);
 
     private final Subscriber<? super AudioStream> subscriber;
     private final InputStream inputStream;
+    private final MappedWavFile wavFile;
+    private final int chunkSizeInBytes;
+    private final AudioBufferPool bufferPool;
+    private final AudioReaderScheduler scheduler;
+    private final Executor executor;
+    private final TokenBucket pacer;
+    private final TranscribeStreamingMetrics metrics;
+    private final TranscriptLatencyTracker latencyTracker;
+    private final BlockingQueue<AudioEvent> prefetched;
+    private final CompletableFuture<Void> readerStopped = new CompletableFuture<>();
+    private Queue<AudioEvent> unsent;
+    private ReadableByteChannel channel;
+    private volatile boolean started = true;
+    private volatile boolean resumeScheduled = false;
+    private volatile boolean done = false;
+    private volatile Throwable error;
 
     public ByteToAudioEventSubscription(Subscriber<? super AudioStream> s, InputStream inputStream) {
+        this(s, inputStream, DEFAULT_CHUNK_SIZE_IN_BYTES, DEFAULT_PREFETCH, null, AudioReaderScheduler.getDefault(),
+                null, TranscribeStreamingMetrics.getDefault(), null);
+    }
+
+    /**
+     * @param s Subscriber to send AudioEvents to
+     * @param inputStream Stream of raw audio bytes
+     * @param chunkSizeInBytes Maximum number of bytes per AudioEvent. Ignored when a buffer pool is given, in which
+     *                         case the pool's buffer size is used
+     * @param prefetch Maximum number of chunks read ahead of the subscriber's demand
+     * @param bufferPool Optional pool to read chunks into. When null a new array is allocated for every chunk
+     * @param scheduler Scheduler to run the blocking reads on
+     * @param pacer Optional token bucket, in bytes, that each chunk must take its size from before it is read. Its
+     *              capacity must be at least the chunk size
+     * @param metrics Metrics to record chunks read on
+     * @param latencyTracker Optional tracker to stamp each chunk with the time it was read
+     */
+    public ByteToAudioEventSubscription(Subscriber<? super AudioStream> s, InputStream inputStream,
+                                        int chunkSizeInBytes, int prefetch, AudioBufferPool bufferPool,
+                                        AudioReaderScheduler scheduler, TokenBucket pacer,
+                                        TranscribeStreamingMetrics metrics,
+                                        TranscriptLatencyTracker latencyTracker) {
+        this(s, inputStream, null, chunkSizeInBytes, prefetch, bufferPool, scheduler, pacer, metrics,
+                latencyTracker);
+    }
+
+    /**
+     * @param s Subscriber to send AudioEvents to
+     * @param wavFile Memory-mapped audio file
+     * @param chunkSizeInBytes Maximum number of bytes per AudioEvent
+     * @param prefetch Maximum number of chunks read ahead of the subscriber's demand
+     * @param scheduler Scheduler to run the reads on
+     * @param pacer Optional token bucket, in bytes, that each chunk must take its size from before it is read. Its
+     *              capacity must be at least the chunk size
+     * @param metrics Metrics to record chunks read on
+     * @param latencyTracker Optional tracker to stamp each chunk with the time it was read
+     */
+    public ByteToAudioEventSubscription(Subscriber<? super AudioStream> s, MappedWavFile wavFile,
+                                        int chunkSizeInBytes, int prefetch,
+                                        AudioReaderScheduler scheduler, TokenBucket pacer,
+                                        TranscribeStreamingMetrics metrics,
+                                        TranscriptLatencyTracker latencyTracker) {
+        this(s, null, wavFile, chunkSizeInBytes, prefetch, null, scheduler, pacer, metrics, latencyTracker);
+    }
+
+    private ByteToAudioEventSubscription(Subscriber<? super AudioStream> s, InputStream inputStream,
+                                         MappedWavFile wavFile, int chunkSizeInBytes, int prefetch,
+                                         AudioBufferPool bufferPool, AudioReaderScheduler scheduler,
+                                         TokenBucket pacer, TranscribeStreamingMetrics metrics,
+                                         TranscriptLatencyTracker latencyTracker) {
+        if (chunkSizeInBytes <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive");
+        }
+        if (prefetch <= 0) {
+            throw new IllegalArgumentException("Prefetch must be positive");
+        }
         this.subscriber = s;
         this.inputStream = inputStream;
+        this.wavFile = wavFile;
+        this.bufferPool = bufferPool;
+        this.chunkSizeInBytes = bufferPool != null ? bufferPool.getBufferSize() : chunkSizeInBytes;
+        this.scheduler = scheduler;
+        this.executor = scheduler.newSerialExecutor();
+        this.pacer = pacer;
+        this.metrics = metrics;
+        this.latencyTracker = latencyTracker;
+        this.prefetched = new ArrayBlockingQueue<>(prefetch);
+        scheduler.readerStarted();
+    }
+
+    /**
+     * Continue the audio of an earlier subscription. Nothing is read or sent until that subscription's reader has
+     * stopped. Chunks left in the queue are sent before any chunk this subscription reads, and chunks this
+     * subscription reads but does not send are added to the queue when it ends. Must be called before the
+     * subscription is passed to the subscriber.
+     * @param unsent Queue of chunks read but not sent, shared by the subscriptions to one stream. Null to drop them
+     * @param previousReaderStopped Completes once the reader of the earlier subscription has stopped
+     */
+    void continueAfter(Queue<AudioEvent> unsent, CompletionStage<Void> previousReaderStopped) {
+        this.unsent = unsent;
+        started = false;
+        previousReaderStopped.whenComplete((r, t) -> start());
+    }
+
+    /**
+     * @return Future completed once this subscription has ended and its reader will not touch the audio source again
+     */
+    CompletableFuture<Void> getReaderStopped() {
+        return readerStopped;
+    }
+
+    private void start() {
+        started = true;
+        if (requested.get() > 0) {
+            scheduleRead();
+        }
+        drain();
     }
 
     @Override
     public void request(long n) {
+        if (terminated.get()) {
+            return;
+        }
         if (n <= 0) {
-            subscriber.onError(new IllegalArgumentException("Demand must be positive"));
+            //Rule 3.9: signalled through the drain loop so it cannot overlap an onNext in progress
+            error = new IllegalArgumentException("Demand must be positive, was " + n);
+            done = true;
+            drain();
+            return;
         }
 
-        demand.getAndAdd(n);
-        //We need to invoke this in a separate thread because the call to subscriber.onNext(...) is recursive
-        executor.submit(() -> {
-            try {
-                do {
-                    ByteBuffer audioBuffer = getNextEvent();
-                    if (audioBuffer.remaining() > 0) {
-                        AudioEvent audioEvent = audioEventFromBuffer(audioBuffer);
-                        subscriber.onNext(audioEvent);
-                    } else {
-                        subscriber.onComplete();
-                        break;
-                    }
-                } while (demand.decrementAndGet() > 0);
-            } catch (Exception e) {
-                subscriber.onError(e);
-            }
-        });
+        addRequested(n);
+        scheduleRead();
+        drain();
     }
 
     @Override
     public void cancel() {
-        executor.shutdown();
+        //Read-ahead chunks are handed on once the reader has stopped
+        terminate();
+    }
+
+    /**
+     * Add to the outstanding demand, capped at Long.MAX_VALUE which means unbounded (rule 3.17)
+     */
+    private void addRequested(long n) {
+        long current;
+        long next;
+        do {
+            current = requested.get();
+            if (current == Long.MAX_VALUE) {
+                return;
+            }
+            next = current + n;
+            if (next < 0) {
+                next = Long.MAX_VALUE;
+            }
+        } while (!requested.compareAndSet(current, next));
     }
 
-    private ByteBuffer getNextEvent() {
-        ByteBuffer audioBuffer = null;
-        byte[] audioBytes = new byte[CHUNK_SIZE_IN_BYTES];
+    /**
+     * Send prefetched chunks while there is outstanding demand, then onComplete once the input is exhausted and
+     * everything read has been sent. Errors are sent as soon as they are seen, leaving any chunks still prefetched
+     * for the next subscription. Runs on one thread at a time; callers that find it running only make it loop again.
+     */
+    private void drain() {
+        if (!started || wip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            long demand = requested.get();
+            long emitted = 0;
+            while (emitted != demand) {
+                if (isCancelledOrFailed()) {
+                    return;
+                }
+                boolean exhausted = done;
+                AudioEvent audioEvent = pollPrefetched();
+                if (exhausted && audioEvent == null) {
+                    signalTerminal();
+                    return;
+                }
+                if (audioEvent == null) {
+                    break;
+                }
+                subscriber.onNext(audioEvent);
+                emitted++;
+            }
+            if (isCancelledOrFailed()) {
+                return;
+            }
+            if (done && prefetched.isEmpty() && (unsent == null || unsent.isEmpty())) {
+                signalTerminal();
+                return;
+            }
+            if (emitted != 0) {
+                if (demand != Long.MAX_VALUE) {
+                    requested.addAndGet(-emitted);
+                }
+                scheduleRead();
+            }
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    /**
+     * Take the next chunk to send, those left by an earlier subscription first
+     */
+    private AudioEvent pollPrefetched() {
+        AudioEvent audioEvent = unsent == null ? null : unsent.poll();
+        return audioEvent != null ? audioEvent : prefetched.poll();
+    }
+
+    /**
+     * Check for cancellation or an error, sending the error if there is one
+     * @return True if the drain loop must stop
+     */
+    private boolean isCancelledOrFailed() {
+        if (terminated.get()) {
+            return true;
+        }
+        if (done && error != null) {
+            signalTerminal();
+            return true;
+        }
+        return false;
+    }
+
+    private void signalTerminal() {
+        if (terminate()) {
+            Throwable t = error;
+            if (t == null) {
+                subscriber.onComplete();
+            } else {
+                subscriber.onError(t);
+            }
+        }
+    }
 
+    /**
+     * Start a read loop on the scheduler, unless one is already queued
+     */
+    private void scheduleRead() {
+        if (started && !done && readScheduled.compareAndSet(false, true)) {
+            runOnReader(this::readAhead);
+        }
+    }
+
+    /**
+     * Hand a task to the serial executor. A scheduler that has been closed rejects it, which fails the subscription
+     * through onError rather than throwing to the caller of request.
+     */
+    private void runOnReader(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            readScheduled.set(false);
+            error = e;
+            done = true;
+            drain();
+        }
+    }
+
+    /**
+     * Read chunks until the prefetch window is full or the input is exhausted. Runs on the serial executor only.
+     */
+    private void readAhead() {
+        readScheduled.set(false);
+        //A paced stream will be resumed by the timer, which sees any room made in the meantime
+        if (resumeScheduled) {
+            return;
+        }
         try {
-            int len = inputStream.read(audioBytes);
+            while (!done && !terminated.get() && prefetched.remainingCapacity() > 0) {
+                if (pacer != null) {
+                    long waitNanos = pacer.tryAcquire(chunkSizeInBytes);
+                    if (waitNanos > 0) {
+                        resumeScheduled = true;
+                        scheduler.schedule(() -> runOnReader(this::resume), waitNanos, TimeUnit.NANOSECONDS);
+                        return;
+                    }
+                }
+                AudioEvent audioEvent = getNextEvent();
+                if (audioEvent == null) {
+                    done = true;
+                } else {
+                    prefetched.offer(audioEvent);
+                }
+                drain();
+            }
+        } catch (Exception e) {
+            error = e;
+            done = true;
+            drain();
+        }
+    }
 
-            if (len <= 0) {
-                audioBuffer = ByteBuffer.allocate(0);
+    private void resume() {
+        resumeScheduled = false;
+        readAhead();
+    }
+
+    /**
+     * Move to the terminal state and give up this subscription's place on the scheduler. The reader is stopped
+     * behind any read still in progress on the serial executor.
+     * @return True if this call made the transition, false if the subscription had already terminated
+     */
+    private boolean terminate() {
+        if (terminated.compareAndSet(false, true)) {
+            scheduler.readerFinished();
+            try {
+                executor.execute(this::stopReader);
+            } catch (RejectedExecutionException e) {
+                //The scheduler has been closed, so no read can still be running
+                stopReader();
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Hand chunks that were read but not sent on to the next subscription. Runs on the serial executor only, after
+     * the last read of this subscription.
+     */
+    private void stopReader() {
+        if (unsent != null) {
+            prefetched.drainTo(unsent);
+        } else {
+            prefetched.clear();
+        }
+        readerStopped.complete(null);
+    }
+
+    /**
+     * Read the next chunk of audio from the input stream or mapped file
+     * @return AudioEvent holding the chunk, or null once the audio is exhausted
+     */
+    private AudioEvent getNextEvent() {
+        if (wavFile != null) {
+            ByteBuffer chunk = nextMappedChunk();
+            return chunk == null ? null : audioEventFromBuffer(chunk);
+        }
+        if (bufferPool == null) {
+            byte[] audioBytes = new byte[chunkSizeInBytes];
+            int len = read(audioBytes);
+            return len <= 0 ? null : audioEventFromBuffer(ByteBuffer.wrap(audioBytes, 0, len));
+        }
+
+        ByteBuffer audioBuffer = bufferPool.acquire();
+        try {
+            int len;
+            if (audioBuffer.hasArray()) {
+                len = read(audioBuffer.array(), audioBuffer.arrayOffset(), audioBuffer.capacity());
+                if (len > 0) {
+                    audioBuffer.limit(len);
+                }
             } else {
-                audioBuffer = ByteBuffer.wrap(audioBytes, 0, len);
+                len = readChannel(audioBuffer);
+                audioBuffer.flip();
             }
+            return len <= 0 ? null : audioEventFromBuffer(audioBuffer);
+        } finally {
+            bufferPool.release(audioBuffer);
+        }
+    }
+
+    private int read(byte[] audioBytes) {
+        return read(audioBytes, 0, audioBytes.length);
+    }
+
+    private int read(byte[] audioBytes, int offset, int length) {
+        try {
+            return inputStream.read(audioBytes, offset, length);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private ByteBuffer nextMappedChunk() {
+        try {
+            return wavFile.nextChunk(chunkSizeInBytes);
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
+    }
 
-        return audioBuffer;
+    private int readChannel(ByteBuffer audioBuffer) {
+        try {
+            if (channel == null) {
+                channel = Channels.newChannel(inputStream);
+            }
+            return channel.read(audioBuffer);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     private AudioEvent audioEventFromBuffer(ByteBuffer bb) {
+        //The chunk is about to join the read-ahead queue
+        metrics.chunkRead(bb.remaining(), prefetched.size() + 1);
+        if (latencyTracker != null) {
+            latencyTracker.chunkRead(bb.remaining());
+        }
         return AudioEvent.builder()
                 .audioChunk(SdkBytes.fromByteBuffer(bb))
                 .build();
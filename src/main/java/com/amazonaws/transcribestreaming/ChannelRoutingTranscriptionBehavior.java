@@ -0,0 +1,128 @@
+/*
+ * Copyright 2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.amazonaws.transcribestreaming;
+
+import software.amazon.awssdk.services.transcribestreaming.model.Result;
+import software.amazon.awssdk.services.transcribestreaming.model.StartStreamTranscriptionResponse;
+import software.amazon.awssdk.services.transcribestreaming.model.Transcript;
+import software.amazon.awssdk.services.transcribestreaming.model.TranscriptEvent;
+import software.amazon.awssdk.services.transcribestreaming.model.TranscriptResultStream;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sends the results of each channel of a stream with channel identification to a behavior of its own, e.g. one
+ * transcript for the agent and one for the customer of a stereo call recording. The service labels results ch_0,
+ * ch_1 and so on, and results of channel n go to the nth behavior. Results without a known channel go to the first.
+ *
+ * An event whose results are all from one channel is passed on as it is. Only an event mixing channels is split into
+ * one event per channel. Responses, errors and completion go to every behavior.
+ */
+public class ChannelRoutingTranscriptionBehavior implements StreamTranscriptionBehavior {
+
+    private static final String CHANNEL_ID_PREFIX = "ch_";
+
+    private final List<StreamTranscriptionBehavior> channels;
+
+    /**
+     * @param channels Behavior for each channel, in channel order
+     */
+    public ChannelRoutingTranscriptionBehavior(List<StreamTranscriptionBehavior> channels) {
+        if (channels.isEmpty()) {
+            throw new IllegalArgumentException("At least one channel is needed");
+        }
+        this.channels = new ArrayList<>(channels);
+    }
+
+    @Override
+    public void onError(Throwable e) {
+        for (StreamTranscriptionBehavior channel : channels) {
+            channel.onError(e);
+        }
+    }
+
+    @Override
+    public void onStream(TranscriptResultStream e) {
+        if (!(e instanceof TranscriptEvent)) {
+            for (StreamTranscriptionBehavior channel : channels) {
+                channel.onStream(e);
+            }
+            return;
+        }
+        List<Result> results = ((TranscriptEvent) e).transcript().results();
+        if (results.isEmpty()) {
+            return;
+        }
+        int first = channelIndex(results.get(0).channelId(), channels.size());
+        boolean mixed = false;
+        for (int i = 1; i < results.size() && !mixed; i++) {
+            mixed = channelIndex(results.get(i).channelId(), channels.size()) != first;
+        }
+        if (!mixed) {
+            channels.get(first).onStream(e);
+            return;
+        }
+        List<List<Result>> split = new ArrayList<>(channels.size());
+        for (int i = 0; i < channels.size(); i++) {
+            split.add(new ArrayList<>());
+        }
+        for (Result result : results) {
+            split.get(channelIndex(result.channelId(), channels.size())).add(result);
+        }
+        for (int i = 0; i < channels.size(); i++) {
+            if (!split.get(i).isEmpty()) {
+                channels.get(i).onStream(((TranscriptEvent) e).toBuilder()
+                        .transcript(Transcript.builder().results(split.get(i)).build())
+                        .build());
+            }
+        }
+    }
+
+    @Override
+    public void onResponse(StartStreamTranscriptionResponse r) {
+        for (StreamTranscriptionBehavior channel : channels) {
+            channel.onResponse(r);
+        }
+    }
+
+    @Override
+    public void onComplete() {
+        for (StreamTranscriptionBehavior channel : channels) {
+            channel.onComplete();
+        }
+    }
+
+    /**
+     * Get the index of a channel from the channel id the service gives its results, such as ch_1
+     * @param channelId Channel id of a result or segment, null if channels are not identified
+     * @param channels Number of channels
+     * @return Index of the channel, 0 if the id is missing or not one of the channels
+     */
+    static int channelIndex(String channelId, int channels) {
+        if (channelId == null || !channelId.startsWith(CHANNEL_ID_PREFIX)) {
+            return 0;
+        }
+        try {
+            int index = Integer.parseInt(channelId.substring(CHANNEL_ID_PREFIX.length()));
+            return index >= 0 && index < channels ? index : 0;
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+}
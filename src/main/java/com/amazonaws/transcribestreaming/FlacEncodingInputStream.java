@@ -0,0 +1,689 @@
+/*
+ * Copyright 2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.amazonaws.transcribestreaming;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Encodes 16-bit little-endian PCM audio into a FLAC stream as it is read, so it can be sent with the FLAC media
+ * encoding. Lossless compression typically halves the bytes uploaded for speech.
+ *
+ * The stream starts with the FLAC marker and a STREAMINFO block, followed by one frame per block of samples. Each
+ * channel of a frame is stored as a constant, verbatim, or as the residual of the best fixed predictor, Rice coded
+ * in partitions. A single read never returns more than one frame, so with a chunk size of at least getMaxFrameSize
+ * every AudioEvent carries exactly one whole frame, and one block of audio.
+ *
+ * A retried stream must start with its own header, so restartStream makes the next read begin a new FLAC stream.
+ * The PCM of the latest blocks is kept, so the new stream can encode again the blocks whose frames were read ahead
+ * but never sent, and a few seconds before them when setReplayBlocks is used. getStreamStartOffsetInBytes tells how
+ * much PCM came before the first block of the current stream, so result times can be moved back onto the audio.
+ *
+ * Frames are encoded into buffers allocated up front, so the stage does not allocate while streaming. The number of
+ * bytes read and written is kept for the compression ratio.
+ */
+public class FlacEncodingInputStream extends FilterInputStream {
+
+    public static final int DEFAULT_BLOCK_SIZE = 1024;
+    private static final int MIN_BLOCK_SIZE = 16;
+    private static final int MAX_BLOCK_SIZE = 65535;
+    private static final int BLOCK_SIZE_ALIGNMENT = 64;
+    private static final int BITS_PER_SAMPLE = 16;
+    private static final int MAX_FIXED_ORDER = 4;
+    private static final int MAX_PARTITION_ORDER = 6;
+    private static final int MAX_RICE_PARAMETER = 14;
+    //Frame header, subframe headers and footer, for up to eight channels
+    private static final int FRAME_OVERHEAD = 32;
+    private static final int STREAM_HEADER_SIZE = 42;
+
+    private static final int[] CRC8_TABLE = new int[256];
+    private static final int[] CRC16_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc8 = i;
+            int crc16 = i << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc8 = (crc8 & 0x80) != 0 ? (crc8 << 1) ^ 0x07 : crc8 << 1;
+                crc16 = (crc16 & 0x8000) != 0 ? (crc16 << 1) ^ 0x8005 : crc16 << 1;
+            }
+            CRC8_TABLE[i] = crc8 & 0xff;
+            CRC16_TABLE[i] = crc16 & 0xffff;
+        }
+    }
+
+    private final AudioFormat format;
+    private final int channels;
+    private final int blockSize;
+    private final byte[] pcm;
+    private final int[][] samples;
+    private final int[] residual;
+    private final long[] partitionSums;
+    private final byte[] frame;
+    private int frameLength = 0;
+    private int framePosition = 0;
+    private long frameNumber = 0;
+    private volatile boolean headerWritten = false;
+    private boolean endOfStream = false;
+    private volatile long bytesIn = 0;
+    private volatile long bytesOut = 0;
+    private byte[][] history = new byte[0][];
+    private int[] historyLengths = new int[0];
+    private int historySize = 0;
+    private int historyNext = 0;
+    private int replayBlocks = 0;
+    private int readAheadBlocks = 0;
+    private int pendingReplay = 0;
+    private long pcmPosition = 0;
+    private volatile long streamStartOffset = 0;
+    private volatile boolean restarted = false;
+
+    //Bit writer state
+    private int bytePosition;
+    private long bitBuffer;
+    private int bitCount;
+
+    /**
+     * @param in Audio to encode
+     * @param format Format of the audio, which must be signed 16-bit little-endian PCM with at most eight channels
+     * @param blockSize Number of samples per channel in each frame
+     */
+    public FlacEncodingInputStream(InputStream in, AudioFormat format, int blockSize) {
+        super(in);
+        if (!AudioFormat.Encoding.PCM_SIGNED.equals(format.getEncoding())
+                || format.getSampleSizeInBits() != BITS_PER_SAMPLE || format.isBigEndian()
+                || format.getChannels() < 1 || format.getChannels() > 8) {
+            throw new IllegalArgumentException("FLAC encoding needs signed 16-bit little-endian PCM, got " + format);
+        }
+        if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("Block size must be between " + MIN_BLOCK_SIZE + " and " + MAX_BLOCK_SIZE);
+        }
+        this.format = format;
+        this.channels = format.getChannels();
+        this.blockSize = blockSize;
+        this.pcm = new byte[blockSize * format.getFrameSize()];
+        this.samples = new int[channels][blockSize];
+        this.residual = new int[blockSize];
+        this.partitionSums = new long[1 << MAX_PARTITION_ORDER];
+        this.frame = new byte[Math.max(STREAM_HEADER_SIZE, getMaxFrameSize(format, blockSize))];
+    }
+
+    /**
+     * Get the largest block size whose frames always fit in one chunk, so each AudioEvent carries a whole frame
+     * @param format Format of the audio to encode
+     * @param chunkSizeInBytes Maximum number of bytes per AudioEvent
+     * @return block size in samples per channel
+     */
+    public static int blockSizeFor(AudioFormat format, int chunkSizeInBytes) {
+        int blockSize = (chunkSizeInBytes - FRAME_OVERHEAD) / format.getFrameSize();
+        blockSize = blockSize / BLOCK_SIZE_ALIGNMENT * BLOCK_SIZE_ALIGNMENT;
+        if (blockSize < MIN_BLOCK_SIZE) {
+            throw new IllegalArgumentException("Chunk size " + chunkSizeInBytes + " is too small for FLAC frames");
+        }
+        return Math.min(blockSize, MAX_BLOCK_SIZE / BLOCK_SIZE_ALIGNMENT * BLOCK_SIZE_ALIGNMENT);
+    }
+
+    /**
+     * Get the size of the largest frame the encoder can write, which is a verbatim frame plus its headers
+     * @param format Format of the audio to encode
+     * @param blockSize Number of samples per channel in each frame
+     * @return frame size in bytes
+     */
+    public static int getMaxFrameSize(AudioFormat format, int blockSize) {
+        return blockSize * format.getFrameSize() + FRAME_OVERHEAD;
+    }
+
+    /**
+     * @return Number of samples per channel in each frame
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * @return Number of PCM bytes encoded so far
+     */
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    /**
+     * @return Number of FLAC bytes written so far, including the stream header
+     */
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    /**
+     * @return PCM bytes encoded per FLAC byte written, e.g. 2.0 when the audio is halved, or 0 before any output
+     */
+    public double getCompressionRatio() {
+        long out = bytesOut;
+        return out == 0 ? 0 : (double) bytesIn / out;
+    }
+
+    /**
+     * Set how many blocks already sent are encoded again when the stream is restarted, so a new session hears the
+     * audio leading up to the failure. Must be called before reading.
+     * @param replayBlocks Number of blocks, or 0 to only send again the blocks that were never sent
+     */
+    public synchronized void setReplayBlocks(int replayBlocks) {
+        if (replayBlocks < 0) {
+            throw new IllegalArgumentException("Replay blocks must not be negative");
+        }
+        this.replayBlocks = replayBlocks;
+        allocateHistory();
+    }
+
+    /**
+     * Set how many frames can be read ahead of what is sent, which is the most a restart has to encode again on top
+     * of the replay blocks. Must be called before reading.
+     * @param readAheadBlocks Number of frames read ahead, such as the prefetch of the subscription
+     */
+    public synchronized void setReadAheadBlocks(int readAheadBlocks) {
+        if (readAheadBlocks < 0) {
+            throw new IllegalArgumentException("Read ahead blocks must not be negative");
+        }
+        this.readAheadBlocks = readAheadBlocks;
+        allocateHistory();
+    }
+
+    /**
+     * Start a new FLAC stream, with its own header and frame numbers, at the next read. Any unread part of the
+     * current frame is dropped. Used when the audio is sent again to a new session after a failure. The stream
+     * begins with the blocks of the frames that were read but not sent, and the replay blocks before them, as far as
+     * they are still kept.
+     * @param unsentFrames Number of frames read from this stream that were never sent
+     */
+    public synchronized void restartStream(int unsentFrames) {
+        pendingReplay = Math.min(historySize, Math.max(0, unsentFrames) + replayBlocks);
+        long replayed = 0;
+        for (int i = 0; i < pendingReplay; i++) {
+            replayed += historyLengths[historyIndex(historySize - 1 - i)];
+        }
+        streamStartOffset = pcmPosition - replayed;
+        restarted = true;
+        headerWritten = false;
+    }
+
+    /**
+     * @return True once the stream has been restarted
+     */
+    public boolean isRestarted() {
+        return restarted;
+    }
+
+    /**
+     * @return Number of PCM bytes before the first block of the current FLAC stream
+     */
+    public long getStreamStartOffsetInBytes() {
+        return streamStartOffset;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fillFrame()) {
+            return -1;
+        }
+        return frame[framePosition++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fillFrame()) {
+            return -1;
+        }
+        int count = Math.min(len, frameLength - framePosition);
+        System.arraycopy(frame, framePosition, b, off, count);
+        framePosition += count;
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n && fillFrame()) {
+            int count = (int) Math.min(n - skipped, frameLength - framePosition);
+            framePosition += count;
+            skipped += count;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return frameLength - framePosition;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    /**
+     * Make sure the current frame has unread bytes, encoding the next block if needed
+     * @return False at the end of the stream
+     */
+    private boolean fillFrame() throws IOException {
+        if (framePosition < frameLength && headerWritten) {
+            return true;
+        }
+        framePosition = 0;
+        frameLength = 0;
+        if (!headerWritten) {
+            headerWritten = true;
+            frameNumber = 0;
+            frameLength = writeStreamHeader();
+        } else if (pendingReplay > 0) {
+            int index = historyIndex(historySize - pendingReplay);
+            int length = historyLengths[index];
+            System.arraycopy(history[index], 0, pcm, 0, length);
+            pendingReplay--;
+            bytesIn += length;
+            frameLength = encodeFrame(length / format.getFrameSize());
+        } else if (!endOfStream) {
+            int length = readBlock();
+            int frameSize = format.getFrameSize();
+            if (length >= frameSize) {
+                length -= length % frameSize;
+                bytesIn += length;
+                pcmPosition += length;
+                keepBlock(length);
+                frameLength = encodeFrame(length / frameSize);
+            }
+        }
+        bytesOut += frameLength;
+        return frameLength > 0;
+    }
+
+    private void allocateHistory() {
+        int capacity = replayBlocks + readAheadBlocks;
+        history = new byte[capacity][pcm.length];
+        historyLengths = new int[capacity];
+        historySize = 0;
+        historyNext = 0;
+    }
+
+    /**
+     * Keep the PCM of the block just read, replacing the oldest one once the history is full
+     */
+    private void keepBlock(int length) {
+        if (history.length == 0) {
+            return;
+        }
+        System.arraycopy(pcm, 0, history[historyNext], 0, length);
+        historyLengths[historyNext] = length;
+        historyNext = (historyNext + 1) % history.length;
+        historySize = Math.min(historySize + 1, history.length);
+    }
+
+    /**
+     * @param age Position in the history, 0 being the oldest block kept
+     * @return Index of the block in the ring
+     */
+    private int historyIndex(int age) {
+        return (historyNext - historySize + age + history.length) % history.length;
+    }
+
+    /**
+     * Read up to a full block, blocking until it is full or the stream ends
+     * @return Number of bytes read
+     */
+    private int readBlock() throws IOException {
+        int length = 0;
+        while (length < pcm.length) {
+            int read = in.read(pcm, length, pcm.length - length);
+            if (read < 0) {
+                endOfStream = true;
+                break;
+            }
+            length += read;
+        }
+        return length;
+    }
+
+    /**
+     * Write the fLaC marker and a STREAMINFO block. The total number of samples and the MD5 signature are not known
+     * while streaming, so they are left as zero, which the format allows.
+     */
+    private int writeStreamHeader() {
+        startBits();
+        writeBits(0x664C6143, 32);
+        //Last metadata block, type STREAMINFO, 34 bytes long
+        writeBits(1, 1);
+        writeBits(0, 7);
+        writeBits(34, 24);
+        writeBits(blockSize, 16);
+        writeBits(blockSize, 16);
+        writeBits(0, 24);
+        writeBits(0, 24);
+        writeBits((int) format.getSampleRate(), 20);
+        writeBits(channels - 1, 3);
+        writeBits(BITS_PER_SAMPLE - 1, 5);
+        writeBits(0, 4);
+        writeBits(0, 32);
+        for (int i = 0; i < 4; i++) {
+            writeBits(0, 32);
+        }
+        return endBits();
+    }
+
+    private int encodeFrame(int count) {
+        int frameSize = format.getFrameSize();
+        for (int i = 0; i < count; i++) {
+            int offset = i * frameSize;
+            for (int channel = 0; channel < channels; channel++) {
+                int index = offset + channel * 2;
+                samples[channel][i] = (short) ((pcm[index + 1] << 8) | (pcm[index] & 0xff));
+            }
+        }
+
+        startBits();
+        writeFrameHeader(count);
+        for (int channel = 0; channel < channels; channel++) {
+            writeSubframe(samples[channel], count);
+        }
+        flushToByte();
+        int crc = crc16(frame, 0, bytePosition);
+        writeBits(crc, 16);
+        frameNumber++;
+        return endBits();
+    }
+
+    private void writeFrameHeader(int count) {
+        int sampleRate = (int) format.getSampleRate();
+        int sampleRateCode = sampleRateCode(sampleRate);
+        //Sync code, reserved bit, fixed block size strategy
+        writeBits(0x3FFE, 14);
+        writeBits(0, 1);
+        writeBits(0, 1);
+        //Block size minus one follows as 16 bits
+        writeBits(0x7, 4);
+        writeBits(sampleRateCode, 4);
+        //Independent channels, 16 bits per sample, reserved bit
+        writeBits(channels - 1, 4);
+        writeBits(0x4, 3);
+        writeBits(0, 1);
+        writeFrameNumber(frameNumber);
+        writeBits(count - 1, 16);
+        if (sampleRateCode == 0xC) {
+            writeBits(sampleRate / 1000, 8);
+        } else if (sampleRateCode == 0xD) {
+            writeBits(sampleRate, 16);
+        } else if (sampleRateCode == 0xE) {
+            writeBits(sampleRate / 10, 16);
+        }
+        flushToByte();
+        writeBits(crc8(frame, 0, bytePosition), 8);
+    }
+
+    /**
+     * Write the frame number in the UTF-8 style coding FLAC uses
+     */
+    private void writeFrameNumber(long number) {
+        if (number < 0x80) {
+            writeBits((int) number, 8);
+            return;
+        }
+        int continuationBytes = 1;
+        while (continuationBytes < 6 && number >= 1L << (5 * continuationBytes + 6)) {
+            continuationBytes++;
+        }
+        int firstBits = 6 - continuationBytes;
+        int lead = (0xFF00 >> (continuationBytes + 1)) & 0xFF;
+        writeBits(lead | (int) (number >>> (6 * continuationBytes)) & ((1 << firstBits) - 1), 8);
+        for (int i = continuationBytes - 1; i >= 0; i--) {
+            writeBits(0x80 | (int) (number >>> (6 * i)) & 0x3F, 8);
+        }
+    }
+
+    private void writeSubframe(int[] x, int count) {
+        boolean constant = true;
+        for (int i = 1; i < count && constant; i++) {
+            constant = x[i] == x[0];
+        }
+        if (constant) {
+            writeBits(0, 8);
+            writeBits(x[0] & 0xFFFF, BITS_PER_SAMPLE);
+            return;
+        }
+
+        int bestOrder = -1;
+        long bestSum = Long.MAX_VALUE;
+        for (int order = 0; order <= Math.min(MAX_FIXED_ORDER, count - 1); order++) {
+            long sum = fixedResidual(x, count, order, false);
+            if (sum < bestSum) {
+                bestSum = sum;
+                bestOrder = order;
+            }
+        }
+        long verbatimBits = (long) count * BITS_PER_SAMPLE;
+        if (bestOrder >= 0) {
+            fixedResidual(x, count, bestOrder, true);
+            int partitionOrder = bestPartitionOrder(count, bestOrder);
+            long riceBits = (long) bestOrder * BITS_PER_SAMPLE + riceBits(count, bestOrder, partitionOrder);
+            if (riceBits < verbatimBits) {
+                writeBits(0x10 | bestOrder << 1, 8);
+                for (int i = 0; i < bestOrder; i++) {
+                    writeBits(x[i] & 0xFFFF, BITS_PER_SAMPLE);
+                }
+                writeResidual(count, bestOrder, partitionOrder);
+                return;
+            }
+        }
+        writeBits(0x02, 8);
+        for (int i = 0; i < count; i++) {
+            writeBits(x[i] & 0xFFFF, BITS_PER_SAMPLE);
+        }
+    }
+
+    /**
+     * Compute the residual of a fixed predictor
+     * @param store True to keep the zig-zag coded residual, false to only sum its magnitude
+     * @return Sum of the absolute residuals
+     */
+    private long fixedResidual(int[] x, int count, int order, boolean store) {
+        long sum = 0;
+        for (int i = order; i < count; i++) {
+            int r;
+            switch (order) {
+                case 0:
+                    r = x[i];
+                    break;
+                case 1:
+                    r = x[i] - x[i - 1];
+                    break;
+                case 2:
+                    r = x[i] - 2 * x[i - 1] + x[i - 2];
+                    break;
+                case 3:
+                    r = x[i] - 3 * x[i - 1] + 3 * x[i - 2] - x[i - 3];
+                    break;
+                default:
+                    r = x[i] - 4 * x[i - 1] + 6 * x[i - 2] - 4 * x[i - 3] + x[i - 4];
+                    break;
+            }
+            if (store) {
+                residual[i] = (r << 1) ^ (r >> 31);
+            }
+            sum += Math.abs(r);
+        }
+        return sum;
+    }
+
+    private int bestPartitionOrder(int count, int order) {
+        int best = 0;
+        long bestBits = Long.MAX_VALUE;
+        for (int partitionOrder = 0; partitionOrder <= MAX_PARTITION_ORDER; partitionOrder++) {
+            if (count % (1 << partitionOrder) != 0 || (count >> partitionOrder) <= order) {
+                break;
+            }
+            long bits = riceBits(count, order, partitionOrder);
+            if (bits < bestBits) {
+                bestBits = bits;
+                best = partitionOrder;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Estimate the bits needed for the residual at a partition order, leaving the sum of each partition in
+     * partitionSums
+     */
+    private long riceBits(int count, int order, int partitionOrder) {
+        int partitions = 1 << partitionOrder;
+        int partitionSize = count >> partitionOrder;
+        long bits = 6;
+        int start = order;
+        for (int p = 0; p < partitions; p++) {
+            int end = (p + 1) * partitionSize;
+            long sum = 0;
+            for (int i = start; i < end; i++) {
+                sum += residual[i];
+            }
+            partitionSums[p] = sum;
+            int n = end - start;
+            int k = riceParameter(sum, n);
+            bits += 4 + (long) n * (k + 1) + (sum >> k);
+            start = end;
+        }
+        return bits;
+    }
+
+    private static int riceParameter(long sum, int n) {
+        int k = 0;
+        while (k < MAX_RICE_PARAMETER && ((long) n << (k + 1)) < sum) {
+            k++;
+        }
+        return k;
+    }
+
+    private void writeResidual(int count, int order, int partitionOrder) {
+        int partitions = 1 << partitionOrder;
+        int partitionSize = count >> partitionOrder;
+        //Rice coding with 4-bit parameters
+        riceBits(count, order, partitionOrder);
+        writeBits(0, 2);
+        writeBits(partitionOrder, 4);
+        int start = order;
+        for (int p = 0; p < partitions; p++) {
+            int end = (p + 1) * partitionSize;
+            int k = riceParameter(partitionSums[p], end - start);
+            writeBits(k, 4);
+            for (int i = start; i < end; i++) {
+                int u = residual[i];
+                int quotient = u >>> k;
+                while (quotient >= 32) {
+                    writeBits(0, 32);
+                    quotient -= 32;
+                }
+                writeBits(1, quotient + 1);
+                if (k > 0) {
+                    writeBits(u & ((1 << k) - 1), k);
+                }
+            }
+            start = end;
+        }
+    }
+
+    private static int sampleRateCode(int sampleRate) {
+        switch (sampleRate) {
+            case 88_200: return 0x1;
+            case 176_400: return 0x2;
+            case 192_000: return 0x3;
+            case 8_000: return 0x4;
+            case 16_000: return 0x5;
+            case 22_050: return 0x6;
+            case 24_000: return 0x7;
+            case 32_000: return 0x8;
+            case 44_100: return 0x9;
+            case 48_000: return 0xA;
+            case 96_000: return 0xB;
+            default:
+                if (sampleRate % 1000 == 0 && sampleRate / 1000 < 256) {
+                    return 0xC;
+                } else if (sampleRate < 65536) {
+                    return 0xD;
+                } else if (sampleRate % 10 == 0 && sampleRate / 10 < 65536) {
+                    return 0xE;
+                }
+                //Taken from STREAMINFO
+                return 0x0;
+        }
+    }
+
+    private void startBits() {
+        bytePosition = 0;
+        bitBuffer = 0;
+        bitCount = 0;
+    }
+
+    /**
+     * Append the low bits of a value, most significant first
+     */
+    private void writeBits(int value, int bits) {
+        bitBuffer = (bitBuffer << bits) | (value & (bits == 32 ? 0xFFFFFFFFL : (1L << bits) - 1));
+        bitCount += bits;
+        while (bitCount >= 8) {
+            bitCount -= 8;
+            frame[bytePosition++] = (byte) (bitBuffer >>> bitCount);
+        }
+    }
+
+    private void flushToByte() {
+        if (bitCount > 0) {
+            writeBits(0, 8 - bitCount);
+        }
+    }
+
+    private int endBits() {
+        flushToByte();
+        return bytePosition;
+    }
+
+    private static int crc8(byte[] data, int offset, int length) {
+        int crc = 0;
+        for (int i = offset; i < offset + length; i++) {
+            crc = CRC8_TABLE[(crc ^ data[i]) & 0xff];
+        }
+        return crc;
+    }
+
+    private static int crc16(byte[] data, int offset, int length) {
+        int crc = 0;
+        for (int i = offset; i < offset + length; i++) {
+            crc = ((crc << 8) ^ CRC16_TABLE[((crc >> 8) ^ data[i]) & 0xff]) & 0xffff;
+        }
+        return crc;
+    }
+}
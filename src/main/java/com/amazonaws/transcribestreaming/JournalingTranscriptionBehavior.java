@@ -0,0 +1,149 @@
+/*
+ * Copyright 2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.amazonaws.transcribestreaming;
+
+import software.amazon.awssdk.services.transcribestreaming.model.Result;
+import software.amazon.awssdk.services.transcribestreaming.model.StartStreamTranscriptionResponse;
+import software.amazon.awssdk.services.transcribestreaming.model.Transcript;
+import software.amazon.awssdk.services.transcribestreaming.model.TranscriptEvent;
+import software.amazon.awssdk.services.transcribestreaming.model.TranscriptResultStream;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records every final segment in a SessionJournal before passing it on, for streams that can be resumed after a
+ * crash. A stream resumed from the journal starts part way into the audio, so the times of its results are moved
+ * forward by the resume time, and results of a channel that end at or before the channel's last journaled final
+ * segment are dropped as repeats.
+ *
+ * After each event with final results the journal also records the offset in the audio data that every channel's
+ * final results have reached. Audio is only counted once it has been transcribed, not when it is read or sent, so a
+ * resumed stream never starts past audio whose results were lost.
+ *
+ * A failure to write the journal is printed and otherwise ignored, so it never fails the transcription itself.
+ */
+public class JournalingTranscriptionBehavior implements StreamTranscriptionBehavior {
+
+    private final StreamTranscriptionBehavior delegate;
+    private final SessionJournal journal;
+    private final double resumeSeconds;
+    private final AudioFormat format;
+    private final Map<String, Double> channelEndTimes;
+    private boolean journalFailed = false;
+
+    /**
+     * @param delegate Behavior to pass the results to
+     * @param journal Journal to record final segments in, and whose recovered segments the stream resumes after
+     * @param resumeSeconds Time in the audio the stream was resumed from, 0 if it starts at the beginning
+     * @param format Format of the original audio data, to turn result times into offsets in it
+     */
+    public JournalingTranscriptionBehavior(StreamTranscriptionBehavior delegate, SessionJournal journal,
+                                           double resumeSeconds, AudioFormat format) {
+        this.delegate = delegate;
+        this.journal = journal;
+        this.resumeSeconds = resumeSeconds;
+        this.format = format;
+        this.channelEndTimes = journal.getChannelEndTimes();
+    }
+
+    @Override
+    public void onError(Throwable e) {
+        delegate.onError(e);
+    }
+
+    @Override
+    public void onStream(TranscriptResultStream e) {
+        TranscriptResultStream event = resumeSeconds == 0 ? e : TranscriptTimes.mapTimes(e, t -> t + resumeSeconds);
+        if (!channelEndTimes.isEmpty()) {
+            event = dropRepeats(event);
+        }
+        boolean finals = false;
+        for (TranscriptUpdate.Segment segment : TranscriptUpdate.from(event).getSegments()) {
+            if (!segment.isPartial()) {
+                record(segment);
+                finals = true;
+            }
+        }
+        if (finals) {
+            recordTranscribed();
+        }
+        delegate.onStream(event);
+    }
+
+    @Override
+    public void onResponse(StartStreamTranscriptionResponse r) {
+        delegate.onResponse(r);
+    }
+
+    @Override
+    public void onComplete() {
+        delegate.onComplete();
+    }
+
+    private TranscriptResultStream dropRepeats(TranscriptResultStream event) {
+        if (!(event instanceof TranscriptEvent)) {
+            return event;
+        }
+        List<Result> results = ((TranscriptEvent) event).transcript().results();
+        List<Result> kept = new ArrayList<>(results.size());
+        for (Result result : results) {
+            Double channelEnd = channelEndTimes.get(result.channelId() == null ? "" : result.channelId());
+            if (channelEnd == null || result.endTime() == null || result.endTime() > channelEnd) {
+                kept.add(result);
+            }
+        }
+        if (kept.size() == results.size()) {
+            return event;
+        }
+        return ((TranscriptEvent) event).toBuilder()
+                .transcript(Transcript.builder().results(kept).build())
+                .build();
+    }
+
+    private synchronized void record(TranscriptUpdate.Segment segment) {
+        if (journalFailed) {
+            return;
+        }
+        try {
+            journal.recordFinalSegment(segment);
+        } catch (IOException | RuntimeException ex) {
+            journalFailed = true;
+            System.out.println("Error writing session journal, the session can no longer be resumed: " + ex);
+        }
+    }
+
+    /**
+     * Record the offset up to which every channel has its final results
+     */
+    private synchronized void recordTranscribed() {
+        if (journalFailed) {
+            return;
+        }
+        long frames = (long) (journal.getResumeSeconds() * format.getFrameRate());
+        try {
+            journal.recordAudioTranscribed(frames * format.getFrameSize());
+        } catch (IOException | RuntimeException ex) {
+            journalFailed = true;
+            System.out.println("Error writing session journal, the session can no longer be resumed: " + ex);
+        }
+    }
+}
@@ -1,12 +1,23 @@
 package com.amazonaws.transcribestreaming;
 
+import java.util.Arrays;
+
 /**
  * Launchar class for Maven Shade Plugin
  * https://github.com/openjfx/samples/tree/master/CommandLine/Non-modular/Maven
  * https://stackoverflow.com/questions/52653836/maven-shade-javafx-runtime-components-are-missing
+ *
+ * Starting with "batch" as the first argument runs the headless BatchTranscriptionApp instead of the GUI, and
+ * "mock-server" runs a MockTranscribeStreamingServer.
  */
 public class Launcher {
-  public static void main(String[] args) {
-    TranscribeStreamingDemoApp.main(args);
+  public static void main(String[] args) throws Exception {
+    if (args.length > 0 && "batch".equals(args[0])) {
+      BatchTranscriptionApp.main(Arrays.copyOfRange(args, 1, args.length));
+    } else if (args.length > 0 && "mock-server".equals(args[0])) {
+      MockTranscribeStreamingServer.main(Arrays.copyOfRange(args, 1, args.length));
+    } else {
+      TranscribeStreamingDemoApp.main(args);
+    }
   }
 }
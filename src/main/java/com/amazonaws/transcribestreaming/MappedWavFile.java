@@ -0,0 +1,293 @@
+/*
+ * Copyright 2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.amazonaws.transcribestreaming;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.LongConsumer;
+
+/**
+ * A PCM WAV file whose header is parsed once and whose audio data is read through memory-mapped windows of the
+ * file. Chunks are handed out as slices of the mapping, so audio goes from the page cache into AudioEvents without
+ * passing through a heap array, and a recording of several gigabytes costs no more heap than a short one.
+ *
+ * Only the data chunk is read, so the RIFF header and any metadata chunks are never sent as audio. The data is mapped
+ * one window at a time, since a single mapping is limited to 2 GB; a window is unmapped once it is no longer
+ * referenced.
+ */
+public class MappedWavFile implements Closeable {
+
+    private static final int WINDOW_SIZE_IN_BYTES = 64 * 1024 * 1024;
+    private static final int RIFF_HEADER_SIZE = 12;
+    private static final int CHUNK_HEADER_SIZE = 8;
+    private static final int WAVE_FORMAT_PCM = 1;
+    private static final int WAVE_FORMAT_EXTENSIBLE = 0xFFFE;
+
+    private final FileChannel channel;
+    private final AudioFormat format;
+    private final long dataOffset;
+    private final long dataLength;
+    private final int windowSize;
+    private MappedByteBuffer window;
+    private long position = 0;
+    private boolean closed = false;
+    private LongConsumer progressListener;
+
+    private MappedWavFile(FileChannel channel, AudioFormat format, long dataOffset, long dataLength) {
+        this.channel = channel;
+        this.format = format;
+        this.dataOffset = dataOffset;
+        this.dataLength = dataLength;
+        //Windows end on a frame boundary, so no chunk is split across two of them
+        this.windowSize = WINDOW_SIZE_IN_BYTES / format.getFrameSize() * format.getFrameSize();
+    }
+
+    /**
+     * Open a WAV file and parse its header
+     * @param path Path of the file
+     * @return the opened file, positioned at the start of the audio data
+     * @throws UnsupportedAudioFileException if the file is not a PCM WAV file
+     * @throws IOException if the file cannot be read
+     */
+    public static MappedWavFile open(Path path) throws UnsupportedAudioFileException, IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            return parse(channel);
+        } catch (UnsupportedAudioFileException | IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static MappedWavFile parse(FileChannel channel) throws UnsupportedAudioFileException, IOException {
+        ByteBuffer header = readAt(channel, 0, RIFF_HEADER_SIZE);
+        if (!"RIFF".equals(fourCC(header, 0)) || !"WAVE".equals(fourCC(header, 8))) {
+            throw new UnsupportedAudioFileException("Not a RIFF WAVE file");
+        }
+
+        AudioFormat format = null;
+        long offset = RIFF_HEADER_SIZE;
+        long fileSize = channel.size();
+        while (offset + CHUNK_HEADER_SIZE <= fileSize) {
+            ByteBuffer chunkHeader = readAt(channel, offset, CHUNK_HEADER_SIZE);
+            String id = fourCC(chunkHeader, 0);
+            long size = Integer.toUnsignedLong(chunkHeader.getInt(4));
+            long bodyOffset = offset + CHUNK_HEADER_SIZE;
+            if ("fmt ".equals(id)) {
+                format = parseFormat(readAt(channel, bodyOffset, (int) Math.min(size, 40)));
+            } else if ("data".equals(id)) {
+                if (format == null) {
+                    throw new UnsupportedAudioFileException("WAV data chunk comes before its fmt chunk");
+                }
+                //Writers that could not seek back set the size to its maximum, so trust the file length instead
+                long dataLength = Math.min(size, fileSize - bodyOffset);
+                dataLength -= dataLength % format.getFrameSize();
+                return new MappedWavFile(channel, format, bodyOffset, dataLength);
+            }
+            //Chunks are padded to an even number of bytes
+            offset = bodyOffset + size + (size & 1);
+        }
+        throw new UnsupportedAudioFileException("WAV file has no data chunk");
+    }
+
+    private static AudioFormat parseFormat(ByteBuffer fmt) throws UnsupportedAudioFileException {
+        if (fmt.remaining() < 16) {
+            throw new UnsupportedAudioFileException("WAV fmt chunk is too short");
+        }
+        int formatTag = Short.toUnsignedInt(fmt.getShort(0));
+        if (formatTag == WAVE_FORMAT_EXTENSIBLE && fmt.remaining() >= 26) {
+            //The first two bytes of the sub-format GUID hold the actual format
+            formatTag = Short.toUnsignedInt(fmt.getShort(24));
+        }
+        if (formatTag != WAVE_FORMAT_PCM) {
+            throw new UnsupportedAudioFileException("Only PCM WAV files are supported, format tag is " + formatTag);
+        }
+        int channels = Short.toUnsignedInt(fmt.getShort(2));
+        int sampleRate = fmt.getInt(4);
+        int blockAlign = Short.toUnsignedInt(fmt.getShort(12));
+        int bitsPerSample = Short.toUnsignedInt(fmt.getShort(14));
+        if (channels == 0 || sampleRate <= 0 || blockAlign == 0) {
+            throw new UnsupportedAudioFileException("Invalid WAV fmt chunk");
+        }
+        //8-bit WAV samples are unsigned, wider ones are signed
+        AudioFormat.Encoding encoding =
+                bitsPerSample == 8 ? AudioFormat.Encoding.PCM_UNSIGNED : AudioFormat.Encoding.PCM_SIGNED;
+        return new AudioFormat(encoding, sampleRate, bitsPerSample, channels, blockAlign, sampleRate, false);
+    }
+
+    private static ByteBuffer readAt(FileChannel channel, long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static String fourCC(ByteBuffer buffer, int index) throws UnsupportedAudioFileException {
+        if (buffer.limit() < index + 4) {
+            throw new UnsupportedAudioFileException("WAV file is truncated");
+        }
+        byte[] id = new byte[4];
+        for (int i = 0; i < 4; i++) {
+            id[i] = buffer.get(index + i);
+        }
+        return new String(id, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Get the next chunk of audio
+     * @param maxBytes Maximum size of the chunk. It is rounded down to whole frames
+     * @return a read-only slice of the mapped file, or null at the end of the audio or once the file is closed
+     * @throws IOException if the file cannot be mapped
+     */
+    public synchronized ByteBuffer nextChunk(int maxBytes) throws IOException {
+        long remaining = dataLength - position;
+        if (closed || remaining <= 0) {
+            return null;
+        }
+        if (window == null || !window.hasRemaining()) {
+            window = channel.map(FileChannel.MapMode.READ_ONLY, dataOffset + position, Math.min(windowSize, remaining));
+        }
+        int frameSize = format.getFrameSize();
+        int length = Math.min(Math.max(frameSize, maxBytes / frameSize * frameSize), window.remaining());
+        ByteBuffer chunk = window.slice(window.position(), length).asReadOnlyBuffer();
+        window.position(window.position() + length);
+        position += length;
+        if (progressListener != null) {
+            progressListener.accept(position);
+        }
+        return chunk;
+    }
+
+    /**
+     * Move to an offset in the audio data, e.g. to resume a session part way into the file. Reading continues from
+     * there, so it should be called before the first chunk is read.
+     * @param offsetInBytes Offset from the start of the audio data, rounded down to a whole frame
+     */
+    public synchronized void seek(long offsetInBytes) {
+        if (offsetInBytes < 0 || offsetInBytes > dataLength) {
+            throw new IllegalArgumentException("Offset " + offsetInBytes + " is outside the audio data");
+        }
+        position = offsetInBytes / format.getFrameSize() * format.getFrameSize();
+        window = null;
+    }
+
+    /**
+     * View the audio data as an input stream, for stages that need one such as SilenceSkippingInputStream. Reading
+     * from the stream moves through the same audio as nextChunk, and closing it closes the file.
+     * @return input stream over the audio data, without the header
+     */
+    public InputStream asInputStream() {
+        return new InputStream() {
+            private ByteBuffer chunk;
+
+            @Override
+            public int read() throws IOException {
+                return nextChunk(1) ? chunk.get() & 0xff : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                if (!nextChunk(len)) {
+                    return -1;
+                }
+                int count = Math.min(len, chunk.remaining());
+                chunk.get(b, off, count);
+                return count;
+            }
+
+            /**
+             * Keep the rest of a chunk for the next read, since chunks are at least a frame long
+             */
+            private boolean nextChunk(int len) throws IOException {
+                if (chunk == null || !chunk.hasRemaining()) {
+                    chunk = MappedWavFile.this.nextChunk(len);
+                }
+                return chunk != null;
+            }
+
+            @Override
+            public void close() throws IOException {
+                MappedWavFile.this.close();
+            }
+        };
+    }
+
+    /**
+     * Set a listener told the number of audio bytes read so far after every chunk, on the thread reading the chunk
+     * @param progressListener listener, or null for none
+     */
+    public synchronized void setProgressListener(LongConsumer progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * @return Format of the audio
+     */
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * @return Length of the audio data in bytes, excluding the header
+     */
+    public long getDataLength() {
+        return dataLength;
+    }
+
+    /**
+     * @return Length of the audio in seconds
+     */
+    public double getDurationSeconds() {
+        return (double) dataLength / format.getFrameSize() / format.getFrameRate();
+    }
+
+    /**
+     * @return Number of audio bytes read so far
+     */
+    public synchronized long getPosition() {
+        return position;
+    }
+
+    /**
+     * Close the file. The audio stream ends after the chunk currently being read.
+     * @throws IOException if the file cannot be closed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        window = null;
+        channel.close();
+    }
+}
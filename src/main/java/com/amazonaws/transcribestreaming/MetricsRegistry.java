@@ -0,0 +1,97 @@
+/*
+ * Copyright 2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.amazonaws.transcribestreaming;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Service provider interface for recording metrics, modelled on the Micrometer MeterRegistry so that an adapter to
+ * Micrometer or any other metrics library is a few lines per meter. Meters are named with dots, e.g.
+ * "transcribe.audio.bytes", and tagged with alternating keys and values.
+ *
+ * Meters are looked up once, when a component is created, and kept. Recording a value on a meter is on the hot path
+ * of the audio stream, so implementations must not allocate or block there.
+ */
+public interface MetricsRegistry {
+
+    /**
+     * @return Registry that records nothing
+     */
+    static MetricsRegistry noop() {
+        return NoopMetricsRegistry.INSTANCE;
+    }
+
+    /**
+     * Get or create a counter
+     * @param name Name of the counter
+     * @param tags Alternating tag keys and values
+     * @return counter
+     */
+    Counter counter(String name, String... tags);
+
+    /**
+     * Get or create a timer
+     * @param name Name of the timer
+     * @param tags Alternating tag keys and values
+     * @return timer
+     */
+    Timer timer(String name, String... tags);
+
+    /**
+     * Get or create a summary of the distribution of recorded amounts
+     * @param name Name of the summary
+     * @param tags Alternating tag keys and values
+     * @return distribution summary
+     */
+    DistributionSummary summary(String name, String... tags);
+
+    /**
+     * Register a gauge, whose value is read from the supplier whenever the registry is read. If a gauge with the
+     * same name and tags is already registered it is kept, and the new supplier is ignored.
+     * @param name Name of the gauge
+     * @param value Supplier of the current value
+     * @param tags Alternating tag keys and values
+     */
+    void gauge(String name, DoubleSupplier value, String... tags);
+
+    /**
+     * A monotonically increasing count
+     */
+    interface Counter {
+        void increment(long amount);
+
+        default void increment() {
+            increment(1);
+        }
+    }
+
+    /**
+     * Records durations
+     */
+    interface Timer {
+        void record(long amount, TimeUnit unit);
+    }
+
+    /**
+     * Records amounts, such as sizes or queue depths
+     */
+    interface DistributionSummary {
+        void record(double amount);
+    }
+}
@@ -0,0 +1,455 @@
+/*
+ * Copyright 2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.amazonaws.transcribestreaming;
+
+import javax.sound.sampled.TargetDataLine;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Audio from a microphone, captured by a thread of its own so the line is drained even when the stream is not read.
+ * Reading a TargetDataLine directly only empties its small buffer when the publisher asks for audio, so a stalled
+ * network stops the reads, the line overruns and the device drops audio without telling anyone.
+ *
+ * The capture thread copies the line into a ring buffer of a configurable depth, which the stream reads from. The
+ * ring has one writer and one reader and no locks: each side only moves its own position, and waits by parking
+ * until the other unparks it. When the ring is full the overflow policy decides what happens:
+ *
+ * DROP_OLDEST keeps the stream live by dropping the oldest audio in the ring. BLOCK stops draining the line until
+ * the reader catches up, leaving the device to drop audio once its own buffer is full, as when the line was read
+ * directly. SPILL_TO_DISK keeps every byte: audio goes to a temporary file until the reader catches up, and from there
+ * back into the ring in order. Audio still in the file when capture stops, or fails, is read from the file after the
+ * ring, before the stream ends. The file is deleted once it has been read to the end, when closing the stream finds
+ * nothing left in it, or when the stream is closed again.
+ *
+ * Overruns are counted both in the ring and on the line, where the line's buffer was found full before a read.
+ * Underruns count reads that had to wait for the microphone, which is how a reader keeping up in real time spends
+ * most of its time; it is the overruns that show the reader falling behind. Both are also recorded in the default
+ * TranscribeStreamingMetrics.
+ */
+public class MicCaptureInputStream extends InputStream {
+
+    public static final int DEFAULT_BUFFER_MILLIS = 5000;
+    private static final int CAPTURE_CHUNK_MILLIS = 20;
+    private static final long WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long CAPTURE_STOP_TIMEOUT_MILLIS = 1000;
+
+    /**
+     * What to do with captured audio when the ring is full
+     */
+    public enum OverflowPolicy {
+        DROP_OLDEST,
+        BLOCK,
+        SPILL_TO_DISK
+    }
+
+    private final TargetDataLine line;
+    private final OverflowPolicy overflowPolicy;
+    private final TranscribeStreamingMetrics metrics;
+    private final byte[] ring;
+    private final int mask;
+    private final int chunkSize;
+    //Total bytes ever written to and read from the ring, so the ring holds writePosition - readPosition bytes. Only the
+    //capture thread moves writePosition; readPosition is moved by the reader, and by DROP_OLDEST, with compareAndSet.
+    private final AtomicLong writePosition = new AtomicLong(0);
+    private final AtomicLong readPosition = new AtomicLong(0);
+    private final Thread captureThread;
+    private volatile Thread waitingReader;
+    private volatile boolean writerWaiting = false;
+    private volatile boolean closed = false;
+    private volatile boolean captureEnded = false;
+    private volatile IOException captureFailure;
+
+    private final AtomicLong lineOverruns = new AtomicLong(0);
+    private final AtomicLong ringOverruns = new AtomicLong(0);
+    private final AtomicLong underruns = new AtomicLong(0);
+    private final AtomicLong droppedBytes = new AtomicLong(0);
+    private final AtomicLong spilledBytes = new AtomicLong(0);
+
+    //Only used by the capture thread until capture ends, then by readers and close() holding the lock of the stream
+    private FileChannel spill;
+    private Path spillPath;
+    private long spillReadPosition = 0;
+    private long spillWritePosition = 0;
+    private boolean overrunReported = false;
+
+    /**
+     * Start capturing from a line that is already open and started
+     * @param line Line to capture from, closed when the stream is closed
+     * @param bufferMillis Depth of the ring in milliseconds of audio, rounded up to a power of two bytes
+     * @param overflowPolicy What to do with captured audio when the ring is full
+     */
+    public MicCaptureInputStream(TargetDataLine line, int bufferMillis, OverflowPolicy overflowPolicy) {
+        if (bufferMillis <= 0) {
+            throw new IllegalArgumentException("Buffer length must be positive");
+        }
+        this.line = line;
+        this.overflowPolicy = overflowPolicy;
+        this.metrics = TranscribeStreamingMetrics.getDefault();
+        int frameSize = line.getFormat().getFrameSize();
+        double bytesPerMilli = frameSize * line.getFormat().getFrameRate() / 1000;
+        this.chunkSize = Math.max(frameSize, (int) (bytesPerMilli * CAPTURE_CHUNK_MILLIS) / frameSize * frameSize);
+        //A power of two is a multiple of every frame size of 16-bit audio, so chunks never wrap mid-frame
+        int capacity = Integer.highestOneBit(Math.max(2 * chunkSize, (int) Math.ceil(bytesPerMilli * bufferMillis)) - 1)
+                << 1;
+        this.ring = new byte[capacity];
+        this.mask = capacity - 1;
+        this.captureThread = new Thread(this::capture, "mic-capture");
+        captureThread.setDaemon(true);
+        captureThread.start();
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    /**
+     * Read audio, waiting until as much as was asked for, up to the depth of the ring, has been captured, as reading
+     * the line directly did
+     */
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int wanted = Math.min(len, ring.length);
+        boolean waited = false;
+        while (true) {
+            long read = readPosition.get();
+            int available = (int) (writePosition.get() - read);
+            if (available >= wanted || (captureEnded && available > 0)) {
+                int count = Math.min(len, available);
+                copyOut(read, b, off, count);
+                //Fails if DROP_OLDEST moved past the bytes while they were copied, so they are read again
+                if (readPosition.compareAndSet(read, read + count)) {
+                    if (writerWaiting) {
+                        LockSupport.unpark(captureThread);
+                    }
+                    return count;
+                }
+                continue;
+            }
+            if (captureEnded) {
+                int count = readSpilled(b, off, len);
+                if (count > 0) {
+                    return count;
+                }
+                if (captureFailure != null) {
+                    throw captureFailure;
+                }
+                return -1;
+            }
+            if (!waited) {
+                waited = true;
+                underruns.incrementAndGet();
+                metrics.micUnderrun();
+            }
+            waitingReader = Thread.currentThread();
+            if (writePosition.get() - readPosition.get() < wanted && !captureEnded) {
+                LockSupport.parkNanos(this, WAIT_NANOS);
+            }
+            waitingReader = null;
+        }
+    }
+
+    @Override
+    public int available() {
+        return (int) (writePosition.get() - readPosition.get());
+    }
+
+    /**
+     * Stop capturing and close the line, waiting for the capture thread to finish. Audio already in the ring or the
+     * spill file can still be read, then the stream ends. The spill file is deleted now if it holds no audio, and
+     * otherwise once the reader reaches the end. Closing the stream once capture has already stopped deletes the
+     * spill file, dropping any audio left in it, so a stream that will not be read to the end should be closed again.
+     */
+    @Override
+    public void close() {
+        if (captureEnded) {
+            closeSpill();
+        }
+        if (!closed) {
+            closed = true;
+            line.stop();
+            line.close();
+            LockSupport.unpark(captureThread);
+            try {
+                captureThread.join(CAPTURE_STOP_TIMEOUT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (captureEnded) {
+                closeSpillIfRead();
+            }
+        }
+    }
+
+    /**
+     * @return Number of times the ring was full when audio was captured
+     */
+    public long getRingOverruns() {
+        return ringOverruns.get();
+    }
+
+    /**
+     * @return Number of times the line's own buffer was full before a read, so the device may have dropped audio
+     */
+    public long getLineOverruns() {
+        return lineOverruns.get();
+    }
+
+    /**
+     * @return Number of reads that had to wait for the microphone
+     */
+    public long getUnderruns() {
+        return underruns.get();
+    }
+
+    /**
+     * @return Number of bytes dropped from the ring by DROP_OLDEST
+     */
+    public long getDroppedBytes() {
+        return droppedBytes.get();
+    }
+
+    /**
+     * @return Number of bytes written to the spill file by SPILL_TO_DISK
+     */
+    public long getSpilledBytes() {
+        return spilledBytes.get();
+    }
+
+    /**
+     * @return Size of the ring in bytes
+     */
+    public int getBufferSize() {
+        return ring.length;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    private void capture() {
+        byte[] chunk = new byte[chunkSize];
+        try {
+            while (!closed) {
+                if (line.available() >= line.getBufferSize()) {
+                    lineOverruns.incrementAndGet();
+                    metrics.micLineOverrun();
+                    reportOverrun("the microphone line's buffer is full");
+                }
+                int count = line.read(chunk, 0, chunk.length);
+                if (count <= 0) {
+                    if (!line.isOpen()) {
+                        break;
+                    }
+                    continue;
+                }
+                write(chunk, count);
+            }
+        } catch (IOException | RuntimeException e) {
+            captureFailure = e instanceof IOException ? (IOException) e : new IOException(e);
+        } finally {
+            //The spill file is left open for the reader
+            captureEnded = true;
+            Thread reader = waitingReader;
+            if (reader != null) {
+                LockSupport.unpark(reader);
+            }
+        }
+    }
+
+    private void write(byte[] chunk, int count) throws IOException {
+        if (spill != null) {
+            //Audio already spilled is older, so everything goes through the spill file until it is empty
+            spill(chunk, count);
+            drainSpill();
+            return;
+        }
+        long write = writePosition.get();
+        if (ring.length - (write - readPosition.get()) < count) {
+            ringOverruns.incrementAndGet();
+            metrics.micRingOverrun();
+            reportOverrun("the ring of " + ring.length + " bytes is full, " + overflowPolicy);
+            if (overflowPolicy == OverflowPolicy.SPILL_TO_DISK && openSpill()) {
+                spill(chunk, count);
+                return;
+            } else if (overflowPolicy == OverflowPolicy.BLOCK) {
+                writerWaiting = true;
+                while (!closed && ring.length - (write - readPosition.get()) < count) {
+                    LockSupport.parkNanos(this, WAIT_NANOS);
+                }
+                writerWaiting = false;
+                if (closed) {
+                    return;
+                }
+            } else {
+                dropOldest(write + count - ring.length);
+            }
+        }
+        copyIn(chunk, 0, count, write);
+        publish(write + count);
+    }
+
+    /**
+     * Move the read position up to a position, unless the reader already passed it
+     */
+    private void dropOldest(long position) {
+        while (true) {
+            long read = readPosition.get();
+            if (read >= position) {
+                return;
+            }
+            if (readPosition.compareAndSet(read, position)) {
+                droppedBytes.addAndGet(position - read);
+                metrics.micDropped(position - read);
+                return;
+            }
+        }
+    }
+
+    private void publish(long position) {
+        writePosition.set(position);
+        Thread reader = waitingReader;
+        if (reader != null) {
+            LockSupport.unpark(reader);
+        }
+    }
+
+    private void copyIn(byte[] source, int offset, int count, long position) {
+        int start = (int) (position & mask);
+        int first = Math.min(count, ring.length - start);
+        System.arraycopy(source, offset, ring, start, first);
+        System.arraycopy(source, offset + first, ring, 0, count - first);
+    }
+
+    private void copyOut(long position, byte[] target, int offset, int count) {
+        int start = (int) (position & mask);
+        int first = Math.min(count, ring.length - start);
+        System.arraycopy(ring, start, target, offset, first);
+        System.arraycopy(ring, 0, target, offset + first, count - first);
+    }
+
+    /**
+     * @return True if the spill file is open, false if it cannot be created and the oldest audio was dropped instead
+     */
+    private boolean openSpill() {
+        try {
+            spillPath = Files.createTempFile("mic-capture-", ".pcm");
+            spill = FileChannel.open(spillPath, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE);
+            spillReadPosition = 0;
+            spillWritePosition = 0;
+            return true;
+        } catch (IOException e) {
+            System.out.println("Cannot create microphone spill file, dropping audio instead: " + e);
+            dropOldest(writePosition.get() + chunkSize - ring.length);
+            return false;
+        }
+    }
+
+    private void spill(byte[] chunk, int count) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, count);
+        while (buffer.hasRemaining()) {
+            spillWritePosition += spill.write(buffer, spillWritePosition);
+        }
+        spilledBytes.addAndGet(count);
+        metrics.micSpilled(count);
+    }
+
+    /**
+     * Move as much spilled audio back into the ring as fits, and close the spill file once it is empty
+     */
+    private void drainSpill() throws IOException {
+        long write = writePosition.get();
+        int frameSize = line.getFormat().getFrameSize();
+        long free = ring.length - (write - readPosition.get());
+        int count = (int) (Math.min(free, spillWritePosition - spillReadPosition) / frameSize * frameSize);
+        if (count > 0) {
+            int start = (int) (write & mask);
+            int first = Math.min(count, ring.length - start);
+            readSpill(ByteBuffer.wrap(ring, start, first));
+            readSpill(ByteBuffer.wrap(ring, 0, count - first));
+            publish(write + count);
+        }
+        if (spillReadPosition == spillWritePosition) {
+            closeSpill();
+        }
+    }
+
+    private void readSpill(ByteBuffer target) throws IOException {
+        while (target.hasRemaining()) {
+            int count = spill.read(target, spillReadPosition);
+            if (count < 0) {
+                throw new IOException("Microphone spill file " + spillPath + " is truncated");
+            }
+            spillReadPosition += count;
+        }
+    }
+
+    /**
+     * Read audio left in the spill file once capture has ended, deleting the file once it has all been read
+     * @return Number of bytes read, 0 if there is none left
+     */
+    private synchronized int readSpilled(byte[] b, int off, int len) throws IOException {
+        if (spill == null) {
+            return 0;
+        }
+        int count = (int) Math.min(len, spillWritePosition - spillReadPosition);
+        readSpill(ByteBuffer.wrap(b, off, count));
+        if (spillReadPosition == spillWritePosition) {
+            closeSpill();
+        }
+        return count;
+    }
+
+    private synchronized void closeSpillIfRead() {
+        if (spill != null && spillReadPosition == spillWritePosition) {
+            closeSpill();
+        }
+    }
+
+    private synchronized void closeSpill() {
+        if (spill != null) {
+            try {
+                spill.close();
+            } catch (IOException e) {
+                System.out.println("Error deleting microphone spill file " + spillPath + ": " + e);
+            }
+            spill = null;
+        }
+    }
+
+    private void reportOverrun(String reason) {
+        if (!overrunReported) {
+            overrunReported = true;
+            System.out.println("Microphone capture is falling behind, " + reason);
+        }
+    }
+}
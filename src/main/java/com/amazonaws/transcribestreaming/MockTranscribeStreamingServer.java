@@ -0,0 +1,678 @@
+/*
+ * Copyright 2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.amazonaws.transcribestreaming;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http2.DefaultHttp2DataFrame;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.DefaultHttp2HeadersFrame;
+import io.netty.handler.codec.http2.DefaultHttp2ResetFrame;
+import io.netty.handler.codec.http2.Http2DataFrame;
+import io.netty.handler.codec.http2.Http2Error;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.codec.http2.Http2HeadersFrame;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.util.ReferenceCountUtil;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * In-process stand-in for the Transcribe streaming endpoint, for load and soak testing the client without AWS. It
+ * accepts StartStreamTranscription calls over cleartext HTTP/2, reads the AudioEvents of each stream, and answers
+ * with synthetic partial and final TranscriptEvents whose times follow the audio received.
+ *
+ * Errors can be injected at configurable rates: throttling and BadRequestException when a stream starts, and
+ * resets part way through a stream. Requests are not authenticated, so any credentials work.
+ *
+ * Every stream is handled on a Netty event loop and results are scheduled rather than slept on, so a single process
+ * can hold thousands of concurrent streams. Point a client at getEndpoint(), e.g. through the batch mode's
+ * --endpoint option, or run it on its own with "mock-server".
+ */
+public class MockTranscribeStreamingServer implements AutoCloseable {
+
+    private static final int DEFAULT_PORT = 8443;
+    private static final long DEFAULT_RESULT_LATENCY_MILLIS = 200;
+    private static final double DEFAULT_PARTIAL_INTERVAL_SECONDS = 0.5;
+    private static final double DEFAULT_SEGMENT_SECONDS = 3.0;
+    private static final double MAX_RESET_AUDIO_SECONDS = 30;
+    private static final double WORD_SECONDS = 0.4;
+    private static final int DEFAULT_SAMPLE_RATE = 16_000;
+    private static final int BYTES_PER_PCM_SAMPLE = 2;
+    //Prelude of the two lengths and their checksum, then the checksum of the whole message
+    private static final int PRELUDE_LENGTH = 12;
+    private static final int MIN_MESSAGE_LENGTH = PRELUDE_LENGTH + 4;
+    private static final int MAX_MESSAGE_LENGTH = 16 * 1024 * 1024;
+    private static final String[] WORDS = {
+            "the", "quick", "brown", "fox", "jumps", "over", "a", "lazy", "dog", "while", "it", "rains"};
+
+    private long resultLatencyMillis = DEFAULT_RESULT_LATENCY_MILLIS;
+    private double partialIntervalSeconds = DEFAULT_PARTIAL_INTERVAL_SECONDS;
+    private double segmentSeconds = DEFAULT_SEGMENT_SECONDS;
+    private double throttleRate = 0;
+    private double badRequestRate = 0;
+    private double streamResetRate = 0;
+
+    private final AtomicInteger activeStreams = new AtomicInteger();
+    private final AtomicLong totalStreams = new AtomicLong();
+    private final AtomicLong injectedErrors = new AtomicLong();
+    private final AtomicLong audioBytesReceived = new AtomicLong();
+    private EventLoopGroup bossGroup;
+    private EventLoopGroup workerGroup;
+    private Channel serverChannel;
+
+    public static void main(String[] args) throws Exception {
+        int port = DEFAULT_PORT;
+        MockTranscribeStreamingServer server = new MockTranscribeStreamingServer();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--port":
+                    port = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--latency":
+                    server.setResultLatencyMillis(Long.parseLong(args[i + 1]));
+                    break;
+                case "--throttle-rate":
+                    server.setThrottleRate(Double.parseDouble(args[i + 1]));
+                    break;
+                case "--bad-request-rate":
+                    server.setBadRequestRate(Double.parseDouble(args[i + 1]));
+                    break;
+                case "--reset-rate":
+                    server.setStreamResetRate(Double.parseDouble(args[i + 1]));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        server.start(port);
+        System.out.println("Mock Transcribe streaming endpoint listening on " + server.getEndpoint());
+        while (true) {
+            Thread.sleep(10_000);
+            System.out.println(String.format("Streams: %d active, %d total, %d errors injected, %d MB audio received",
+                    server.getActiveStreams(), server.getTotalStreams(), server.getInjectedErrors(),
+                    server.getAudioBytesReceived() / (1024 * 1024)));
+        }
+    }
+
+    /**
+     * Start listening
+     * @param port Port to listen on, or 0 to pick a free port
+     * @return the port the server listens on
+     * @throws InterruptedException if interrupted while binding
+     */
+    public synchronized int start(int port) throws InterruptedException {
+        if (serverChannel != null) {
+            throw new IllegalStateException("Server is already started");
+        }
+        bossGroup = new NioEventLoopGroup(1);
+        workerGroup = new NioEventLoopGroup();
+        serverChannel = new ServerBootstrap()
+                .group(bossGroup, workerGroup)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(
+                                Http2FrameCodecBuilder.forServer().build(),
+                                new Http2MultiplexHandler(new ChannelInitializer<Channel>() {
+                                    @Override
+                                    protected void initChannel(Channel stream) {
+                                        stream.pipeline().addLast(new StreamHandler());
+                                    }
+                                }));
+                    }
+                })
+                .bind(port)
+                .sync()
+                .channel();
+        return getPort();
+    }
+
+    /**
+     * @return the port the server listens on
+     */
+    public synchronized int getPort() {
+        if (serverChannel == null) {
+            throw new IllegalStateException("Server is not started");
+        }
+        return ((InetSocketAddress) serverChannel.localAddress()).getPort();
+    }
+
+    /**
+     * @return Endpoint URI to give to the client, e.g. http://localhost:8443
+     */
+    public String getEndpoint() {
+        return "http://localhost:" + getPort();
+    }
+
+    /**
+     * Stop listening and drop all open streams
+     */
+    @Override
+    public synchronized void close() {
+        if (serverChannel == null) {
+            return;
+        }
+        serverChannel.close().syncUninterruptibly();
+        bossGroup.shutdownGracefully(0, 0, TimeUnit.MILLISECONDS);
+        workerGroup.shutdownGracefully(0, 0, TimeUnit.MILLISECONDS);
+        serverChannel = null;
+    }
+
+    /**
+     * Get result latency
+     * @return Delay in milliseconds between receiving audio and sending its results
+     */
+    public long getResultLatencyMillis() {
+        return resultLatencyMillis;
+    }
+
+    /**
+     * Set the delay between receiving audio and sending the results for it
+     * @param resultLatencyMillis Delay in milliseconds
+     */
+    public void setResultLatencyMillis(long resultLatencyMillis) {
+        if (resultLatencyMillis < 0) {
+            throw new IllegalArgumentException("Result latency must not be negative");
+        }
+        this.resultLatencyMillis = resultLatencyMillis;
+    }
+
+    /**
+     * Get partial interval
+     * @return Seconds of audio between partial results
+     */
+    public double getPartialIntervalSeconds() {
+        return partialIntervalSeconds;
+    }
+
+    /**
+     * Set how often a partial result is sent for the current segment
+     * @param partialIntervalSeconds Seconds of audio between partial results
+     */
+    public void setPartialIntervalSeconds(double partialIntervalSeconds) {
+        if (partialIntervalSeconds <= 0) {
+            throw new IllegalArgumentException("Partial interval must be positive");
+        }
+        this.partialIntervalSeconds = partialIntervalSeconds;
+    }
+
+    /**
+     * Get segment length
+     * @return Seconds of audio in each final result
+     */
+    public double getSegmentSeconds() {
+        return segmentSeconds;
+    }
+
+    /**
+     * Set how much audio each final result covers
+     * @param segmentSeconds Seconds of audio in each final result
+     */
+    public void setSegmentSeconds(double segmentSeconds) {
+        if (segmentSeconds <= 0) {
+            throw new IllegalArgumentException("Segment length must be positive");
+        }
+        this.segmentSeconds = segmentSeconds;
+    }
+
+    /**
+     * Get throttle rate
+     * @return Fraction of streams refused with LimitExceededException
+     */
+    public double getThrottleRate() {
+        return throttleRate;
+    }
+
+    /**
+     * Set the fraction of streams that are refused with LimitExceededException, which clients retry
+     * @param throttleRate Fraction between 0 and 1
+     */
+    public void setThrottleRate(double throttleRate) {
+        this.throttleRate = checkRate(throttleRate);
+    }
+
+    /**
+     * Get bad request rate
+     * @return Fraction of streams refused with BadRequestException
+     */
+    public double getBadRequestRate() {
+        return badRequestRate;
+    }
+
+    /**
+     * Set the fraction of streams that are refused with BadRequestException, which clients do not retry
+     * @param badRequestRate Fraction between 0 and 1
+     */
+    public void setBadRequestRate(double badRequestRate) {
+        this.badRequestRate = checkRate(badRequestRate);
+    }
+
+    /**
+     * Get stream reset rate
+     * @return Fraction of streams reset part way through
+     */
+    public double getStreamResetRate() {
+        return streamResetRate;
+    }
+
+    /**
+     * Set the fraction of streams that the server resets after a random amount of audio, up to 30 seconds
+     * @param streamResetRate Fraction between 0 and 1
+     */
+    public void setStreamResetRate(double streamResetRate) {
+        this.streamResetRate = checkRate(streamResetRate);
+    }
+
+    /**
+     * @return Number of streams currently open
+     */
+    public int getActiveStreams() {
+        return activeStreams.get();
+    }
+
+    /**
+     * @return Number of streams started since the server started
+     */
+    public long getTotalStreams() {
+        return totalStreams.get();
+    }
+
+    /**
+     * @return Number of errors injected since the server started
+     */
+    public long getInjectedErrors() {
+        return injectedErrors.get();
+    }
+
+    /**
+     * @return Bytes of audio received since the server started
+     */
+    public long getAudioBytesReceived() {
+        return audioBytesReceived.get();
+    }
+
+    private static double checkRate(double rate) {
+        if (rate < 0 || rate > 1) {
+            throw new IllegalArgumentException("Rate must be between 0 and 1");
+        }
+        return rate;
+    }
+
+    /**
+     * Handles one StartStreamTranscription call, on the HTTP/2 stream's child channel
+     */
+    private class StreamHandler extends ChannelInboundHandlerAdapter {
+        private final String resultIdPrefix = UUID.randomUUID().toString();
+        private ByteBuf pending;
+        private boolean open = false;
+        private long bytesPerSecond = DEFAULT_SAMPLE_RATE * BYTES_PER_PCM_SAMPLE;
+        private double resetAtSeconds = Double.MAX_VALUE;
+        private long audioBytes = 0;
+        private double segmentStartSeconds = 0;
+        private double lastPartialSeconds = 0;
+        private int segmentIndex = 0;
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            try {
+                if (msg instanceof Http2HeadersFrame) {
+                    onHeaders(ctx, ((Http2HeadersFrame) msg).headers());
+                } else if (msg instanceof Http2DataFrame) {
+                    Http2DataFrame data = (Http2DataFrame) msg;
+                    if (open) {
+                        onData(ctx, data.content());
+                        if (data.isEndStream()) {
+                            finish(ctx);
+                        }
+                    }
+                }
+            } finally {
+                ReferenceCountUtil.release(msg);
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            if (open) {
+                open = false;
+                activeStreams.decrementAndGet();
+            }
+            if (pending != null) {
+                pending.release();
+                pending = null;
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            System.out.println("Mock stream failed: " + cause);
+            ctx.close();
+        }
+
+        private void onHeaders(ChannelHandlerContext ctx, Http2Headers requestHeaders) {
+            totalStreams.incrementAndGet();
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            if (random.nextDouble() < throttleRate) {
+                sendError(ctx, 429, "LimitExceededException", "Mock throttling");
+                return;
+            }
+            if (random.nextDouble() < badRequestRate) {
+                sendError(ctx, 400, "BadRequestException", "Mock bad request");
+                return;
+            }
+            if (random.nextDouble() < streamResetRate) {
+                resetAtSeconds = random.nextDouble() * MAX_RESET_AUDIO_SECONDS;
+            }
+
+            CharSequence sampleRate = requestHeaders.get("x-amzn-transcribe-sample-rate");
+            if (sampleRate != null) {
+                bytesPerSecond = Long.parseLong(sampleRate.toString()) * BYTES_PER_PCM_SAMPLE;
+            }
+            CharSequence channels = requestHeaders.get("x-amzn-transcribe-number-of-channels");
+            if (channels != null) {
+                bytesPerSecond *= Long.parseLong(channels.toString());
+            }
+            CharSequence sessionId = requestHeaders.get("x-amzn-transcribe-session-id");
+            Http2Headers headers = new DefaultHttp2Headers()
+                    .status("200")
+                    .set("content-type", "application/vnd.amazon.eventstream")
+                    .set("x-amzn-request-id", UUID.randomUUID().toString())
+                    .set("x-amzn-transcribe-session-id",
+                            sessionId != null ? sessionId : UUID.randomUUID().toString());
+            for (String name : new String[] {"x-amzn-transcribe-language-code", "x-amzn-transcribe-sample-rate",
+                    "x-amzn-transcribe-media-encoding", "x-amzn-transcribe-enable-channel-identification",
+                    "x-amzn-transcribe-number-of-channels"}) {
+                CharSequence value = requestHeaders.get(name);
+                if (value != null) {
+                    headers.set(name, value);
+                }
+            }
+            ctx.writeAndFlush(new DefaultHttp2HeadersFrame(headers, false));
+            pending = ctx.alloc().buffer();
+            open = true;
+            activeStreams.incrementAndGet();
+        }
+
+        private void sendError(ChannelHandlerContext ctx, int status, String errorType, String message) {
+            injectedErrors.incrementAndGet();
+            Http2Headers headers = new DefaultHttp2Headers()
+                    .status(Integer.toString(status))
+                    .set("content-type", "application/x-amz-json-1.1")
+                    .set("x-amzn-errortype", errorType + ":")
+                    .set("x-amzn-request-id", UUID.randomUUID().toString());
+            ctx.write(new DefaultHttp2HeadersFrame(headers, false));
+            ctx.writeAndFlush(new DefaultHttp2DataFrame(Unpooled.copiedBuffer(
+                    "{\"Message\":\"" + message + "\"}", StandardCharsets.UTF_8), true));
+        }
+
+        /**
+         * Decode every complete event stream message received so far
+         */
+        private void onData(ChannelHandlerContext ctx, ByteBuf content) {
+            pending.writeBytes(content);
+            while (open && pending.readableBytes() >= PRELUDE_LENGTH) {
+                if (!isValidPrelude(pending, pending.readerIndex(), pending.readableBytes())) {
+                    reject(ctx);
+                    break;
+                }
+                int totalLength = pending.getInt(pending.readerIndex());
+                if (pending.readableBytes() < totalLength) {
+                    break;
+                }
+                onMessage(ctx, pending, pending.readerIndex(), totalLength);
+                pending.skipBytes(totalLength);
+            }
+            if (pending != null) {
+                pending.discardSomeReadBytes();
+            }
+        }
+
+        /**
+         * Handle one message. Signed messages wrap the AudioEvent message in their payload, and an empty signed
+         * message marks the end of the audio.
+         */
+        private void onMessage(ChannelHandlerContext ctx, ByteBuf buffer, int offset, int totalLength) {
+            int headersLength = buffer.getInt(offset + 4);
+            int payloadOffset = offset + 12 + headersLength;
+            int payloadLength = totalLength - 16 - headersLength;
+            String eventType = readEventType(buffer, offset + 12, payloadOffset);
+            if (eventType == null) {
+                if (payloadLength == 0) {
+                    finish(ctx);
+                } else if (!isValidPrelude(buffer, payloadOffset, payloadLength)
+                        || buffer.getInt(payloadOffset) > payloadLength) {
+                    reject(ctx);
+                } else {
+                    onMessage(ctx, buffer, payloadOffset, buffer.getInt(payloadOffset));
+                }
+            } else if ("AudioEvent".equals(eventType)) {
+                onAudio(ctx, payloadLength);
+            }
+        }
+
+        private void onAudio(ChannelHandlerContext ctx, int length) {
+            audioBytes += length;
+            audioBytesReceived.addAndGet(length);
+            double audioSeconds = (double) audioBytes / bytesPerSecond;
+            if (audioSeconds >= resetAtSeconds) {
+                injectedErrors.incrementAndGet();
+                open = false;
+                activeStreams.decrementAndGet();
+                ctx.writeAndFlush(new DefaultHttp2ResetFrame(Http2Error.INTERNAL_ERROR));
+                return;
+            }
+            while (audioSeconds - segmentStartSeconds >= segmentSeconds) {
+                sendResult(ctx, segmentStartSeconds + segmentSeconds, false);
+            }
+            if (audioSeconds - lastPartialSeconds >= partialIntervalSeconds) {
+                sendResult(ctx, audioSeconds, true);
+            }
+        }
+
+        /**
+         * Reset a stream whose framing cannot be read. Waiting for a message of an impossible length, or reading on
+         * past a corrupt prelude, would leave it stuck.
+         */
+        private void reject(ChannelHandlerContext ctx) {
+            System.out.println("Mock stream sent a malformed event stream message, resetting it");
+            open = false;
+            activeStreams.decrementAndGet();
+            ctx.writeAndFlush(new DefaultHttp2ResetFrame(Http2Error.PROTOCOL_ERROR));
+        }
+
+        private void finish(ChannelHandlerContext ctx) {
+            if (!open) {
+                return;
+            }
+            double audioSeconds = (double) audioBytes / bytesPerSecond;
+            if (audioSeconds > segmentStartSeconds) {
+                sendResult(ctx, audioSeconds, false);
+            }
+            open = false;
+            activeStreams.decrementAndGet();
+            ctx.channel().eventLoop().schedule(() -> {
+                ctx.writeAndFlush(new DefaultHttp2DataFrame(true));
+            }, resultLatencyMillis, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Send a result for the current segment up to endSeconds, after the configured latency. A final result
+         * moves on to the next segment.
+         */
+        private void sendResult(ChannelHandlerContext ctx, double endSeconds, boolean partial) {
+            byte[] payload = transcriptJson(resultIdPrefix + "-" + segmentIndex, segmentStartSeconds, endSeconds,
+                    partial).getBytes(StandardCharsets.UTF_8);
+            lastPartialSeconds = endSeconds;
+            if (!partial) {
+                segmentStartSeconds = endSeconds;
+                segmentIndex++;
+            }
+            Map<String, String> headers = new LinkedHashMap<>();
+            headers.put(":message-type", "event");
+            headers.put(":event-type", "TranscriptEvent");
+            headers.put(":content-type", "application/json");
+            ctx.channel().eventLoop().schedule(() -> {
+                if (ctx.channel().isActive()) {
+                    ctx.writeAndFlush(new DefaultHttp2DataFrame(encodeMessage(ctx.alloc(), headers, payload)));
+                }
+            }, resultLatencyMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Synthetic TranscriptEvent payload with one word per WORD_SECONDS of audio
+     */
+    private static String transcriptJson(String resultId, double startSeconds, double endSeconds, boolean partial) {
+        StringBuilder transcript = new StringBuilder();
+        StringBuilder items = new StringBuilder();
+        for (double wordStart = startSeconds; wordStart + WORD_SECONDS <= endSeconds; wordStart += WORD_SECONDS) {
+            String word = WORDS[(int) Math.round(wordStart / WORD_SECONDS) % WORDS.length];
+            if (transcript.length() > 0) {
+                transcript.append(' ');
+                items.append(',');
+            }
+            transcript.append(word);
+            items.append(String.format(Locale.ROOT, "{\"StartTime\":%.3f,\"EndTime\":%.3f,\"Type\":\"pronunciation\","
+                    + "\"Content\":\"%s\"}", wordStart, wordStart + WORD_SECONDS, word));
+        }
+        return String.format(Locale.ROOT, "{\"Transcript\":{\"Results\":[{\"ResultId\":\"%s\",\"StartTime\":%.3f,"
+                        + "\"EndTime\":%.3f,\"IsPartial\":%b,\"Alternatives\":[{\"Transcript\":\"%s\","
+                        + "\"Items\":[%s]}]}]}}",
+                resultId, startSeconds, endSeconds, partial, transcript, items);
+    }
+
+    /**
+     * Encode an event stream message: a prelude with the lengths and its checksum, string headers, the payload and a
+     * checksum of the whole message
+     */
+    private static ByteBuf encodeMessage(ByteBufAllocator alloc, Map<String, String> headers, byte[] payload) {
+        int headersLength = 0;
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            headersLength += 4 + header.getKey().length() + header.getValue().length();
+        }
+        int totalLength = 16 + headersLength + payload.length;
+        ByteBuf buffer = alloc.buffer(totalLength);
+        buffer.writeInt(totalLength);
+        buffer.writeInt(headersLength);
+        buffer.writeInt(crc32(buffer, 0, 8));
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            buffer.writeByte(header.getKey().length());
+            buffer.writeCharSequence(header.getKey(), StandardCharsets.US_ASCII);
+            buffer.writeByte(7);
+            buffer.writeShort(header.getValue().length());
+            buffer.writeCharSequence(header.getValue(), StandardCharsets.US_ASCII);
+        }
+        buffer.writeBytes(payload);
+        buffer.writeInt(crc32(buffer, 0, totalLength - 4));
+        return buffer;
+    }
+
+    /**
+     * Check the prelude of a message: its checksum, and lengths that leave room for the headers and the message
+     * checksum
+     * @param available Number of bytes from offset that belong to the stream, at least PRELUDE_LENGTH
+     */
+    private static boolean isValidPrelude(ByteBuf buffer, int offset, int available) {
+        if (available < PRELUDE_LENGTH) {
+            return false;
+        }
+        int totalLength = buffer.getInt(offset);
+        int headersLength = buffer.getInt(offset + 4);
+        return totalLength >= MIN_MESSAGE_LENGTH && totalLength <= MAX_MESSAGE_LENGTH
+                && headersLength >= 0 && headersLength <= totalLength - MIN_MESSAGE_LENGTH
+                && buffer.getInt(offset + 8) == crc32(buffer, offset, 8);
+    }
+
+    private static int crc32(ByteBuf buffer, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(buffer.nioBuffer(offset, length));
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Find the :event-type header, skipping headers of every other name and type
+     * @return the event type, or null if the message has none
+     */
+    private static String readEventType(ByteBuf buffer, int offset, int end) {
+        while (offset < end) {
+            int nameLength = buffer.getUnsignedByte(offset);
+            String name = buffer.toString(offset + 1, nameLength, StandardCharsets.US_ASCII);
+            offset += 1 + nameLength;
+            int type = buffer.getUnsignedByte(offset++);
+            int valueLength;
+            switch (type) {
+                case 0:
+                case 1:
+                    valueLength = 0;
+                    break;
+                case 2:
+                    valueLength = 1;
+                    break;
+                case 3:
+                    valueLength = 2;
+                    break;
+                case 4:
+                    valueLength = 4;
+                    break;
+                case 5:
+                case 8:
+                    valueLength = 8;
+                    break;
+                case 9:
+                    valueLength = 16;
+                    break;
+                case 6:
+                case 7:
+                    valueLength = buffer.getUnsignedShort(offset);
+                    offset += 2;
+                    if (type == 7 && ":event-type".equals(name)) {
+                        return buffer.toString(offset, valueLength, StandardCharsets.UTF_8);
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown event stream header type: " + type);
+            }
+            offset += valueLength;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.amazonaws.transcribestreaming;
+
+import java.util.function.DoubleSupplier;
+
+/**
+ * Metrics registry whose meters do nothing, used when no registry is configured
+ */
+final class NoopMetricsRegistry implements MetricsRegistry {
+
+    static final NoopMetricsRegistry INSTANCE = new NoopMetricsRegistry();
+
+    private static final Counter COUNTER = amount -> { };
+    private static final Timer TIMER = (amount, unit) -> { };
+    private static final DistributionSummary SUMMARY = amount -> { };
+
+    private NoopMetricsRegistry() {
+    }
+
+    @Override
+    public Counter counter(String name, String... tags) {
+        return COUNTER;
+    }
+
+    @Override
+    public Timer timer(String name, String... tags) {
+        return TIMER;
+    }
+
+    @Override
+    public DistributionSummary summary(String name, String... tags) {
+        return SUMMARY;
+    }
+
+    @Override
+    public void gauge(String name, DoubleSupplier value, String... tags) {
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.amazonaws.transcribestreaming;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Picks the words out of partial results that are unlikely to change, so they can be shown, captioned or acted on
+ * before the segment is final, and emits each of them once.
+ *
+ * A word is stable once it has been the same, at the same time and with everything before it unchanged, in a number
+ * of partial results in a row, or as soon as the service marks it stable when partial results stabilization is on.
+ * Each partial result is only compared with the one before it, so an update costs time in the number of its words and
+ * allocates nothing when no word settles. The final result emits whatever has not been emitted yet.
+ *
+ * The service keeps at most one segment open per channel, so only the latest segment of each channel is tracked.
+ * Words emitted early are not taken back if the final result differs; the final result is the one to keep.
+ */
+public class PartialResultStabilizer {
+
+    public static final int DEFAULT_REQUIRED_AGREEMENT = 2;
+
+    private final int requiredAgreement;
+    private final Map<String, SegmentState> segments = new HashMap<>();
+
+    public PartialResultStabilizer() {
+        this(DEFAULT_REQUIRED_AGREEMENT);
+    }
+
+    /**
+     * @param requiredAgreement Number of partial results in a row a word must be the same in to be stable
+     */
+    public PartialResultStabilizer(int requiredAgreement) {
+        if (requiredAgreement < 1) {
+            throw new IllegalArgumentException("Required agreement must be at least 1");
+        }
+        this.requiredAgreement = requiredAgreement;
+    }
+
+    /**
+     * Take the next result of a segment
+     * @param segment Partial or final segment
+     * @return Words of the segment that became stable with this result, in order, empty if none did
+     */
+    public synchronized List<TranscriptUpdate.Word> update(TranscriptUpdate.Segment segment) {
+        String channel = segment.getChannelId() == null ? "" : segment.getChannelId();
+        String resultId = segment.getResultId() == null ? "" : segment.getResultId();
+        SegmentState state = segments.get(channel);
+        if (state == null || !state.resultId.equals(resultId)) {
+            state = new SegmentState(resultId);
+            segments.put(channel, state);
+        }
+        List<TranscriptUpdate.Word> words = segment.getWords();
+        if (!segment.isPartial()) {
+            segments.remove(channel);
+            return emit(state, words, words.size());
+        }
+
+        if (state.agreements.length < words.size()) {
+            int[] agreements = new int[Math.max(words.size(), state.agreements.length * 2)];
+            System.arraycopy(state.agreements, 0, agreements, 0, state.agreements.length);
+            state.agreements = agreements;
+        }
+        List<TranscriptUpdate.Word> previous = state.previous;
+        int common = 0;
+        while (common < words.size() && common < previous.size() && words.get(common).sameAs(previous.get(common))) {
+            state.agreements[common]++;
+            common++;
+        }
+        for (int i = common; i < words.size(); i++) {
+            state.agreements[i] = 1;
+        }
+        state.previous = words;
+
+        int stable = 0;
+        while (stable < words.size()
+                && (words.get(stable).isStable() || state.agreements[stable] >= requiredAgreement)) {
+            stable++;
+        }
+        return emit(state, words, stable);
+    }
+
+    /**
+     * Forget every open segment, e.g. when a stream ends
+     */
+    public synchronized void reset() {
+        segments.clear();
+    }
+
+    private static List<TranscriptUpdate.Word> emit(SegmentState state, List<TranscriptUpdate.Word> words, int stable) {
+        if (stable <= state.emitted) {
+            return Collections.emptyList();
+        }
+        List<TranscriptUpdate.Word> settled = words.subList(state.emitted, stable);
+        state.emitted = stable;
+        return settled;
+    }
+
+    private static class SegmentState {
+        private final String resultId;
+        private List<TranscriptUpdate.Word> previous = Collections.emptyList();
+        private int[] agreements = new int[16];
+        private int emitted = 0;
+
+        private SegmentState(String resultId) {
+            this.resultId = resultId;
+        }
+    }
+}
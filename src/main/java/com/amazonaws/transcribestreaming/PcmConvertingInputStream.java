@@ -0,0 +1,434 @@
+/*
+ * Copyright 2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.amazonaws.transcribestreaming;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Converts integer PCM audio of any sample size, byte order, channel count and sample rate into the 16-bit
+ * little-endian PCM the service expects, at a lower sample rate such as 8 or 16 kHz. Sending speech at 16 kHz
+ * mono instead of 44.1 or 48 kHz stereo cuts the bytes uploaded by 5 to 6 times.
+ *
+ * Channels are averaged into one, or kept apart and interleaved for channel identification, where each channel is
+ * transcribed on its own. The sample rate is changed with a windowed-sinc filter, looked up from a table of
+ * precomputed phases, whose cutoff sits just below the lower of the two Nyquist frequencies so that downsampling
+ * does not alias.
+ *
+ * Audio is converted a block at a time through buffers allocated up front, so the stage does not allocate while
+ * streaming. The inner loops run over plain float arrays, which the JIT can vectorize.
+ */
+public class PcmConvertingInputStream extends FilterInputStream {
+
+    public static final int DEFAULT_SAMPLE_RATE = 16_000;
+    private static final int BLOCK_FRAMES = 4096;
+    private static final int HALF_TAPS = 8;
+    private static final int PHASES = 256;
+    private static final double CUTOFF = 0.9;
+
+    private final AudioFormat inputFormat;
+    private final AudioFormat outputFormat;
+    private final int channels;
+    private final int inputFrameSize;
+    private final int bytesPerSample;
+    private final boolean resample;
+    private final double step;
+    private final int halfWidth;
+    private final int taps;
+    private final float[] kernels;
+
+    private final byte[] inputBytes;
+    private int inputByteCount = 0;
+    private final float[][] history;
+    private int historyCount;
+    private double position;
+    private double inputEnd = Double.MAX_VALUE;
+    private boolean endOfStream = false;
+    private final byte[] output;
+    private int outputLength = 0;
+    private int outputPosition = 0;
+
+    /**
+     * @param in Audio to convert to mono
+     * @param format Format of the audio, which must be signed or unsigned integer PCM
+     * @param sampleRate Sample rate to convert to
+     */
+    public PcmConvertingInputStream(InputStream in, AudioFormat format, int sampleRate) {
+        this(in, format, sampleRate, 1);
+    }
+
+    /**
+     * @param in Audio to convert
+     * @param format Format of the audio, which must be signed or unsigned integer PCM
+     * @param sampleRate Sample rate to convert to
+     * @param channels 1 to downmix to mono, or the channel count of the audio to keep every channel
+     */
+    public PcmConvertingInputStream(InputStream in, AudioFormat format, int sampleRate, int channels) {
+        super(in);
+        AudioFormat.Encoding encoding = format.getEncoding();
+        int sampleSizeInBits = format.getSampleSizeInBits();
+        if (!AudioFormat.Encoding.PCM_SIGNED.equals(encoding) && !AudioFormat.Encoding.PCM_UNSIGNED.equals(encoding)
+                || sampleSizeInBits % 8 != 0 || sampleSizeInBits < 8 || sampleSizeInBits > 32) {
+            throw new IllegalArgumentException("Cannot convert " + format + ", only integer PCM is supported");
+        }
+        if (sampleRate <= 0) {
+            throw new IllegalArgumentException("Sample rate must be positive");
+        }
+        if (channels != 1 && channels != format.getChannels()) {
+            throw new IllegalArgumentException("Cannot convert " + format + " to " + channels + " channels");
+        }
+        this.inputFormat = format;
+        this.outputFormat = new AudioFormat(sampleRate, 16, channels, true, false);
+        this.channels = channels;
+        this.inputFrameSize = format.getFrameSize();
+        this.bytesPerSample = sampleSizeInBits / 8;
+        double inputRate = format.getSampleRate();
+        this.resample = inputRate != sampleRate;
+        this.step = inputRate / sampleRate;
+
+        double cutoff = Math.min(1.0, sampleRate / inputRate) * CUTOFF;
+        this.halfWidth = resample ? (int) Math.ceil(HALF_TAPS / cutoff) : 0;
+        this.taps = 2 * halfWidth;
+        this.kernels = resample ? buildKernels(halfWidth, cutoff) : null;
+
+        this.inputBytes = new byte[BLOCK_FRAMES * inputFrameSize];
+        this.history = new float[channels][BLOCK_FRAMES + 2 * taps + 2];
+        //Zeros before the first sample, so the first outputs have a full window
+        this.historyCount = Math.max(0, halfWidth - 1);
+        this.position = historyCount;
+        int maxOutputFrames = (int) Math.ceil(history[0].length / step) + 2;
+        this.output = new byte[maxOutputFrames * channels * 2];
+    }
+
+    /**
+     * Check whether audio has to be converted before it is sent
+     * @param format Format of the audio
+     * @param maxSampleRate Highest sample rate to send at
+     * @return True unless the audio is already 16-bit little-endian mono PCM at or below the maximum sample rate
+     */
+    public static boolean needsConversion(AudioFormat format, int maxSampleRate) {
+        return needsConversion(format, maxSampleRate, 1);
+    }
+
+    /**
+     * Check whether audio has to be converted before it is sent
+     * @param format Format of the audio
+     * @param maxSampleRate Highest sample rate to send at
+     * @param channels Number of channels to send
+     * @return True unless the audio is already 16-bit little-endian PCM with the given number of channels at or below
+     * the maximum sample rate
+     */
+    public static boolean needsConversion(AudioFormat format, int maxSampleRate, int channels) {
+        return !AudioFormat.Encoding.PCM_SIGNED.equals(format.getEncoding())
+                || format.getSampleSizeInBits() != 16
+                || format.isBigEndian()
+                || format.getChannels() != channels
+                || format.getSampleRate() > maxSampleRate;
+    }
+
+    /**
+     * @return Format of the audio read from this stream
+     */
+    public AudioFormat getFormat() {
+        return outputFormat;
+    }
+
+    /**
+     * @return Format of the audio this stream converts from
+     */
+    public AudioFormat getInputFormat() {
+        return inputFormat;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fillOutput()) {
+            return -1;
+        }
+        return output[outputPosition++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fillOutput()) {
+            return -1;
+        }
+        int count = Math.min(len, outputLength - outputPosition);
+        System.arraycopy(output, outputPosition, b, off, count);
+        outputPosition += count;
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n && fillOutput()) {
+            int count = (int) Math.min(n - skipped, outputLength - outputPosition);
+            outputPosition += count;
+            skipped += count;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return outputLength - outputPosition;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    /**
+     * Convert blocks until there is output to return
+     * @return False at the end of the stream
+     */
+    private boolean fillOutput() throws IOException {
+        while (outputPosition == outputLength) {
+            if (endOfStream && historyCount == 0) {
+                return false;
+            }
+            outputPosition = 0;
+            outputLength = 0;
+            if (!endOfStream) {
+                readBlock();
+            }
+            if (resample) {
+                resampleHistory();
+            } else {
+                outputLength = writeFrames(historyCount);
+                historyCount = 0;
+            }
+            if (endOfStream && outputLength == 0) {
+                historyCount = 0;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read the next block of input, downmix it and append it to the history
+     */
+    private void readBlock() throws IOException {
+        int room = Math.min(BLOCK_FRAMES, history[0].length - historyCount - taps) * inputFrameSize;
+        while (inputByteCount < inputFrameSize || inputByteCount < room && in.available() > 0) {
+            int read = in.read(inputBytes, inputByteCount, room - inputByteCount);
+            if (read < 0) {
+                endOfStream = true;
+                break;
+            }
+            inputByteCount += read;
+        }
+        int frames = inputByteCount / inputFrameSize;
+        downmix(frames);
+        int used = frames * inputFrameSize;
+        inputByteCount -= used;
+        System.arraycopy(inputBytes, used, inputBytes, 0, inputByteCount);
+
+        if (endOfStream && resample) {
+            //Zeros after the last sample flush the filter
+            inputEnd = historyCount;
+            for (int channel = 0; channel < channels; channel++) {
+                for (int i = 0; i < halfWidth + 1; i++) {
+                    history[channel][historyCount + i] = 0;
+                }
+            }
+            historyCount += halfWidth + 1;
+        }
+    }
+
+    /**
+     * Decode frames from the input bytes and append them to the history, averaging their channels when converting to
+     * mono, on a scale where a full scale 16-bit sample is 32767
+     */
+    private void downmix(int frames) {
+        int inputChannels = inputFormat.getChannels();
+        boolean bigEndian = inputFormat.isBigEndian();
+        boolean unsigned = AudioFormat.Encoding.PCM_UNSIGNED.equals(inputFormat.getEncoding());
+        if (channels > 1) {
+            for (int channel = 0; channel < channels; channel++) {
+                float[] samples = history[channel];
+                for (int frame = 0; frame < frames; frame++) {
+                    samples[historyCount + frame] =
+                            decodeScaled(frame * inputFrameSize + channel * bytesPerSample, bigEndian, unsigned);
+                }
+            }
+        } else if (bytesPerSample == 2 && !bigEndian && !unsigned) {
+            //Common case, kept free of per-sample branches
+            float scale = 1f / inputChannels;
+            float[] samples = history[0];
+            for (int frame = 0; frame < frames; frame++) {
+                int offset = frame * inputFrameSize;
+                int sum = 0;
+                for (int channel = 0; channel < inputChannels; channel++) {
+                    int i = offset + channel * 2;
+                    sum += (short) ((inputBytes[i + 1] << 8) | (inputBytes[i] & 0xff));
+                }
+                samples[historyCount + frame] = sum * scale;
+            }
+        } else {
+            float scale = 1f / inputChannels;
+            float[] samples = history[0];
+            for (int frame = 0; frame < frames; frame++) {
+                int offset = frame * inputFrameSize;
+                float sum = 0;
+                for (int channel = 0; channel < inputChannels; channel++) {
+                    sum += decodeScaled(offset + channel * bytesPerSample, bigEndian, unsigned);
+                }
+                samples[historyCount + frame] = sum * scale;
+            }
+        }
+        historyCount += frames;
+    }
+
+    /**
+     * @return the sample at the offset on the 16-bit scale
+     */
+    private float decodeScaled(int offset, boolean bigEndian, boolean unsigned) {
+        if (bytesPerSample == 2 && !bigEndian && !unsigned) {
+            return (short) ((inputBytes[offset + 1] << 8) | (inputBytes[offset] & 0xff));
+        }
+        int shift = 8 * bytesPerSample - 16;
+        int sample = decodeSample(offset, bigEndian, unsigned);
+        return shift >= 0 ? (float) (sample >> shift) : (float) (sample << -shift);
+    }
+
+    private int decodeSample(int offset, boolean bigEndian, boolean unsigned) {
+        int value = 0;
+        for (int b = 0; b < bytesPerSample; b++) {
+            int index = bigEndian ? offset + b : offset + bytesPerSample - 1 - b;
+            value = (value << 8) | (inputBytes[index] & 0xff);
+        }
+        int bits = 8 * bytesPerSample;
+        if (unsigned) {
+            return value - (1 << (bits - 1));
+        }
+        //Sign extend from the top bit of the sample
+        return bits == 32 ? value : (value << (32 - bits)) >> (32 - bits);
+    }
+
+    /**
+     * Produce every output sample whose filter window is covered by the history, then drop the history no longer
+     * needed
+     */
+    private void resampleHistory() {
+        int samples = 0;
+        int last = historyCount - halfWidth;
+        while ((int) position < last && position < inputEnd) {
+            int center = (int) position;
+            int phase = (int) Math.round((position - center) * PHASES);
+            int kernel = phase * taps;
+            int start = center - halfWidth + 1;
+            for (int channel = 0; channel < channels; channel++) {
+                float[] input = history[channel];
+                float sum = 0;
+                for (int tap = 0; tap < taps; tap++) {
+                    sum += input[start + tap] * kernels[kernel + tap];
+                }
+                writeSample(sum, samples++);
+            }
+            position += step;
+        }
+        outputLength = samples * 2;
+
+        if (position >= inputEnd) {
+            historyCount = 0;
+            return;
+        }
+        int drop = Math.max(0, (int) position - halfWidth + 1);
+        for (int channel = 0; channel < channels; channel++) {
+            System.arraycopy(history[channel], drop, history[channel], 0, historyCount - drop);
+        }
+        historyCount -= drop;
+        position -= drop;
+        if (inputEnd != Double.MAX_VALUE) {
+            inputEnd -= drop;
+        }
+    }
+
+    /**
+     * Interleave frames of the history into the output as they are
+     * @return Length of the output in bytes
+     */
+    private int writeFrames(int frames) {
+        int outputSample = 0;
+        for (int frame = 0; frame < frames; frame++) {
+            for (int channel = 0; channel < channels; channel++) {
+                writeSample(history[channel][frame], outputSample++);
+            }
+        }
+        return outputSample * 2;
+    }
+
+    private void writeSample(float value, int outputSample) {
+        int sample = Math.round(value);
+        sample = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+        output[outputSample * 2] = (byte) sample;
+        output[outputSample * 2 + 1] = (byte) (sample >> 8);
+    }
+
+    /**
+     * Blackman-windowed sinc low-pass kernels, one row of taps per fractional position between input samples. Each
+     * row is normalized to a gain of one.
+     */
+    private static float[] buildKernels(int halfWidth, double cutoff) {
+        int taps = 2 * halfWidth;
+        float[] kernels = new float[(PHASES + 1) * taps];
+        for (int phase = 0; phase <= PHASES; phase++) {
+            double fraction = (double) phase / PHASES;
+            double sum = 0;
+            for (int tap = 0; tap < taps; tap++) {
+                double x = tap - halfWidth + 1 - fraction;
+                double value = cutoff * sinc(cutoff * x) * blackman(x / halfWidth);
+                kernels[phase * taps + tap] = (float) value;
+                sum += value;
+            }
+            for (int tap = 0; tap < taps; tap++) {
+                kernels[phase * taps + tap] /= (float) sum;
+            }
+        }
+        return kernels;
+    }
+
+    private static double sinc(double x) {
+        return x == 0 ? 1 : Math.sin(Math.PI * x) / (Math.PI * x);
+    }
+
+    private static double blackman(double x) {
+        if (Math.abs(x) >= 1) {
+            return 0;
+        }
+        return 0.42 + 0.5 * Math.cos(Math.PI * x) + 0.08 * Math.cos(2 * Math.PI * x);
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.amazonaws.transcribestreaming;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import software.amazon.awssdk.services.transcribestreaming.model.AudioEvent;
+import software.amazon.awssdk.services.transcribestreaming.model.AudioStream;
+
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Wraps an audio publisher so that it can be subscribed to again after a failed stream without losing the audio
+ * that was in flight. Every AudioEvent passed on is recorded in an AudioReplayBuffer. A new subscriber is first sent
+ * the audio held in the buffer, and only then the live audio from the wrapped publisher.
+ *
+ * The position of the replayed audio in the original stream is kept, so that transcripts of the new session can be
+ * moved back onto the timeline of the original stream.
+ */
+public class ReplayingAudioPublisher implements Publisher<AudioStream> {
+
+    private final Publisher<AudioStream> source;
+    private final AudioReplayBuffer replayBuffer;
+    private final int chunkSizeInBytes;
+    private final AtomicInteger subscriptions = new AtomicInteger(0);
+    private volatile long sessionStartOffsetInBytes = 0;
+
+    /**
+     * @param source Publisher of the live audio
+     * @param replayBuffer Buffer to record sent audio into
+     * @param chunkSizeInBytes Maximum size of each replayed event
+     */
+    public ReplayingAudioPublisher(Publisher<AudioStream> source, AudioReplayBuffer replayBuffer,
+                                   int chunkSizeInBytes) {
+        this.source = source;
+        this.replayBuffer = replayBuffer;
+        this.chunkSizeInBytes = chunkSizeInBytes;
+    }
+
+    /**
+     * @return Position in the original stream, in bytes, of the first byte sent to the latest subscriber
+     */
+    public long getSessionStartOffsetInBytes() {
+        return sessionStartOffsetInBytes;
+    }
+
+    /**
+     * @return True once the publisher has been subscribed to more than once, i.e. audio is being replayed
+     */
+    public boolean isResumed() {
+        return subscriptions.get() > 1;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super AudioStream> s) {
+        subscriptions.incrementAndGet();
+        AudioReplayBuffer.Snapshot snapshot = replayBuffer.snapshot(chunkSizeInBytes);
+        sessionStartOffsetInBytes = snapshot.getStartOffsetInBytes();
+        ReplaySubscription subscription = new ReplaySubscription(s, snapshot.getEvents());
+        source.subscribe(subscription);
+        s.onSubscribe(subscription);
+    }
+
+    /**
+     * Serves the replayed events from request(), then hands all further demand to the live subscription. Live events
+     * are only requested once the replay is exhausted, so the two never interleave. Demand is recorded under the lock
+     * and passed upstream after leaving it, as the live subscription may emit from within its request().
+     */
+    private class ReplaySubscription implements Subscription, Subscriber<AudioStream> {
+        private final Subscriber<? super AudioStream> subscriber;
+        private final Queue<AudioEvent> replay;
+        private Subscription upstream;
+        private long replayDemand = 0;
+        private long pendingUpstreamDemand = 0;
+        private boolean replaying = true;
+        private boolean emitting = false;
+        private boolean cancelled = false;
+
+        private ReplaySubscription(Subscriber<? super AudioStream> subscriber, Queue<AudioEvent> replay) {
+            this.subscriber = subscriber;
+            this.replay = replay;
+        }
+
+        @Override
+        public void onSubscribe(Subscription s) {
+            long demand;
+            synchronized (this) {
+                upstream = s;
+                if (cancelled) {
+                    s.cancel();
+                    return;
+                }
+                demand = pendingUpstreamDemand;
+                pendingUpstreamDemand = 0;
+            }
+            if (demand > 0) {
+                s.request(demand);
+            }
+        }
+
+        @Override
+        public void request(long n) {
+            Subscription s;
+            synchronized (this) {
+                if (replaying && n > 0) {
+                    replayDemand = addCapped(replayDemand, n);
+                    if (emitting) {
+                        return;
+                    }
+                    emitting = true;
+                    s = null;
+                } else {
+                    s = upstreamOrDefer(n);
+                }
+            }
+            if (s != null) {
+                s.request(n);
+            } else {
+                drainReplay();
+            }
+        }
+
+        private void drainReplay() {
+            while (true) {
+                AudioEvent event;
+                Subscription s = null;
+                long leftover = 0;
+                synchronized (this) {
+                    if (cancelled) {
+                        emitting = false;
+                        return;
+                    }
+                    if (replayDemand == 0 || replay.isEmpty()) {
+                        emitting = false;
+                        if (replay.isEmpty()) {
+                            replaying = false;
+                            leftover = replayDemand;
+                            replayDemand = 0;
+                            if (leftover > 0) {
+                                s = upstreamOrDefer(leftover);
+                            }
+                        }
+                        event = null;
+                    } else {
+                        event = replay.poll();
+                        replayDemand--;
+                    }
+                }
+                if (event == null) {
+                    if (s != null) {
+                        s.request(leftover);
+                    }
+                    return;
+                }
+                subscriber.onNext(event);
+            }
+        }
+
+        /**
+         * Called with the lock held. Demand made before the live subscription arrives is kept for onSubscribe
+         * @return Live subscription to pass the demand to once the lock is released, or null if it was kept
+         */
+        private Subscription upstreamOrDefer(long n) {
+            if (upstream == null) {
+                pendingUpstreamDemand = addCapped(pendingUpstreamDemand, n);
+            }
+            return upstream;
+        }
+
+        @Override
+        public void cancel() {
+            Subscription s;
+            synchronized (this) {
+                cancelled = true;
+                s = upstream;
+            }
+            if (s != null) {
+                s.cancel();
+            }
+        }
+
+        @Override
+        public void onNext(AudioStream event) {
+            if (event instanceof AudioEvent) {
+                replayBuffer.write(((AudioEvent) event).audioChunk().asByteBuffer());
+            }
+            subscriber.onNext(event);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            subscriber.onError(t);
+        }
+
+        @Override
+        public void onComplete() {
+            subscriber.onComplete();
+        }
+
+        private long addCapped(long a, long b) {
+            long sum = a + b;
+            return sum < 0 ? Long.MAX_VALUE : sum;
+        }
+    }
+}
@@ -0,0 +1,490 @@
+/*
+ * Copyright 2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.amazonaws.transcribestreaming;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Write-ahead journal of one transcription session, so a session cut short by a crash can be resumed where it
+ * stopped instead of transcribing the whole file again. It records how far into the audio final results have reached
+ * and every final segment received. After a restart, open() reads them back: the final segments are kept, and the audio is
+ * sent again from the end of the last of them, see getResumeSeconds().
+ *
+ * The journal is a directory of fixed-size segment files, each memory-mapped and filled with records one after
+ * another. A record is its length, a CRC32C checksum and a type, followed by the data. Appending a record is a copy
+ * into the mapping, so recording an offset or a segment costs no system call, and whatever was appended is in
+ * the page cache the moment it is written, so it survives the JVM dying. Segment files are forced to the disk when
+ * they fill up and when the journal is closed or forced.
+ *
+ * A record that was only partly written, or whose checksum does not match, ends the file it is in when the journal is
+ * read back; it and anything after it in that file are zeroed, and appending continues in a new file.
+ *
+ * Most records are audio offsets, of which only the latest matters. Once a number of segment files have filled up,
+ * the journal is compacted: the latest offset and the final segments are written to new files between a snapshot
+ * start and a snapshot end record, forced, and the older files deleted. Until the end record is on the disk the older
+ * files are kept, so a crash during compaction loses nothing; an unfinished snapshot is discarded when read back.
+ */
+public class SessionJournal implements Closeable {
+
+    public static final int DEFAULT_SEGMENT_SIZE_IN_BYTES = 1024 * 1024;
+    public static final int DEFAULT_COMPACT_AFTER_SEGMENTS = 4;
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    //Length, checksum and type
+    private static final int RECORD_HEADER_SIZE = 9;
+    private static final byte AUDIO_TRANSCRIBED = 1;
+    private static final byte FINAL_SEGMENT = 2;
+    private static final byte SNAPSHOT_START = 3;
+    private static final byte SNAPSHOT_END = 4;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final List<Long> segmentIndexes = new ArrayList<>();
+    private int compactAfterSegments = DEFAULT_COMPACT_AFTER_SEGMENTS;
+    private int snapshotSegments = 0;
+    private FileChannel activeChannel;
+    private MappedByteBuffer active;
+    private boolean compacting = false;
+    private boolean closed = false;
+
+    private State state = new State();
+    private final int recoveredRecords;
+    private final int corruptRecords;
+
+    private SessionJournal(Path directory, int segmentSize, int recoveredRecords, int corruptRecords) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.recoveredRecords = recoveredRecords;
+        this.corruptRecords = corruptRecords;
+    }
+
+    /**
+     * Open the journal in a directory, reading back whatever an earlier run recorded in it
+     * @param directory Directory of the journal, created if it does not exist
+     * @return journal ready to append to
+     * @throws IOException if the journal cannot be read or created
+     */
+    public static SessionJournal open(Path directory) throws IOException {
+        return open(directory, DEFAULT_SEGMENT_SIZE_IN_BYTES);
+    }
+
+    /**
+     * Open the journal in a directory, reading back whatever an earlier run recorded in it
+     * @param directory Directory of the journal, created if it does not exist
+     * @param segmentSizeInBytes Size of each segment file created, and so the largest record that can be written
+     * @return journal ready to append to
+     * @throws IOException if the journal cannot be read or created
+     */
+    public static SessionJournal open(Path directory, int segmentSizeInBytes) throws IOException {
+        if (segmentSizeInBytes < 4096) {
+            throw new IllegalArgumentException("Segment size must be at least 4096 bytes");
+        }
+        Files.createDirectories(directory);
+        List<Long> indexes = listSegments(directory);
+
+        State committed = new State();
+        State snapshot = null;
+        int snapshotStart = -1;
+        int firstLive = 0;
+        int records = 0;
+        int corrupt = 0;
+        for (int i = 0; i < indexes.size(); i++) {
+            try (FileChannel channel = FileChannel.open(segmentPath(directory, indexes.get(i)),
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+                while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+                    int start = buffer.position();
+                    int length = buffer.getInt(start);
+                    if (length == 0) {
+                        break;
+                    }
+                    byte[] data = readRecord(buffer, length);
+                    if (data == null) {
+                        //Torn or damaged, so nothing after it in this file can be trusted either
+                        corrupt++;
+                        buffer.position(start);
+                        while (buffer.hasRemaining()) {
+                            buffer.put((byte) 0);
+                        }
+                        buffer.force();
+                        break;
+                    }
+                    records++;
+                    byte type = buffer.get(start + 8);
+                    if (type == SNAPSHOT_START) {
+                        snapshot = new State();
+                        snapshotStart = i;
+                    } else if (type == SNAPSHOT_END && snapshot != null) {
+                        committed = snapshot;
+                        snapshot = null;
+                        firstLive = snapshotStart;
+                    } else {
+                        (snapshot != null ? snapshot : committed).apply(type, data);
+                    }
+                }
+            }
+        }
+
+        SessionJournal journal = new SessionJournal(directory, segmentSizeInBytes, records, corrupt);
+        //Files before a finished snapshot were left behind by a crash between its end and their deletion, and files
+        //of an unfinished snapshot by a crash before its end
+        int lastLive = snapshot != null ? snapshotStart : indexes.size();
+        for (int i = 0; i < indexes.size(); i++) {
+            if (i < firstLive || i >= lastLive) {
+                Files.deleteIfExists(segmentPath(directory, indexes.get(i)));
+            } else {
+                journal.segmentIndexes.add(indexes.get(i));
+            }
+        }
+        journal.state = committed;
+        journal.snapshotSegments = journal.segmentIndexes.size();
+        journal.openSegment(indexes.isEmpty() ? 0 : indexes.get(indexes.size() - 1) + 1);
+        return journal;
+    }
+
+    /**
+     * @param compactAfterSegments Number of segment files filled up after the last snapshot that triggers compaction
+     */
+    public synchronized void setCompactAfterSegments(int compactAfterSegments) {
+        if (compactAfterSegments < 1) {
+            throw new IllegalArgumentException("Compaction threshold must be at least 1");
+        }
+        this.compactAfterSegments = compactAfterSegments;
+    }
+
+    /**
+     * Record that final results cover the audio up to an offset. Audio that was only read or sent is not covered,
+     * as it is lost if the session dies before its results arrive. Offsets at or before the last one are ignored.
+     * @param offsetInBytes Offset in the original audio data, excluding any file header
+     */
+    public synchronized void recordAudioTranscribed(long offsetInBytes) throws IOException {
+        if (offsetInBytes <= state.audioOffset) {
+            return;
+        }
+        ByteBuffer data = ByteBuffer.allocate(Long.BYTES).putLong(0, offsetInBytes);
+        append(AUDIO_TRANSCRIBED, data.array());
+        state.audioOffset = offsetInBytes;
+    }
+
+    /**
+     * Record a final segment, with times on the original audio
+     * @param segment Final segment
+     */
+    public synchronized void recordFinalSegment(TranscriptUpdate.Segment segment) throws IOException {
+        if (segment.isPartial()) {
+            throw new IllegalArgumentException("Only final segments are journaled");
+        }
+        append(FINAL_SEGMENT, encode(segment));
+        state.addSegment(segment);
+    }
+
+    /**
+     * @return Offset in the original audio data up to which final results cover the audio
+     */
+    public synchronized long getAudioOffset() {
+        return state.audioOffset;
+    }
+
+    /**
+     * @return Final segments recorded so far, in the order they were received
+     */
+    public synchronized List<TranscriptUpdate.Segment> getFinalSegments() {
+        return new ArrayList<>(state.segments);
+    }
+
+    /**
+     * @return End time of the last final segment of each channel, keyed by channel id, "" if channels are not
+     * identified
+     */
+    public synchronized Map<String, Double> getChannelEndTimes() {
+        return new LinkedHashMap<>(state.channelEndTimes);
+    }
+
+    /**
+     * Get the time to send the audio again from. Every channel has its final segments up to it, so nothing before it
+     * needs transcribing again. With several channels, results of a channel that end before its own last final
+     * segment are repeats and should be dropped.
+     * @return Seconds from the start of the audio, 0 if no final segment was recorded
+     */
+    public synchronized double getResumeSeconds() {
+        double resume = Double.MAX_VALUE;
+        for (double endTime : state.channelEndTimes.values()) {
+            resume = Math.min(resume, endTime);
+        }
+        return state.channelEndTimes.isEmpty() ? 0 : resume;
+    }
+
+    /**
+     * @return Number of records read back when the journal was opened
+     */
+    public int getRecoveredRecords() {
+        return recoveredRecords;
+    }
+
+    /**
+     * @return Number of torn or damaged records found, and dropped, when the journal was opened
+     */
+    public int getCorruptRecords() {
+        return corruptRecords;
+    }
+
+    /**
+     * @return Number of segment files in use
+     */
+    public synchronized int getSegmentCount() {
+        return segmentIndexes.size();
+    }
+
+    /**
+     * Write the latest audio offset and the final segments to new segment files and delete the older ones
+     */
+    public synchronized void compact() throws IOException {
+        checkOpen();
+        List<Long> obsolete = new ArrayList<>(segmentIndexes);
+        compacting = true;
+        try {
+            roll();
+            append(SNAPSHOT_START, new byte[0]);
+            if (state.audioOffset > 0) {
+                append(AUDIO_TRANSCRIBED, ByteBuffer.allocate(Long.BYTES).putLong(0, state.audioOffset).array());
+            }
+            for (TranscriptUpdate.Segment segment : state.segments) {
+                append(FINAL_SEGMENT, encode(segment));
+            }
+            append(SNAPSHOT_END, new byte[0]);
+            active.force();
+        } finally {
+            compacting = false;
+        }
+        for (Long index : obsolete) {
+            Files.deleteIfExists(segmentPath(directory, index));
+        }
+        segmentIndexes.removeAll(obsolete);
+        snapshotSegments = segmentIndexes.size();
+    }
+
+    /**
+     * Force everything appended so far to the disk, so it also survives the machine going down
+     */
+    public synchronized void force() {
+        if (!closed) {
+            active.force();
+        }
+    }
+
+    /**
+     * Force the journal to the disk and close it, keeping it to resume from
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            active.force();
+            active = null;
+            activeChannel.close();
+        }
+    }
+
+    /**
+     * Close the journal and delete it, once the session it records has finished and its transcript is saved
+     */
+    public synchronized void delete() throws IOException {
+        close();
+        for (Long index : segmentIndexes) {
+            Files.deleteIfExists(segmentPath(directory, index));
+        }
+        segmentIndexes.clear();
+        Files.deleteIfExists(directory);
+    }
+
+    private void append(byte type, byte[] data) throws IOException {
+        checkOpen();
+        if (RECORD_HEADER_SIZE + data.length > segmentSize) {
+            throw new IllegalArgumentException("Record of " + data.length + " bytes does not fit in a segment");
+        }
+        if (active.remaining() < RECORD_HEADER_SIZE + data.length) {
+            roll();
+        }
+        int start = active.position();
+        CRC32C crc = new CRC32C();
+        crc.update(type);
+        crc.update(data);
+        active.put(start + 8, type);
+        active.put(start + RECORD_HEADER_SIZE, data);
+        active.putInt(start + 4, (int) crc.getValue());
+        //The length goes in last, since a record with no length is read as the end of the file
+        active.putInt(start, data.length + 1);
+        active.position(start + RECORD_HEADER_SIZE + data.length);
+    }
+
+    /**
+     * @return the data of the record at the position of the buffer, moving past it, or null if it is damaged
+     */
+    private static byte[] readRecord(MappedByteBuffer buffer, int length) {
+        int start = buffer.position();
+        //The length counts the type byte as well as the data
+        if (length < 1 || length - 1 > buffer.remaining() - RECORD_HEADER_SIZE) {
+            return null;
+        }
+        byte[] data = new byte[length - 1];
+        buffer.get(start + RECORD_HEADER_SIZE, data);
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.get(start + 8));
+        crc.update(data);
+        if ((int) crc.getValue() != buffer.getInt(start + 4)) {
+            return null;
+        }
+        buffer.position(start + RECORD_HEADER_SIZE + data.length);
+        return data;
+    }
+
+    private void roll() throws IOException {
+        long next = segmentIndexes.get(segmentIndexes.size() - 1) + 1;
+        active.force();
+        activeChannel.close();
+        openSegment(next);
+        if (!compacting && segmentIndexes.size() - snapshotSegments > compactAfterSegments) {
+            compact();
+        }
+    }
+
+    private void openSegment(long index) throws IOException {
+        activeChannel = FileChannel.open(segmentPath(directory, index), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        //Mapping past the end grows the file, and the new space reads as zeros, the end of the records
+        active = activeChannel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        segmentIndexes.add(index);
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Journal is closed");
+        }
+    }
+
+    private static List<Long> listSegments(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(p -> p.getFileName().toString())
+                    .filter(name -> name.endsWith(SEGMENT_SUFFIX) && name.length() > SEGMENT_SUFFIX.length())
+                    .map(name -> name.substring(0, name.length() - SEGMENT_SUFFIX.length()))
+                    .filter(name -> name.chars().allMatch(Character::isDigit))
+                    .map(Long::parseLong)
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static Path segmentPath(Path directory, long index) {
+        return directory.resolve(String.format("%016d%s", index, SEGMENT_SUFFIX));
+    }
+
+    private static byte[] encode(TranscriptUpdate.Segment segment) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + segment.getText().length() * 2);
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeString(out, segment.getResultId());
+        writeString(out, segment.getChannelId());
+        out.writeDouble(segment.getStartTime());
+        out.writeDouble(segment.getEndTime());
+        out.writeInt(segment.getAlternatives().size());
+        for (String alternative : segment.getAlternatives()) {
+            out.writeUTF(alternative);
+        }
+        out.writeInt(segment.getWords().size());
+        for (TranscriptUpdate.Word word : segment.getWords()) {
+            out.writeUTF(word.getContent());
+            out.writeDouble(word.getStartTime());
+            out.writeDouble(word.getEndTime());
+            out.writeBoolean(word.isPunctuation());
+            writeString(out, word.getSpeaker());
+            out.writeDouble(word.getConfidence());
+        }
+        return bytes.toByteArray();
+    }
+
+    private static TranscriptUpdate.Segment decode(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        String resultId = readString(in);
+        String channelId = readString(in);
+        double startTime = in.readDouble();
+        double endTime = in.readDouble();
+        int alternativeCount = in.readInt();
+        List<String> alternatives = new ArrayList<>(alternativeCount);
+        for (int i = 0; i < alternativeCount; i++) {
+            alternatives.add(in.readUTF());
+        }
+        int wordCount = in.readInt();
+        List<TranscriptUpdate.Word> words = new ArrayList<>(wordCount);
+        for (int i = 0; i < wordCount; i++) {
+            words.add(TranscriptUpdate.Word.restore(in.readUTF(), in.readDouble(), in.readDouble(), in.readBoolean(),
+                    readString(in), in.readDouble()));
+        }
+        return TranscriptUpdate.Segment.restore(resultId, channelId, startTime, endTime, alternatives, words);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * What the records read so far add up to
+     */
+    private static class State {
+        private long audioOffset = 0;
+        private final List<TranscriptUpdate.Segment> segments = new ArrayList<>();
+        private final Map<String, Double> channelEndTimes = new LinkedHashMap<>();
+
+        private void apply(byte type, byte[] data) throws IOException {
+            if (type == AUDIO_TRANSCRIBED) {
+                audioOffset = Math.max(audioOffset, ByteBuffer.wrap(data).getLong());
+            } else if (type == FINAL_SEGMENT) {
+                addSegment(decode(data));
+            }
+        }
+
+        private void addSegment(TranscriptUpdate.Segment segment) {
+            segments.add(segment);
+            channelEndTimes.merge(segment.getChannelId() == null ? "" : segment.getChannelId(),
+                    segment.getEndTime(), Math::max);
+        }
+    }
+}
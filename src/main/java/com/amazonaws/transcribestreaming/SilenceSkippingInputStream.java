@@ -0,0 +1,244 @@
+/*
+ * Copyright 2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.amazonaws.transcribestreaming;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Cuts long silences out of 16-bit little-endian PCM audio before it is sent. The audio is read in short frames and
+ * each frame is classed as speech or silence by a simple voice activity check: a frame is speech if its energy is
+ * above a threshold, or if it is somewhat quieter but crosses zero often, which catches soft consonants such as "s"
+ * and "f". For multi-channel audio a frame is speech if any of its channels is, so a silence is only cut when every
+ * speaker is silent.
+ *
+ * The start of every silence is kept, up to a maximum length, so words are not clipped and the service still sees
+ * the pauses it uses to end segments. The rest of the silence is dropped and recorded in an AudioTimeMap, which maps
+ * the times in results back to times in the original audio.
+ *
+ * Each frame is read into the same buffer, so the stage does not allocate per frame.
+ */
+public class SilenceSkippingInputStream extends FilterInputStream {
+
+    public static final int DEFAULT_FRAME_MILLIS = 20;
+    public static final int DEFAULT_MAX_SILENCE_MILLIS = 500;
+    public static final int DEFAULT_ENERGY_THRESHOLD = 300;
+    public static final double DEFAULT_ZERO_CROSSING_THRESHOLD = 0.25;
+
+    private final int frameSize;
+    private final int bytesPerSecond;
+    private final byte[] frame;
+    private final AudioTimeMap timeMap;
+    private long maxSilenceBytes;
+    private long energyThresholdSquared = (long) DEFAULT_ENERGY_THRESHOLD * DEFAULT_ENERGY_THRESHOLD;
+    private double zeroCrossingThreshold = DEFAULT_ZERO_CROSSING_THRESHOLD;
+    private int frameLength = 0;
+    private int framePosition = 0;
+    private long silenceBytes = 0;
+    private long sentBytes = 0;
+    private boolean endOfStream = false;
+
+    /**
+     * @param in Audio to read
+     * @param format Format of the audio, which must be signed 16-bit little-endian PCM
+     */
+    public SilenceSkippingInputStream(InputStream in, AudioFormat format) {
+        super(in);
+        if (!AudioFormat.Encoding.PCM_SIGNED.equals(format.getEncoding()) || format.getSampleSizeInBits() != 16
+                || format.isBigEndian()) {
+            throw new IllegalArgumentException("Silence skipping needs signed 16-bit little-endian PCM, got " + format);
+        }
+        this.frameSize = format.getFrameSize();
+        this.bytesPerSecond = (int) format.getSampleRate() * frameSize;
+        int framesPerVadFrame = Math.max(1, (int) format.getSampleRate() * DEFAULT_FRAME_MILLIS / 1000);
+        this.frame = new byte[framesPerVadFrame * frameSize];
+        this.timeMap = new AudioTimeMap(bytesPerSecond);
+        setMaxSilenceMillis(DEFAULT_MAX_SILENCE_MILLIS);
+    }
+
+    /**
+     * Get the map from times in the audio read from this stream to times in the original audio
+     * @return time map, updated as silence is cut
+     */
+    public AudioTimeMap getTimeMap() {
+        return timeMap;
+    }
+
+    /**
+     * Set how much of each silence is kept
+     * @param maxSilenceMillis Milliseconds of silence kept before the rest is dropped
+     */
+    public void setMaxSilenceMillis(int maxSilenceMillis) {
+        if (maxSilenceMillis < 0) {
+            throw new IllegalArgumentException("Max silence must not be negative");
+        }
+        this.maxSilenceBytes = (long) bytesPerSecond * maxSilenceMillis / 1000;
+    }
+
+    /**
+     * Set the energy above which a frame is speech
+     * @param energyThreshold Root mean square of the samples, from 0 to 32767
+     */
+    public void setEnergyThreshold(int energyThreshold) {
+        if (energyThreshold < 0) {
+            throw new IllegalArgumentException("Energy threshold must not be negative");
+        }
+        this.energyThresholdSquared = (long) energyThreshold * energyThreshold;
+    }
+
+    /**
+     * Set the zero crossing rate above which a quieter frame is still speech
+     * @param zeroCrossingThreshold Fraction of samples at which the signal changes sign, from 0 to 1
+     */
+    public void setZeroCrossingThreshold(double zeroCrossingThreshold) {
+        this.zeroCrossingThreshold = zeroCrossingThreshold;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fillFrame()) {
+            return -1;
+        }
+        sentBytes++;
+        return frame[framePosition++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fillFrame()) {
+            return -1;
+        }
+        int count = Math.min(len, frameLength - framePosition);
+        System.arraycopy(frame, framePosition, b, off, count);
+        framePosition += count;
+        sentBytes += count;
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        //Skipping must go through the frames, or the time map would miss the skipped audio
+        long skipped = 0;
+        while (skipped < n && fillFrame()) {
+            int count = (int) Math.min(n - skipped, frameLength - framePosition);
+            framePosition += count;
+            sentBytes += count;
+            skipped += count;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return frameLength - framePosition;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    /**
+     * Make sure the current frame has unread bytes, reading frames and dropping silent ones as needed
+     * @return False at the end of the stream
+     */
+    private boolean fillFrame() throws IOException {
+        while (framePosition == frameLength) {
+            if (endOfStream) {
+                return false;
+            }
+            frameLength = readFrame();
+            framePosition = 0;
+            if (frameLength == 0) {
+                return false;
+            }
+            if (isSpeech(frameLength)) {
+                silenceBytes = 0;
+            } else {
+                silenceBytes += frameLength;
+                if (silenceBytes > maxSilenceBytes) {
+                    timeMap.skip(sentBytes, frameLength);
+                    frameLength = 0;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read up to a full frame, blocking until it is full or the stream ends
+     * @return Number of bytes read, a multiple of the frame size except at the end of the stream
+     */
+    private int readFrame() throws IOException {
+        int length = 0;
+        while (length < frame.length) {
+            int read = in.read(frame, length, frame.length - length);
+            if (read < 0) {
+                endOfStream = true;
+                break;
+            }
+            length += read;
+        }
+        return length;
+    }
+
+    private boolean isSpeech(int length) {
+        for (int offset = 0; offset < frameSize; offset += 2) {
+            if (isSpeech(length, offset)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isSpeech(int length, int channelOffset) {
+        long sumOfSquares = 0;
+        int crossings = 0;
+        int samples = 0;
+        int previous = 0;
+        for (int i = channelOffset; i + 1 < length; i += frameSize) {
+            int sample = (short) ((frame[i + 1] << 8) | (frame[i] & 0xff));
+            sumOfSquares += (long) sample * sample;
+            if ((sample ^ previous) < 0) {
+                crossings++;
+            }
+            previous = sample;
+            samples++;
+        }
+        if (samples == 0) {
+            return true;
+        }
+        long threshold = energyThresholdSquared * samples;
+        return sumOfSquares >= threshold
+                || (sumOfSquares * 16 >= threshold && crossings >= zeroCrossingThreshold * samples);
+    }
+}
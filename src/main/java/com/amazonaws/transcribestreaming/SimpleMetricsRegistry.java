@@ -0,0 +1,134 @@
+/*
+ * Copyright 2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.amazonaws.transcribestreaming;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAccumulator;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Metrics registry that keeps its meters in memory, for reporting at the end of a run or from a debug view.
+ * Counters and summaries are built on striped adders, so streams recording at the same time do not contend.
+ *
+ * Timers and summaries keep a count, a total and a maximum. For latency percentiles use a registry backed by a
+ * histogram, such as a Micrometer adapter.
+ */
+public class SimpleMetricsRegistry implements MetricsRegistry {
+
+    private final Map<String, Object> meters = new ConcurrentSkipListMap<>();
+
+    @Override
+    public Counter counter(String name, String... tags) {
+        return (Counter) meters.computeIfAbsent(key(name, tags), k -> new SimpleCounter());
+    }
+
+    @Override
+    public Timer timer(String name, String... tags) {
+        return (Timer) meters.computeIfAbsent(key(name, tags), k -> new SimpleTimer());
+    }
+
+    @Override
+    public DistributionSummary summary(String name, String... tags) {
+        return (DistributionSummary) meters.computeIfAbsent(key(name, tags), k -> new SimpleSummary());
+    }
+
+    @Override
+    public void gauge(String name, DoubleSupplier value, String... tags) {
+        meters.putIfAbsent(key(name, tags), value);
+    }
+
+    /**
+     * @return One line per meter with its current values, sorted by name
+     */
+    public String report() {
+        StringBuilder report = new StringBuilder();
+        meters.forEach((key, meter) -> {
+            report.append(key).append(' ');
+            if (meter instanceof SimpleCounter) {
+                report.append(((SimpleCounter) meter).count.sum());
+            } else if (meter instanceof SimpleTimer) {
+                SimpleSummary nanos = ((SimpleTimer) meter).nanos;
+                report.append(String.format(Locale.ROOT, "count=%d mean=%.1fms max=%.1fms", nanos.count.sum(),
+                        nanos.mean() / 1_000_000, nanos.max.get() / 1_000_000));
+            } else if (meter instanceof SimpleSummary) {
+                SimpleSummary summary = (SimpleSummary) meter;
+                report.append(String.format(Locale.ROOT, "count=%d mean=%.1f max=%.1f", summary.count.sum(),
+                        summary.mean(), summary.max.get()));
+            } else {
+                report.append(((DoubleSupplier) meter).getAsDouble());
+            }
+            report.append(System.lineSeparator());
+        });
+        return report.toString();
+    }
+
+    private static String key(String name, String... tags) {
+        if (tags.length % 2 != 0) {
+            throw new IllegalArgumentException("Tags must be pairs of keys and values");
+        }
+        if (tags.length == 0) {
+            return name;
+        }
+        StringBuilder key = new StringBuilder(name).append('{');
+        for (int i = 0; i < tags.length; i += 2) {
+            key.append(i == 0 ? "" : ",").append(tags[i]).append('=').append(tags[i + 1]);
+        }
+        return key.append('}').toString();
+    }
+
+    private static class SimpleCounter implements Counter {
+        private final LongAdder count = new LongAdder();
+
+        @Override
+        public void increment(long amount) {
+            count.add(amount);
+        }
+    }
+
+    private static class SimpleSummary implements DistributionSummary {
+        private final LongAdder count = new LongAdder();
+        private final DoubleAdder total = new DoubleAdder();
+        private final DoubleAccumulator max = new DoubleAccumulator(Math::max, 0);
+
+        @Override
+        public void record(double amount) {
+            count.increment();
+            total.add(amount);
+            max.accumulate(amount);
+        }
+
+        private double mean() {
+            long n = count.sum();
+            return n == 0 ? 0 : total.sum() / n;
+        }
+    }
+
+    private static class SimpleTimer implements Timer {
+        private final SimpleSummary nanos = new SimpleSummary();
+
+        @Override
+        public void record(long amount, TimeUnit unit) {
+            nanos.record(unit.toNanos(amount));
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.amazonaws.transcribestreaming;
+
+import software.amazon.awssdk.services.transcribestreaming.model.StartStreamTranscriptionResponse;
+import software.amazon.awssdk.services.transcribestreaming.model.TranscriptResultStream;
+
+/**
+ * Moves the times in results from the audio that was sent back onto the original audio, for streams that had
+ * silence cut out by a SilenceSkippingInputStream. Everything else is passed to the wrapped behavior unchanged.
+ */
+public class TimeMappingTranscriptionBehavior implements StreamTranscriptionBehavior {
+
+    private final StreamTranscriptionBehavior delegate;
+    private final AudioTimeMap timeMap;
+
+    /**
+     * @param delegate Behavior to pass the mapped results to
+     * @param timeMap Map from sent audio to original audio
+     */
+    public TimeMappingTranscriptionBehavior(StreamTranscriptionBehavior delegate, AudioTimeMap timeMap) {
+        this.delegate = delegate;
+        this.timeMap = timeMap;
+    }
+
+    @Override
+    public void onError(Throwable e) {
+        delegate.onError(e);
+    }
+
+    @Override
+    public void onStream(TranscriptResultStream e) {
+        if (timeMap.getSkippedBytes() == 0) {
+            delegate.onStream(e);
+        } else {
+            delegate.onStream(TranscriptTimes.mapTimes(e, timeMap::toOriginalSeconds));
+        }
+    }
+
+    @Override
+    public void onResponse(StartStreamTranscriptionResponse r) {
+        delegate.onResponse(r);
+    }
+
+    @Override
+    public void onComplete() {
+        delegate.onComplete();
+    }
+}
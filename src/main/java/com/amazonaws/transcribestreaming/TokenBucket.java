@@ -0,0 +1,83 @@
+/*
+ * Copyright 2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.amazonaws.transcribestreaming;
+
+/**
+ * A token bucket that refills continuously at a fixed rate up to a fixed capacity. It never blocks: callers that
+ * cannot take their tokens yet are told how long to wait, so they can schedule a retry instead of sleeping.
+ */
+public class TokenBucket {
+
+    private final double capacity;
+    private final double tokensPerNano;
+    private double tokens;
+    private long lastRefillNanos;
+
+    /**
+     * Create a full token bucket
+     * @param capacity Maximum number of tokens the bucket holds
+     * @param tokensPerSecond Rate at which tokens are added
+     */
+    public TokenBucket(double capacity, double tokensPerSecond) {
+        if (capacity <= 0 || tokensPerSecond <= 0) {
+            throw new IllegalArgumentException("Capacity and refill rate must be positive");
+        }
+        this.capacity = capacity;
+        this.tokensPerNano = tokensPerSecond / 1_000_000_000d;
+        this.tokens = capacity;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    /**
+     * Take tokens from the bucket if enough are available
+     * @param count Number of tokens to take, at most the capacity of the bucket
+     * @return 0 if the tokens were taken, otherwise the number of nanoseconds until enough tokens will be available
+     */
+    public synchronized long tryAcquire(double count) {
+        if (count > capacity) {
+            throw new IllegalArgumentException("Cannot acquire more tokens than the bucket capacity");
+        }
+        refill();
+        if (tokens >= count) {
+            tokens -= count;
+            return 0;
+        }
+        return Math.max(1, (long) Math.ceil((count - tokens) / tokensPerNano));
+    }
+
+    /**
+     * @return Number of tokens currently available
+     */
+    public synchronized double getAvailableTokens() {
+        refill();
+        return tokens;
+    }
+
+    /**
+     * @return Maximum number of tokens the bucket holds
+     */
+    public double getCapacity() {
+        return capacity;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefillNanos) * tokensPerNano);
+        lastRefillNanos = now;
+    }
+}
@@ -17,26 +17,22 @@
 
 package com.amazonaws.transcribestreaming;
 
-import org.reactivestreams.Publisher;
-import org.reactivestreams.Subscriber;
 import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
 import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
 import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.regions.providers.DefaultAwsRegionProviderChain;
 import software.amazon.awssdk.services.transcribestreaming.TranscribeStreamingAsyncClient;
-import software.amazon.awssdk.services.transcribestreaming.model.AudioStream;
 import software.amazon.awssdk.services.transcribestreaming.model.MediaEncoding;
 import software.amazon.awssdk.services.transcribestreaming.model.StartStreamTranscriptionRequest;
 
-import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.LineUnavailableException;
 import javax.sound.sampled.Mixer;
 import javax.sound.sampled.UnsupportedAudioFileException;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
@@ -50,26 +46,224 @@ import java.util.concurrent.CompletableFuture;
  */
 public class TranscribeStreamingClientWrapper {
 
+    private static final double DEFAULT_FILE_PACING_SPEED = 1.0;
+
     private TranscribeStreamingRetryClient client;
     private AudioStreamPublisher requestStream;
+    private double filePacingSpeed = DEFAULT_FILE_PACING_SPEED;
+    private boolean skipSilence = false;
+    private MediaEncoding mediaEncoding = MediaEncoding.PCM;
+    private FlacEncodingInputStream encoder;
+    private boolean trackLatency = false;
+    private boolean channelIdentification = false;
+    private TranscriptLatencyTracker latencyTracker;
+    private int micBufferMillis = MicCaptureInputStream.DEFAULT_BUFFER_MILLIS;
+    private MicCaptureInputStream.OverflowPolicy micOverflowPolicy = MicCaptureInputStream.OverflowPolicy.DROP_OLDEST;
+    private MicCaptureInputStream micCapture;
 
     public TranscribeStreamingClientWrapper() {
         client = new TranscribeStreamingRetryClient(getClient());
     }
 
     public static TranscribeStreamingAsyncClient getClient() {
+        return getClientBuilder().build();
+    }
+
+    /**
+     * Build a client that can carry many streams at once, for use with TranscribeStreamingSessionManager. The
+     * default HTTP client only allows a small number of concurrent streams.
+     * @param maxConcurrentStreams Maximum number of streams open at the same time
+     * @return client shared by all streams
+     */
+    public static TranscribeStreamingAsyncClient getClient(int maxConcurrentStreams) {
+        return getClient(maxConcurrentStreams, getDefaultEndpoint(getRegion()));
+    }
+
+    /**
+     * Build a client that can carry many streams at once and sends them to the given endpoint, such as a
+     * MockTranscribeStreamingServer
+     * @param maxConcurrentStreams Maximum number of streams open at the same time
+     * @param endpoint Endpoint URI to send streams to
+     * @return client shared by all streams
+     */
+    public static TranscribeStreamingAsyncClient getClient(int maxConcurrentStreams, String endpoint) {
+        return getClientBuilder(endpoint)
+                .httpClientBuilder(NettyNioAsyncHttpClient.builder()
+                        .maxConcurrency(maxConcurrentStreams))
+                .build();
+    }
+
+    private static TranscribeStreamingAsyncClient.Builder getClientBuilder() {
+        return getClientBuilder(getDefaultEndpoint(getRegion()));
+    }
+
+    private static String getDefaultEndpoint(Region region) {
+        return "https://transcribestreaming." + region.toString().toLowerCase().replace('_','-') + ".amazonaws.com";
+    }
+
+    private static TranscribeStreamingAsyncClient.Builder getClientBuilder(String endpoint) {
         Region region = getRegion();
-        String endpoint = "https://transcribestreaming." + region.toString().toLowerCase().replace('_','-') + ".amazonaws.com";
         try {
             return TranscribeStreamingAsyncClient.builder()
                     .credentialsProvider(getCredentials())
                     .endpointOverride(new URI(endpoint))
-                    .region(region)
-                    .build();
+                    .region(region);
         } catch (URISyntaxException e) {
             throw new IllegalArgumentException("Invalid URI syntax for endpoint: " + endpoint);
         }
+    }
+
+    /**
+     * Get file pacing speed
+     * @return Multiple of real time at which audio files are streamed, 0 if files are not paced
+     */
+    public double getFilePacingSpeed() {
+        return filePacingSpeed;
+    }
+
+    /**
+     * Set the speed at which audio files are streamed, as a multiple of real time. Files can be read much faster than
+     * they are spoken, and streaming them unpaced causes the service to throttle the stream.
+     * @param filePacingSpeed Multiple of real time, e.g. 1.0 for real time, or 0 to stream as fast as possible
+     */
+    public void setFilePacingSpeed(double filePacingSpeed) {
+        if (filePacingSpeed < 0) {
+            throw new IllegalArgumentException("Pacing speed must not be negative");
+        }
+        this.filePacingSpeed = filePacingSpeed;
+    }
+
+    /**
+     * Get skip silence
+     * @return True if long silences are cut out of the audio before it is sent
+     */
+    public boolean isSkipSilence() {
+        return skipSilence;
+    }
+
+    /**
+     * Cut long silences out of the audio before it is sent, to save on the audio that is paid for. Times in results
+     * are mapped back to the original audio before they reach the response handler.
+     * @param skipSilence True to cut long silences
+     */
+    public void setSkipSilence(boolean skipSilence) {
+        this.skipSilence = skipSilence;
+    }
+
+    /**
+     * Get microphone buffer length
+     * @return Milliseconds of microphone audio buffered while the stream is not read
+     */
+    public int getMicBufferMillis() {
+        return micBufferMillis;
+    }
+
+    /**
+     * Set how much microphone audio is buffered while the stream is not read, e.g. while the network stalls
+     * @param micBufferMillis Depth of the buffer in milliseconds of audio
+     */
+    public void setMicBufferMillis(int micBufferMillis) {
+        if (micBufferMillis <= 0) {
+            throw new IllegalArgumentException("Buffer length must be positive");
+        }
+        this.micBufferMillis = micBufferMillis;
+    }
+
+    /**
+     * Get microphone overflow policy
+     * @return What is done with microphone audio when the buffer is full
+     */
+    public MicCaptureInputStream.OverflowPolicy getMicOverflowPolicy() {
+        return micOverflowPolicy;
+    }
+
+    /**
+     * Set what is done with microphone audio when the buffer is full: drop the oldest audio, stop draining the
+     * microphone, or spill to disk
+     * @param micOverflowPolicy Overflow policy, DROP_OLDEST by default
+     */
+    public void setMicOverflowPolicy(MicCaptureInputStream.OverflowPolicy micOverflowPolicy) {
+        this.micOverflowPolicy = micOverflowPolicy;
+    }
+
+    /**
+     * Get the capture of the current or last stream if it was from a microphone, to read its overrun and underrun
+     * counts
+     * @return capture, or null if the stream was not from a microphone
+     */
+    public MicCaptureInputStream getMicCapture() {
+        return micCapture;
+    }
+
+    /**
+     * Get media encoding
+     * @return Encoding audio is sent in
+     */
+    public MediaEncoding getMediaEncoding() {
+        return mediaEncoding;
+    }
+
+    /**
+     * Send audio from files and the microphone in the given encoding. FLAC is lossless and typically halves the bytes
+     * uploaded, at the cost of some CPU. Audio passed in as a publisher must already be in this encoding.
+     * @param mediaEncoding PCM or FLAC
+     */
+    public void setMediaEncoding(MediaEncoding mediaEncoding) {
+        if (mediaEncoding != MediaEncoding.PCM && mediaEncoding != MediaEncoding.FLAC) {
+            throw new IllegalArgumentException("Cannot encode audio as " + mediaEncoding + ", use PCM or FLAC");
+        }
+        this.mediaEncoding = mediaEncoding;
+    }
+
+    /**
+     * Get the FLAC encoder of the last stream started, to read how many bytes it has taken in and written out
+     * @return encoder, or null if no stream has been started or audio is sent as PCM
+     */
+    public FlacEncodingInputStream getEncoder() {
+        return encoder;
+    }
+
+    /**
+     * Get channel identification
+     * @return True if stereo audio is sent with its channels apart, to be transcribed separately
+     */
+    public boolean isChannelIdentification() {
+        return channelIdentification;
+    }
+
+    /**
+     * Send both channels of stereo files, and record the microphone in stereo, so the service transcribes each
+     * channel on its own and labels results with their channel, e.g. for an agent and a customer on one call. Use a
+     * ChannelRoutingTranscriptionBehavior to handle the results of each channel separately.
+     * @param channelIdentification True to identify channels
+     */
+    public void setChannelIdentification(boolean channelIdentification) {
+        this.channelIdentification = channelIdentification;
+    }
 
+    /**
+     * Get track latency
+     * @return True if the latency of results is measured for PCM streams started from a file or the microphone
+     */
+    public boolean isTrackLatency() {
+        return trackLatency;
+    }
+
+    /**
+     * Measure the time from capturing audio to receiving results for it, printing percentiles when each stream
+     * completes. Only applies to audio sent as PCM.
+     * @param trackLatency True to measure latency
+     */
+    public void setTrackLatency(boolean trackLatency) {
+        this.trackLatency = trackLatency;
+    }
+
+    /**
+     * Get the latency tracker of the last stream started
+     * @return tracker, or null if no stream has been started or its latency is not tracked
+     */
+    public TranscriptLatencyTracker getLatencyTracker() {
+        return latencyTracker;
     }
 
     /**
@@ -107,14 +301,24 @@ public class TranscribeStreamingClientWrapper {
             throw new IllegalStateException("Stream is already open");
         }
 
-        int sampleRate = 16_000; //default
+        micCapture = null;
         try {
-            sampleRate = (int) AudioSystem.getAudioInputStream(inputFile).getFormat().getSampleRate();
-            requestStream = new AudioStreamPublisher(getStreamFromFile(inputFile));
+            AudioFilePipeline pipeline = new AudioFilePipeline(MappedWavFile.open(inputFile.toPath()));
+            if (skipSilence) {
+                pipeline.setMaxSilenceMillis(SilenceSkippingInputStream.DEFAULT_MAX_SILENCE_MILLIS);
+            }
+            pipeline.setMediaEncoding(mediaEncoding);
+            pipeline.setPacingSpeed(filePacingSpeed);
+            pipeline.setChannelIdentification(channelIdentification);
+            requestStream = pipeline.createPublisher();
+            encoder = pipeline.getEncoder();
+            responseHandler = trackLatency(pipeline.mapTimes(responseHandler), pipeline.getFormat());
+            int sampleRate = (int) pipeline.getFormat().getSampleRate();
             return startTranscription(
                 responseHandler, 
                 requestStream, 
                 sampleRate,
+                pipeline.getFormat().getChannels(),
                 languageCode,
                 showSpeakerLabel);
             
@@ -140,14 +344,35 @@ public class TranscribeStreamingClientWrapper {
         }
 
         int sampleRate = 16_000; //default
+        int channels = channelIdentification ? AudioFilePipeline.MAX_IDENTIFIED_CHANNELS : 1;
+        AudioFormat format = AudioUtil.getMicFormat(channels);
         try {
-            requestStream = new AudioStreamPublisher(AudioUtil.getStreamFromMic(mic));
-            return startTranscription(
+            micCapture = AudioUtil.getStreamFromMic(mic, channels, micBufferMillis, micOverflowPolicy);
+            InputStream audio = micCapture;
+            if (skipSilence) {
+                SilenceSkippingInputStream silenceSkipping = new SilenceSkippingInputStream(audio, format);
+                responseHandler = new TimeMappingTranscriptionBehavior(responseHandler, silenceSkipping.getTimeMap());
+                audio = silenceSkipping;
+            }
+            encoder = null;
+            if (mediaEncoding == MediaEncoding.FLAC) {
+                encoder = new FlacEncodingInputStream(audio, format, FlacEncodingInputStream.blockSizeFor(
+                        format, ByteToAudioEventSubscription.DEFAULT_CHUNK_SIZE_IN_BYTES));
+                audio = encoder;
+            }
+            requestStream = new AudioStreamPublisher(audio);
+            responseHandler = trackLatency(responseHandler, format);
+            CompletableFuture<Void> result = startTranscription(
                 responseHandler, 
                 requestStream, 
                 sampleRate,
+                channels,
                 languageCode,
                 showSpeakerLabel);
+            //Nothing reads the microphone once the session is over, so closing it again deletes any spill file left
+            MicCaptureInputStream capture = micCapture;
+            result.whenComplete((r, e) -> capture.close());
+            return result;
 
         } catch (LineUnavailableException ex) {
             CompletableFuture<Void> failedFuture = new CompletableFuture<>();
@@ -162,29 +387,66 @@ public class TranscribeStreamingClientWrapper {
         int sampleRate,
         String languageCode,
         boolean showSpeakerLabel) {
-        
+
+        return startTranscription(responseHandler, publisher, sampleRate, 1, languageCode, showSpeakerLabel);
+    }
+
+    /**
+     * Start transcribing audio from a publisher
+     * @param channels Number of interleaved channels in the audio, with channel identification turned on if above 1
+     */
+    public CompletableFuture<Void> startTranscription(
+        StreamTranscriptionBehavior responseHandler,
+        AudioStreamPublisher publisher,
+        int sampleRate,
+        int channels,
+        String languageCode,
+        boolean showSpeakerLabel) {
+
         return client.startStreamTranscription(
                     //Request parameters. Refer to API documentation for details.
-                    getRequest(sampleRate, languageCode, showSpeakerLabel),
+                    getRequest(sampleRate, channels, languageCode, showSpeakerLabel),
                     //AudioEvent publisher containing "chunks" of audio data to transcribe
-                    requestStream,
+                    publisher,
                     //Defines what to do with transcripts as they arrive from the service
                     responseHandler);
     }
 
+    /**
+     * Stamp the chunks of the request stream just created and wrap the response handler to measure latency, if latency
+     * is tracked and the audio is sent as PCM
+     * @param responseHandler Behavior to pass results on to, seeing times of the audio as sent
+     * @param format Format of the audio sent
+     * @return the behavior, wrapped if latency is tracked
+     */
+    private StreamTranscriptionBehavior trackLatency(StreamTranscriptionBehavior responseHandler, AudioFormat format) {
+        latencyTracker = null;
+        if (!trackLatency || mediaEncoding != MediaEncoding.PCM) {
+            return responseHandler;
+        }
+        latencyTracker = new TranscriptLatencyTracker(format);
+        requestStream.setLatencyTracker(latencyTracker);
+        return latencyTracker.track(responseHandler);
+    }
+
     /**
      * Stop in-progress transcription if there is one in progress by closing the request stream
      */
     public void stopTranscription() {
         if (requestStream != null) {
             try {
-                requestStream.inputStream.close();
+                requestStream.close();
             } catch (IOException ex) {
                 System.out.println("Error stopping input stream: " + ex);
             } finally {
                 requestStream = null;
             }
         }
+        if (micCapture != null) {
+            System.out.println(String.format("Microphone capture: %d overruns in the buffer, %d on the line, "
+                            + "%d bytes dropped, %d bytes spilled to disk", micCapture.getRingOverruns(),
+                    micCapture.getLineOverruns(), micCapture.getDroppedBytes(), micCapture.getSpilledBytes()));
+        }
     }
 
     /**
@@ -193,7 +455,7 @@ public class TranscribeStreamingClientWrapper {
     public void close() {
         try {
             if (requestStream != null) {
-                requestStream.inputStream.close();
+                requestStream.close();
             }
         } catch (IOException ex) {
             System.out.println("error closing in-progress microphone stream: " + ex);
@@ -202,19 +464,6 @@ public class TranscribeStreamingClientWrapper {
         }
     }
 
-    /**
-     * Build an input stream from an audio file
-     * @param inputFile Name of the file containing audio to transcribe
-     * @return InputStream built from reading the file's audio
-     */
-    private static InputStream getStreamFromFile(File inputFile) {
-        try {
-            return new FileInputStream(inputFile);
-        } catch (FileNotFoundException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
     /**
      * Build StartStreamTranscriptionRequestObject containing required parameters to open a streaming transcription
      * request, such as audio sample rate and language spoken in audio
@@ -225,20 +474,26 @@ public class TranscribeStreamingClientWrapper {
      */
     private StartStreamTranscriptionRequest getRequest(
         Integer mediaSampleRateHertz,
+        int channels,
         String languageCode,
         boolean showSpeakerLabel
     ) {
         System.out.println(
             "Request [MediaSampleRateHertz: " + mediaSampleRateHertz + ", " +
+            "MediaEncoding: " + mediaEncoding + ", " +
+            "NumberOfChannels: " + channels + ", " +
             "LanguageCode: " + languageCode + ", " +
             "ShowSpeakerLabel: " + showSpeakerLabel + "]");
 
-        return StartStreamTranscriptionRequest.builder()
+        StartStreamTranscriptionRequest.Builder builder = StartStreamTranscriptionRequest.builder()
                 .languageCode(languageCode)
-                .mediaEncoding(MediaEncoding.PCM)
+                .mediaEncoding(mediaEncoding)
                 .mediaSampleRateHertz(mediaSampleRateHertz)
-                .showSpeakerLabel(showSpeakerLabel)
-                .build();
+                .showSpeakerLabel(showSpeakerLabel);
+        if (channels > 1) {
+            builder.enableChannelIdentification(true).numberOfChannels(channels);
+        }
+        return builder.build();
     }
 
     /**
@@ -249,21 +504,4 @@ public class TranscribeStreamingClientWrapper {
     private static AwsCredentialsProvider getCredentials() {
         return DefaultCredentialsProvider.create();
     }
-
-    /**
-     * AudioStreamPublisher implements audio stream publisher.
-     * AudioStreamPublisher emits audio stream asynchronously in a separate thread
-     */
-    private static class AudioStreamPublisher implements Publisher<AudioStream> {
-        private final InputStream inputStream;
-
-        private AudioStreamPublisher(InputStream inputStream) {
-            this.inputStream = inputStream;
-        }
-
-        @Override
-        public void subscribe(Subscriber<? super AudioStream> s) {
-            s.onSubscribe(new ByteToAudioEventSubscription(s, inputStream));
-        }
-    }
 }
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.amazonaws.transcribestreaming;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The meters recorded by the streaming pipeline, looked up once from a MetricsRegistry so that recording on the hot
+ * path is a call on a meter that is already resolved and does not allocate:
+ *
+ * transcribe.audio.chunks and transcribe.audio.bytes count the AudioEvents built for sending and their size.
+ * transcribe.audio.backlog is the number of chunks read ahead and waiting for demand, each time one is added.
+ * transcribe.response.first is the time from starting an attempt to the service's initial response.
+ * transcribe.segment.finalization is the time from the first partial result of a segment to its final result.
+ * transcribe.retries counts retries, tagged with the simple class name of the exception.
+ * transcribe.sessions.active is the number of streams started and not yet finished, over every instance created on
+ * the same registry.
+ * transcribe.latency.partial and transcribe.latency.final are the times from capturing audio to receiving a partial
+ * or final result covering it, for streams with a TranscriptLatencyTracker.
+ * transcribe.mic.overruns counts captured microphone audio that found a buffer full, tagged with the buffer, "line"
+ * or "ring". transcribe.mic.underruns counts reads of a MicCaptureInputStream that waited for audio, and
+ * transcribe.mic.dropped and transcribe.mic.spilled the bytes it dropped or spilled to disk.
+ *
+ * Components use the default instance unless they are given another. It records nothing until a registry is set
+ * with setDefault, which should be done before any stream is started.
+ */
+public final class TranscribeStreamingMetrics {
+
+    //A registry keeps only the first gauge of a name, so all instances on one registry share the session count
+    private static final Map<MetricsRegistry, AtomicLong> ACTIVE_SESSIONS =
+            Collections.synchronizedMap(new WeakHashMap<>());
+    private static volatile TranscribeStreamingMetrics defaultMetrics =
+            new TranscribeStreamingMetrics(MetricsRegistry.noop());
+
+    private final MetricsRegistry registry;
+    private final MetricsRegistry.Counter chunks;
+    private final MetricsRegistry.Counter bytes;
+    private final MetricsRegistry.DistributionSummary backlog;
+    private final MetricsRegistry.Timer firstResponse;
+    private final MetricsRegistry.Timer segmentFinalization;
+    private final MetricsRegistry.Timer partialLatency;
+    private final MetricsRegistry.Timer finalLatency;
+    private final MetricsRegistry.Counter micLineOverruns;
+    private final MetricsRegistry.Counter micRingOverruns;
+    private final MetricsRegistry.Counter micUnderruns;
+    private final MetricsRegistry.Counter micDropped;
+    private final MetricsRegistry.Counter micSpilled;
+    private final Map<Class<?>, MetricsRegistry.Counter> retries = new ConcurrentHashMap<>();
+    private final AtomicLong activeSessions;
+
+    /**
+     * @param registry Registry to create the meters in
+     */
+    public TranscribeStreamingMetrics(MetricsRegistry registry) {
+        this.registry = registry;
+        this.chunks = registry.counter("transcribe.audio.chunks");
+        this.bytes = registry.counter("transcribe.audio.bytes");
+        this.backlog = registry.summary("transcribe.audio.backlog");
+        this.firstResponse = registry.timer("transcribe.response.first");
+        this.segmentFinalization = registry.timer("transcribe.segment.finalization");
+        this.partialLatency = registry.timer("transcribe.latency.partial");
+        this.finalLatency = registry.timer("transcribe.latency.final");
+        this.micLineOverruns = registry.counter("transcribe.mic.overruns", "buffer", "line");
+        this.micRingOverruns = registry.counter("transcribe.mic.overruns", "buffer", "ring");
+        this.micUnderruns = registry.counter("transcribe.mic.underruns");
+        this.micDropped = registry.counter("transcribe.mic.dropped");
+        this.micSpilled = registry.counter("transcribe.mic.spilled");
+        this.activeSessions = ACTIVE_SESSIONS.computeIfAbsent(registry, r -> {
+            AtomicLong sessions = new AtomicLong();
+            r.gauge("transcribe.sessions.active", sessions::get);
+            return sessions;
+        });
+    }
+
+    /**
+     * @return Metrics used by components that are not given their own
+     */
+    public static TranscribeStreamingMetrics getDefault() {
+        return defaultMetrics;
+    }
+
+    /**
+     * Set the metrics used by components created from now on that are not given their own
+     * @param metrics Default metrics
+     */
+    public static void setDefault(TranscribeStreamingMetrics metrics) {
+        if (metrics == null) {
+            throw new IllegalArgumentException("Metrics is null");
+        }
+        defaultMetrics = metrics;
+    }
+
+    /**
+     * @return True unless the meters record nothing, so callers can skip work done only for metrics
+     */
+    public boolean isEnabled() {
+        return !(registry instanceof NoopMetricsRegistry);
+    }
+
+    public void chunkRead(int sizeInBytes, int backlogInChunks) {
+        chunks.increment();
+        bytes.increment(sizeInBytes);
+        backlog.record(backlogInChunks);
+    }
+
+    public void firstResponse(long nanos) {
+        firstResponse.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void segmentFinalized(long nanos) {
+        segmentFinalization.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void partialResultLatency(long nanos) {
+        partialLatency.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void finalResultLatency(long nanos) {
+        finalLatency.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void micLineOverrun() {
+        micLineOverruns.increment();
+    }
+
+    public void micRingOverrun() {
+        micRingOverruns.increment();
+    }
+
+    public void micUnderrun() {
+        micUnderruns.increment();
+    }
+
+    public void micDropped(long bytes) {
+        micDropped.increment(bytes);
+    }
+
+    public void micSpilled(long bytes) {
+        micSpilled.increment(bytes);
+    }
+
+    public void retry(Throwable cause) {
+        retries.computeIfAbsent(cause.getClass(),
+                type -> registry.counter("transcribe.retries", "exception", type.getSimpleName())).increment();
+    }
+
+    public void sessionStarted() {
+        activeSessions.incrementAndGet();
+    }
+
+    public void sessionEnded() {
+        activeSessions.decrementAndGet();
+    }
+}
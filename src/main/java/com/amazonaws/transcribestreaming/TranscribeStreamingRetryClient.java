@@ -19,10 +19,22 @@ package com.amazonaws.transcribestreaming;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
 import org.reactivestreams.Publisher;
 import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
 import software.amazon.awssdk.auth.signer.EventStreamAws4Signer;
@@ -35,14 +47,42 @@ import software.amazon.awssdk.services.transcribestreaming.model.*;
 /**
  * This class wraps the AWS SDK implementation of the AWS Transcribe API with some retry logic to handle common
  * error cases, such as flaky network connections.
+ *
+ * For PCM streams the most recently sent audio is kept in a replay buffer. A retried session first receives that
+ * audio, so speech that was in flight when the connection dropped is transcribed, and the times in its transcripts
+ * are moved onto the timeline of the original stream. The size of the buffer trades memory for how much audio can be
+ * recovered. FLAC streams from an AudioStreamPublisher get the same replay from their encoder, which keeps the PCM
+ * of its latest blocks and starts the new FLAC stream with them.
+ *
+ * Retries are scheduled, never slept on, with exponential backoff and full jitter so that streams failing together
+ * do not retry together. A retry budget shared by all streams of the client caps the overall retry rate, so a
+ * regional outage does not turn into a retry storm.
+ *
+ * Active streams, time to the first response of each attempt, time from the first partial to the final result of
+ * each segment and retries by exception class are recorded on the client's TranscribeStreamingMetrics.
  */
 public class TranscribeStreamingRetryClient {
 
     private static final int DEFAULT_MAX_RETRIES = 10;
     private static final int DEFAULT_MAX_SLEEP_TIME_MILLS = 100;
+    private static final int DEFAULT_MAX_BACKOFF_TIME_MILLS = 20_000;
+    private static final double DEFAULT_RETRY_BUDGET_CAPACITY = 20;
+    private static final double DEFAULT_RETRY_BUDGET_PER_SECOND = 2;
+    private static final double DEFAULT_REPLAY_BUFFER_SECONDS = 5;
+    private static final int BYTES_PER_PCM_SAMPLE = 2;
     private int maxRetries = DEFAULT_MAX_RETRIES;
     private int sleepTime = DEFAULT_MAX_SLEEP_TIME_MILLS;
+    private int maxBackoffTime = DEFAULT_MAX_BACKOFF_TIME_MILLS;
+    private volatile TokenBucket retryBudget =
+            new TokenBucket(DEFAULT_RETRY_BUDGET_CAPACITY, DEFAULT_RETRY_BUDGET_PER_SECOND);
+    private double replayBufferSeconds = DEFAULT_REPLAY_BUFFER_SECONDS;
+    private volatile TranscribeStreamingMetrics metrics = TranscribeStreamingMetrics.getDefault();
     private final TranscribeStreamingAsyncClient client;
+    private final ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "transcribe-retry-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
     List<Class<?>> nonRetriableExceptions = Arrays.asList(BadRequestException.class);
 
     /**
@@ -91,20 +131,87 @@ public class TranscribeStreamingRetryClient {
 
     /**
      * Get sleep time
-     * @return sleep time between retries
+     * @return base delay in milliseconds before the first retry
      */
     public int getSleepTime() {
         return sleepTime;
     }
 
     /**
-     * Set sleep time between retries
-     * @param sleepTime sleep time
+     * Set the base delay before retrying. The delay limit doubles with every attempt, up to the max backoff time,
+     * and the actual delay is picked at random below that limit.
+     * @param sleepTime base delay in milliseconds
      */
     public void setSleepTime(int sleepTime) {
         this.sleepTime = sleepTime;
     }
 
+    /**
+     * Get max backoff time
+     * @return upper limit in milliseconds of the delay between retries
+     */
+    public int getMaxBackoffTime() {
+        return maxBackoffTime;
+    }
+
+    /**
+     * Set the upper limit of the delay between retries
+     * @param maxBackoffTime max backoff time in milliseconds
+     */
+    public void setMaxBackoffTime(int maxBackoffTime) {
+        this.maxBackoffTime = maxBackoffTime;
+    }
+
+    /**
+     * Set the retry budget shared by all streams of this client. Each retry takes one token; when none are left the
+     * stream fails instead of retrying.
+     * @param capacity Maximum number of retries that can be made in a burst
+     * @param retriesPerSecond Rate at which the budget refills
+     */
+    public void setRetryBudget(double capacity, double retriesPerSecond) {
+        this.retryBudget = new TokenBucket(capacity, retriesPerSecond);
+    }
+
+    /**
+     * Get replay buffer size
+     * @return Seconds of recently sent audio kept for replay on retry
+     */
+    public double getReplayBufferSeconds() {
+        return replayBufferSeconds;
+    }
+
+    /**
+     * Set how many seconds of recently sent audio are kept, off-heap, and replayed to the new session on retry. A
+     * larger buffer recovers more audio after a long disconnect, but uses more memory per stream and delays live
+     * audio on the new session while the buffer is replayed.
+     * @param replayBufferSeconds Seconds of audio to keep, or 0 to disable replay
+     */
+    public void setReplayBufferSeconds(double replayBufferSeconds) {
+        if (replayBufferSeconds < 0) {
+            throw new IllegalArgumentException("Replay buffer size must not be negative");
+        }
+        this.replayBufferSeconds = replayBufferSeconds;
+    }
+
+    /**
+     * Get metrics
+     * @return Metrics that streams of this client are recorded on
+     */
+    public TranscribeStreamingMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Set the metrics that streams started from now on are recorded on
+     * @param metrics metrics
+     */
+    public void setMetrics(TranscribeStreamingMetrics metrics) {
+        if (metrics == null) {
+            throw new IllegalArgumentException("Metrics is null");
+        }
+        this.metrics = metrics;
+    }
+
     /**
      * Initiate a Stream Transcription with retry.
      * @param request StartStreamTranscriptionRequest to use to start transcription
@@ -119,65 +226,83 @@ public class TranscribeStreamingRetryClient {
 
         CompletableFuture<Void> finalFuture = new CompletableFuture<>();
 
-        recursiveStartStream(rebuildRequestWithSession(request), publisher, responseHandler, finalFuture, 0);
+        Publisher<AudioStream> streamPublisher = publisher;
+        StreamTranscriptionBehavior streamBehavior = responseHandler;
+        if (replayBufferSeconds > 0 && MediaEncoding.PCM.equals(request.mediaEncoding())) {
+            int frameSize = BYTES_PER_PCM_SAMPLE * channelCount(request);
+            int bytesPerSecond = request.mediaSampleRateHertz() * frameSize;
+            AudioReplayBuffer replayBuffer = new AudioReplayBuffer(
+                    (int) Math.ceil(replayBufferSeconds * bytesPerSecond), frameSize);
+            ReplayingAudioPublisher replayingPublisher = new ReplayingAudioPublisher(
+                    publisher, replayBuffer, ByteToAudioEventSubscription.DEFAULT_CHUNK_SIZE_IN_BYTES);
+            streamPublisher = replayingPublisher;
+            streamBehavior = new RebasingTranscriptionBehavior(responseHandler, replayingPublisher::isResumed,
+                    replayingPublisher::getSessionStartOffsetInBytes, bytesPerSecond);
+        } else if (MediaEncoding.FLAC.equals(request.mediaEncoding()) && publisher instanceof AudioStreamPublisher
+                && ((AudioStreamPublisher) publisher).getFlacEncoder() != null) {
+            //A FLAC stream cannot be resumed part way, so the encoder encodes the replayed PCM into the new stream
+            FlacEncodingInputStream encoder = ((AudioStreamPublisher) publisher).getFlacEncoder();
+            int bytesPerSecond = request.mediaSampleRateHertz() * BYTES_PER_PCM_SAMPLE * channelCount(request);
+            encoder.setReplayBlocks((int) Math.ceil(
+                    replayBufferSeconds * request.mediaSampleRateHertz() / encoder.getBlockSize()));
+            streamBehavior = new RebasingTranscriptionBehavior(responseHandler, encoder::isRestarted,
+                    encoder::getStreamStartOffsetInBytes, bytesPerSecond);
+        }
+        TranscribeStreamingMetrics streamMetrics = metrics;
+        if (streamMetrics.isEnabled()) {
+            streamBehavior = new SegmentLatencyBehavior(streamBehavior, streamMetrics);
+        }
+        streamMetrics.sessionStarted();
+        finalFuture.whenComplete((r, e) -> streamMetrics.sessionEnded());
+
+        new RetryingStream(rebuildRequestWithSession(request), streamPublisher, streamBehavior, finalFuture,
+                streamMetrics).start();
 
         return finalFuture;
     }
 
     /**
-     * Recursively call startStreamTranscription() to be called till the request is completed or till we run out of retries.
-     * @param request StartStreamTranscriptionRequest
-     * @param publisher The source audio stream as Publisher
-     * @param responseHandler StreamTranscriptionBehavior object that defines how the response needs to be handled.
-     * @param finalFuture final future to finish on completing the chained futures.
-     * @param retryAttempt Current attempt number
-     */
-    private void recursiveStartStream(final StartStreamTranscriptionRequest request,
-                                      final Publisher<AudioStream> publisher,
-                                      final StreamTranscriptionBehavior responseHandler,
-                                      final CompletableFuture<Void> finalFuture,
-                                      final int retryAttempt) {
-        CompletableFuture<Void> result = client.startStreamTranscription(request, publisher,
-                                                                         getResponseHandler(responseHandler));
-        result.whenComplete((r, e) -> {
-            if (e != null) {
-
-                if (retryAttempt <= maxRetries && isExceptionRetriable(e)) {
-                    System.out.println("Retry attempt:" + (retryAttempt+1) );
-
-                    try {
-                        Thread.sleep(sleepTime);
-                    } catch (InterruptedException e1) {
-                        e1.printStackTrace();
-                    }
-                    recursiveStartStream(request, publisher, responseHandler, finalFuture, retryAttempt + 1);
-                } else {
-                    responseHandler.onError(e);
-                    finalFuture.completeExceptionally(e);
-                }
-            } else {
-                responseHandler.onComplete();
-                finalFuture.complete(null);
-            }
-        });
+     * Pick the delay before a retry using exponential backoff with full jitter
+     * @param retryAttempt Number of the retry, starting at 1
+     * @return delay in milliseconds
+     */
+    private long getBackoffDelay(int retryAttempt) {
+        long limit = Math.min(maxBackoffTime, (long) sleepTime << Math.min(retryAttempt - 1, 30));
+        return ThreadLocalRandom.current().nextLong(limit + 1);
     }
+
+    /**
+     * Give the request a session id, unless the caller already set one, so every retry resumes the same session
+     */
     private StartStreamTranscriptionRequest rebuildRequestWithSession(StartStreamTranscriptionRequest request) {
-        return StartStreamTranscriptionRequest.builder()
-                .languageCode(request.languageCode())
-                .mediaEncoding(request.mediaEncoding())
-                .mediaSampleRateHertz(request.mediaSampleRateHertz())
+        if (request.sessionId() != null) {
+            return request;
+        }
+        return request.toBuilder()
                 .sessionId(UUID.randomUUID().toString())
                 .build();
     }
 
+    /**
+     * @return Number of interleaved channels in the audio of a request
+     */
+    private static int channelCount(StartStreamTranscriptionRequest request) {
+        if (Boolean.TRUE.equals(request.enableChannelIdentification()) && request.numberOfChannels() != null) {
+            return request.numberOfChannels();
+        }
+        return 1;
+    }
+
     /**
      * StartStreamTranscriptionResponseHandler implements subscriber of transcript stream
      * Output is printed to standard output
      */
     private StartStreamTranscriptionResponseHandler getResponseHandler(
-            StreamTranscriptionBehavior transcriptionBehavior) {
+            StreamTranscriptionBehavior transcriptionBehavior, TranscribeStreamingMetrics streamMetrics) {
+        long startNanos = System.nanoTime();
         final StartStreamTranscriptionResponseHandler build = StartStreamTranscriptionResponseHandler.builder()
                 .onResponse(r -> {
+                    streamMetrics.firstResponse(System.nanoTime() - startNanos);
                     transcriptionBehavior.onResponse(r);
                 })
                 .onError(e -> {
@@ -199,14 +324,214 @@ public class TranscribeStreamingRetryClient {
      */
     private boolean isExceptionRetriable(Throwable e) {
         e.printStackTrace();
-        if (nonRetriableExceptions.contains(e.getClass())) {
+        if (nonRetriableExceptions.contains(unwrap(e).getClass())) {
             return false;
         }
         return true;
     }
+
+    /**
+     * @return the exception that caused a stream to fail, without the wrappers added by futures
+     */
+    private static Throwable unwrap(Throwable e) {
+        Throwable cause = e;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException)
+                && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause;
+    }
     public void close() {
+        this.retryScheduler.shutdownNow();
         this.client.close();
     }
 
+    /**
+     * Runs the attempts of one stream. Each attempt is started from the completion of the previous one, via the
+     * retry scheduler, so no thread waits and no chain of futures builds up however often the stream is retried.
+     */
+    private class RetryingStream {
+        private final StartStreamTranscriptionRequest request;
+        private final Publisher<AudioStream> publisher;
+        private final StreamTranscriptionBehavior responseHandler;
+        private final CompletableFuture<Void> finalFuture;
+        private final TranscribeStreamingMetrics streamMetrics;
+        private int retryAttempt = 0;
+
+        private RetryingStream(StartStreamTranscriptionRequest request,
+                               Publisher<AudioStream> publisher,
+                               StreamTranscriptionBehavior responseHandler,
+                               CompletableFuture<Void> finalFuture,
+                               TranscribeStreamingMetrics streamMetrics) {
+            this.request = request;
+            this.publisher = publisher;
+            this.responseHandler = responseHandler;
+            this.finalFuture = finalFuture;
+            this.streamMetrics = streamMetrics;
+        }
+
+        private void start() {
+            if (finalFuture.isDone()) {
+                return;
+            }
+            client.startStreamTranscription(request, publisher, getResponseHandler(responseHandler, streamMetrics))
+                    .whenComplete((r, e) -> onAttemptComplete(e));
+        }
+
+        private void onAttemptComplete(Throwable e) {
+            if (e == null) {
+                responseHandler.onComplete();
+                finalFuture.complete(null);
+                return;
+            }
+            if (retryAttempt < maxRetries && isExceptionRetriable(e) && retryBudget.tryAcquire(1) == 0) {
+                retryAttempt++;
+                streamMetrics.retry(unwrap(e));
+                long delay = getBackoffDelay(retryAttempt);
+                System.out.println("Retry attempt:" + retryAttempt + " in " + delay + " ms");
+                try {
+                    retryScheduler.schedule(this::start, delay, TimeUnit.MILLISECONDS);
+                    return;
+                } catch (RejectedExecutionException rejected) {
+                    //The client has been closed, give up on the stream
+                }
+            }
+            responseHandler.onError(e);
+            finalFuture.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Moves the times in transcripts of a retried session onto the timeline of the original stream. A retried
+     * session starts with replayed audio, so results that end before the last final result already delivered have
+     * been transcribed before and are dropped.
+     */
+    private static class RebasingTranscriptionBehavior implements StreamTranscriptionBehavior {
+        private final StreamTranscriptionBehavior delegate;
+        private final BooleanSupplier resumed;
+        private final LongSupplier sessionStartOffsetInBytes;
+        private final double bytesPerSecond;
+        private double finalWatermark = 0;
+
+        private RebasingTranscriptionBehavior(StreamTranscriptionBehavior delegate, BooleanSupplier resumed,
+                                              LongSupplier sessionStartOffsetInBytes, int bytesPerSecond) {
+            this.delegate = delegate;
+            this.resumed = resumed;
+            this.sessionStartOffsetInBytes = sessionStartOffsetInBytes;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            delegate.onError(e);
+        }
+
+        @Override
+        public void onStream(TranscriptResultStream e) {
+            delegate.onStream(rebase(e));
+        }
 
+        @Override
+        public void onResponse(StartStreamTranscriptionResponse r) {
+            delegate.onResponse(r);
+        }
+
+        @Override
+        public void onComplete() {
+            delegate.onComplete();
+        }
+
+        private synchronized TranscriptResultStream rebase(TranscriptResultStream event) {
+            if (!(event instanceof TranscriptEvent)) {
+                return event;
+            }
+            boolean resumed = this.resumed.getAsBoolean();
+            double offset = sessionStartOffsetInBytes.getAsLong() / bytesPerSecond;
+            List<Result> results = ((TranscriptEvent) event).transcript().results();
+            List<Result> rebased = new ArrayList<>(results.size());
+            boolean changed = offset != 0;
+            for (Result result : results) {
+                double endTime = result.endTime() == null ? 0 : result.endTime() + offset;
+                if (resumed && endTime <= finalWatermark) {
+                    changed = true;
+                    continue;
+                }
+                if (!Boolean.TRUE.equals(result.isPartial())) {
+                    finalWatermark = Math.max(finalWatermark, endTime);
+                }
+                rebased.add(offset == 0 ? result : TranscriptTimes.mapTimes(result, time -> time + offset));
+            }
+            if (!changed) {
+                return event;
+            }
+            return ((TranscriptEvent) event).toBuilder()
+                    .transcript(Transcript.builder().results(rebased).build())
+                    .build();
+        }
+    }
+
+    /**
+     * Records how long each segment takes from its first partial result to its final result. Only the start time of
+     * segments still partial is kept, so nothing is allocated for events of a segment already seen.
+     */
+    private static class SegmentLatencyBehavior implements StreamTranscriptionBehavior {
+        private final StreamTranscriptionBehavior delegate;
+        private final TranscribeStreamingMetrics metrics;
+        private final Map<String, Long> firstPartialNanos = new HashMap<>();
+
+        private SegmentLatencyBehavior(StreamTranscriptionBehavior delegate, TranscribeStreamingMetrics metrics) {
+            this.delegate = delegate;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            clear();
+            delegate.onError(e);
+        }
+
+        @Override
+        public void onStream(TranscriptResultStream e) {
+            if (e instanceof TranscriptEvent) {
+                record(((TranscriptEvent) e).transcript().results());
+            }
+            delegate.onStream(e);
+        }
+
+        @Override
+        public void onResponse(StartStreamTranscriptionResponse r) {
+            delegate.onResponse(r);
+        }
+
+        @Override
+        public void onComplete() {
+            clear();
+            delegate.onComplete();
+        }
+
+        private synchronized void record(List<Result> results) {
+            long now = System.nanoTime();
+            for (int i = 0; i < results.size(); i++) {
+                Result result = results.get(i);
+                String resultId = result.resultId();
+                if (resultId == null) {
+                    continue;
+                }
+                if (Boolean.TRUE.equals(result.isPartial())) {
+                    if (!firstPartialNanos.containsKey(resultId)) {
+                        firstPartialNanos.put(resultId, now);
+                    }
+                } else {
+                    Long start = firstPartialNanos.remove(resultId);
+                    if (start != null) {
+                        metrics.segmentFinalized(now - start);
+                    }
+                }
+            }
+        }
+
+        private synchronized void clear() {
+            firstPartialNanos.clear();
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.amazonaws.transcribestreaming;
+
+import software.amazon.awssdk.services.transcribestreaming.model.StartStreamTranscriptionRequest;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs many transcription streams at once over one shared TranscribeStreamingRetryClient. Each stream is a
+ * TranscriptionSession with its own id and its own StreamTranscriptionBehavior.
+ *
+ * The number of open sessions is limited. By default a session that would go over the limit is refused straight
+ * away, so the caller can decide whether to wait, shed the call or send it elsewhere; callers that would rather wait
+ * can give a timeout instead. The underlying async client must allow at least as many concurrent streams, see
+ * TranscribeStreamingClientWrapper.getClient(int).
+ */
+public class TranscribeStreamingSessionManager {
+
+    private final TranscribeStreamingRetryClient client;
+    private final int maxConcurrentSessions;
+    private final Semaphore permits;
+    private final Map<String, TranscriptionSession> sessions = new ConcurrentHashMap<>();
+
+    /**
+     * @param client Retry client shared by all sessions
+     * @param maxConcurrentSessions Maximum number of sessions open at the same time
+     */
+    public TranscribeStreamingSessionManager(TranscribeStreamingRetryClient client, int maxConcurrentSessions) {
+        if (maxConcurrentSessions <= 0) {
+            throw new IllegalArgumentException("Max concurrent sessions must be positive");
+        }
+        this.client = client;
+        this.maxConcurrentSessions = maxConcurrentSessions;
+        this.permits = new Semaphore(maxConcurrentSessions);
+    }
+
+    /**
+     * Start a new session
+     * @param request Request parameters of the stream. Its session id is replaced by the id of the new session
+     * @param publisher Audio to transcribe
+     * @param behavior Defines what to do with the results of this session
+     * @return the started session
+     * @throws IllegalStateException if the maximum number of sessions is already open
+     */
+    public TranscriptionSession startSession(StartStreamTranscriptionRequest request,
+                                             AudioStreamPublisher publisher,
+                                             StreamTranscriptionBehavior behavior) {
+        if (!permits.tryAcquire()) {
+            throw new IllegalStateException("Too many concurrent sessions, limit is " + maxConcurrentSessions);
+        }
+        return start(request, publisher, behavior);
+    }
+
+    /**
+     * Start a new session, waiting for another session to end if the maximum number of sessions is open
+     * @param request Request parameters of the stream. Its session id is replaced by the id of the new session
+     * @param publisher Audio to transcribe
+     * @param behavior Defines what to do with the results of this session
+     * @param timeout Maximum time to wait
+     * @param unit Unit of the timeout
+     * @return the started session
+     * @throws IllegalStateException if no session ended within the timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public TranscriptionSession startSession(StartStreamTranscriptionRequest request,
+                                             AudioStreamPublisher publisher,
+                                             StreamTranscriptionBehavior behavior,
+                                             long timeout, TimeUnit unit) throws InterruptedException {
+        if (!permits.tryAcquire(timeout, unit)) {
+            throw new IllegalStateException("Too many concurrent sessions, limit is " + maxConcurrentSessions);
+        }
+        return start(request, publisher, behavior);
+    }
+
+    private TranscriptionSession start(StartStreamTranscriptionRequest request,
+                                       AudioStreamPublisher publisher,
+                                       StreamTranscriptionBehavior behavior) {
+        String sessionId = UUID.randomUUID().toString();
+        CompletableFuture<Void> result;
+        try {
+            result = client.startStreamTranscription(
+                    request.toBuilder().sessionId(sessionId).build(), publisher, behavior);
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+        //The session gets its result before it is published, so other threads never see it without one
+        TranscriptionSession session = new TranscriptionSession(sessionId, publisher, behavior, result);
+        sessions.put(sessionId, session);
+        result.whenComplete((r, e) -> endSession(sessionId));
+        return session;
+    }
+
+    /**
+     * @param sessionId Id of the session
+     * @return the open session with that id, or null if there is none
+     */
+    public TranscriptionSession getSession(String sessionId) {
+        return sessions.get(sessionId);
+    }
+
+    /**
+     * @return Snapshot of the currently open sessions
+     */
+    public Collection<TranscriptionSession> getSessions() {
+        return new ArrayList<>(sessions.values());
+    }
+
+    /**
+     * @return Number of currently open sessions
+     */
+    public int getActiveSessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * @return Maximum number of sessions open at the same time
+     */
+    public int getMaxConcurrentSessions() {
+        return maxConcurrentSessions;
+    }
+
+    /**
+     * Stop sending audio on every open session
+     */
+    public void stopAll() {
+        for (TranscriptionSession session : getSessions()) {
+            session.stop();
+        }
+    }
+
+    private void endSession(String sessionId) {
+        if (sessions.remove(sessionId) != null) {
+            permits.release();
+        }
+    }
+}
@@ -20,17 +20,15 @@ package com.amazonaws.transcribestreaming;
 import software.amazon.awssdk.services.transcribestreaming.TranscribeStreamingAsyncClient;
 import software.amazon.awssdk.services.transcribestreaming.model.LanguageCode;
 import software.amazon.awssdk.services.transcribestreaming.model.MediaEncoding;
-import software.amazon.awssdk.services.transcribestreaming.model.Result;
 import software.amazon.awssdk.services.transcribestreaming.model.StartStreamTranscriptionRequest;
 import software.amazon.awssdk.services.transcribestreaming.model.StartStreamTranscriptionResponseHandler;
-import software.amazon.awssdk.services.transcribestreaming.model.TranscriptEvent;
 
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.UnsupportedAudioFileException;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
@@ -38,72 +36,188 @@ import java.util.concurrent.TimeoutException;
 
 /**
  * An example implementation of a simple synchronous wrapper around the async client
+ *
+ * transcribeFileAsync is the non-blocking form: it returns a future of the transcript, reports progress as the
+ * file is streamed, and stops streaming if the future is cancelled. transcribeFile simply waits on it. All state of
+ * a transcription is kept per request, so one client can transcribe many files at once.
  */
 public class TranscribeStreamingSynchronousClient {
 
     public static final int MAX_TIMEOUT_MS = 15 * 60 * 1000; //15 minutes
 
     private TranscribeStreamingAsyncClient asyncClient;
-    private String finalTranscript = "";
+    private double pacingSpeed = 0;
 
     public TranscribeStreamingSynchronousClient(TranscribeStreamingAsyncClient asyncClient) {
         this.asyncClient = asyncClient;
     }
 
+    /**
+     * Set the speed at which files are streamed, as a multiple of real time. Files are not paced by default. A paced
+     * file is given the time streaming it takes at that speed on top of MAX_TIMEOUT_MS to finish.
+     * @param pacingSpeed Multiple of real time, e.g. 1.0 for real time, or 0 to stream as fast as possible
+     */
+    public void setPacingSpeed(double pacingSpeed) {
+        if (pacingSpeed < 0) {
+            throw new IllegalArgumentException("Pacing speed must not be negative");
+        }
+        this.pacingSpeed = pacingSpeed;
+    }
+
     public String transcribeFile(File audioFile) {
+        long timeoutMillis = getTimeoutMillis(audioFile);
+        CompletableFuture<String> transcriptFuture = transcribeFileAsync(audioFile, null);
         try {
-            int sampleRate = (int) AudioSystem.getAudioInputStream(audioFile).getFormat().getSampleRate();
-            StartStreamTranscriptionRequest request = StartStreamTranscriptionRequest.builder()
-                    .languageCode(LanguageCode.EN_US.toString())
-                    .mediaEncoding(MediaEncoding.PCM)
-                    .mediaSampleRateHertz(sampleRate)
-                    .build();
-            AudioStreamPublisher audioStream = new AudioStreamPublisher(new FileInputStream(audioFile));
-            StartStreamTranscriptionResponseHandler responseHandler = getResponseHandler();
-            System.out.println("launching request");
-            CompletableFuture<Void> resultFuture = asyncClient.startStreamTranscription(request, audioStream, responseHandler);
             System.out.println("waiting for response, this will take some time depending on the length of the audio file");
-            resultFuture.get(MAX_TIMEOUT_MS, TimeUnit.MILLISECONDS); //block until done
-        } catch (IOException e) {
-            System.out.println("Error reading audio file (" + audioFile.getName() + ") : " + e);
-            throw new RuntimeException(e);
+            return transcriptFuture.get(timeoutMillis, TimeUnit.MILLISECONDS); //block until done
         } catch (ExecutionException e) {
-            System.out.println("Error streaming audio to AWS Transcribe service: " + e);
-            throw new RuntimeException(e);
+            Throwable cause = e.getCause();
+            if (cause instanceof UnsupportedAudioFileException) {
+                System.out.println("File type not recognized: " + audioFile.getName() + ", error: " + cause);
+                return "";
+            } else if (cause instanceof IOException) {
+                System.out.println("Error reading audio file (" + audioFile.getName() + ") : " + cause);
+            } else {
+                System.out.println("Error streaming audio to AWS Transcribe service: " + e);
+            }
+            throw new RuntimeException(cause);
         } catch (InterruptedException e) {
+            transcriptFuture.cancel(true);
             System.out.println("Stream thread interupted: " + e);
             throw new RuntimeException(e);
-        } catch (UnsupportedAudioFileException e) {
-            System.out.println("File type not recognized: " + audioFile.getName() + ", error: " + e);
         } catch (TimeoutException e) {
-            System.out.println("Stream not closed within timeout window of " + MAX_TIMEOUT_MS + " ms");
+            transcriptFuture.cancel(true);
+            System.out.println("Stream not closed within timeout window of " + timeoutMillis + " ms");
             throw new RuntimeException(e);
         }
-        return finalTranscript;
     }
 
     /**
-     * Get a response handler that aggregates the transcripts as they arrive
+     * @return Time to wait for a file, longer for a paced file by the time streaming it takes
+     */
+    private long getTimeoutMillis(File audioFile) {
+        if (pacingSpeed == 0) {
+            return MAX_TIMEOUT_MS;
+        }
+        try {
+            AudioFileFormat fileFormat = AudioSystem.getAudioFileFormat(audioFile);
+            if (fileFormat.getFrameLength() == AudioSystem.NOT_SPECIFIED) {
+                return MAX_TIMEOUT_MS;
+            }
+            double seconds = fileFormat.getFrameLength() / fileFormat.getFormat().getFrameRate();
+            return MAX_TIMEOUT_MS + (long) (seconds * 1000 / pacingSpeed);
+        } catch (IOException | UnsupportedAudioFileException e) {
+            //Reported by transcribeFileAsync
+            return MAX_TIMEOUT_MS;
+        }
+    }
+
+    /**
+     * Transcribe an audio file without blocking the calling thread
+     * @param audioFile File containing the audio to transcribe
+     * @param listener Optional listener told about audio sent and transcripts received
+     * @return Future completed with the full final transcript. Cancelling it stops streaming the file
+     */
+    public CompletableFuture<String> transcribeFileAsync(File audioFile, TranscriptionProgressListener listener) {
+        CompletableFuture<String> transcriptFuture = new CompletableFuture<>();
+        TranscriptionProgressListener progressListener =
+                listener != null ? listener : new TranscriptionProgressListener() { };
+        AudioStreamPublisher audioStream;
+        StartStreamTranscriptionRequest request;
+        try {
+            MappedWavFile wavFile = MappedWavFile.open(audioFile.toPath());
+            AudioFilePipeline pipeline = new AudioFilePipeline(wavFile);
+            pipeline.setPacingSpeed(pacingSpeed);
+            audioStream = pipeline.createPublisher();
+            AudioFormat format = pipeline.getFormat();
+            int sampleRate = (int) format.getSampleRate();
+            request = StartStreamTranscriptionRequest.builder()
+                    .languageCode(LanguageCode.EN_US.toString())
+                    .mediaEncoding(MediaEncoding.PCM)
+                    .mediaSampleRateHertz(sampleRate)
+                    .build();
+            long totalBytes = wavFile.getDataLength();
+            wavFile.setProgressListener(bytesSent -> progressListener.onAudioSent(bytesSent, totalBytes));
+        } catch (IOException | UnsupportedAudioFileException e) {
+            transcriptFuture.completeExceptionally(e);
+            return transcriptFuture;
+        }
+
+        StringBuffer finalTranscript = new StringBuffer();
+        System.out.println("launching request");
+        CompletableFuture<Void> resultFuture = asyncClient.startStreamTranscription(
+                request, audioStream, getResponseHandler(finalTranscript, progressListener));
+        resultFuture.whenComplete((r, e) -> {
+            closeQuietly(audioStream);
+            if (e != null) {
+                transcriptFuture.completeExceptionally(e);
+            } else {
+                transcriptFuture.complete(finalTranscript.toString().trim());
+            }
+        });
+        transcriptFuture.whenComplete((r, e) -> {
+            if (transcriptFuture.isCancelled()) {
+                closeQuietly(audioStream);
+                resultFuture.cancel(true);
+            }
+        });
+        return transcriptFuture;
+    }
+
+    /**
+     * Get a response handler that aggregates the transcripts of one request as they arrive
+     * @param finalTranscript Buffer the final transcripts are appended to, each followed by a space
+     * @param listener Listener told about every segment
      * @return Response handler used to handle events from AWS Transcribe service.
      */
-    private StartStreamTranscriptionResponseHandler getResponseHandler() {
+    private StartStreamTranscriptionResponseHandler getResponseHandler(StringBuffer finalTranscript,
+                                                                       TranscriptionProgressListener listener) {
         return StartStreamTranscriptionResponseHandler.builder()
                 .subscriber(event -> {
-                    List<Result> results = ((TranscriptEvent) event).transcript().results();
-                    if(results.size()>0) {
-                        Result firstResult = results.get(0);
-                        if (firstResult.alternatives().size() > 0 &&
-                                !firstResult.alternatives().get(0).transcript().isEmpty()) {
-                            String transcript = firstResult.alternatives().get(0).transcript();
-                            if(!transcript.isEmpty() && !firstResult.isPartial()) {
-                                System.out.println(transcript);
-                                finalTranscript += transcript;
-                            }
+                    for (TranscriptUpdate.Segment segment : TranscriptUpdate.from(event).getSegments()) {
+                        listener.onSegment(segment);
+                        if (!segment.isPartial()) {
+                            System.out.println(segment.getText());
+                            finalTranscript.append(segment.getText()).append(' ');
+                            listener.onFinalTranscript(segment.getText().trim());
                         }
-
                     }
                 }).build();
     }
 
+    private static void closeQuietly(AudioStreamPublisher audioStream) {
+        try {
+            audioStream.close();
+        } catch (IOException e) {
+            System.out.println("Error closing audio file: " + e);
+        }
+    }
+
+    /**
+     * Receives progress of a file transcription. Callbacks are made from SDK and reader threads, not the thread that
+     * started the transcription.
+     */
+    public interface TranscriptionProgressListener {
+        /**
+         * Called after each chunk of the file has been read for sending
+         * @param bytesSent Number of audio bytes of the file read so far
+         * @param totalBytes Number of audio bytes in the file, excluding its header
+         */
+        default void onAudioSent(long bytesSent, long totalBytes) {
+        }
+
+        /**
+         * Called for each final transcript received
+         * @param transcript The final transcript of one segment
+         */
+        default void onFinalTranscript(String transcript) {
+        }
 
+        /**
+         * Called for each segment received, partial or final, before onFinalTranscript for a final one
+         * @param segment The segment, with its words, times and speakers
+         */
+        default void onSegment(TranscriptUpdate.Segment segment) {
+        }
+    }
 }
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.amazonaws.transcribestreaming;
+
+import java.util.Locale;
+
+/**
+ * File formats a transcript can be written in, one final segment at a time, so a file is valid however much of the
+ * transcript has been written to it yet:
+ *
+ * TEXT is a line per segment. JSONL is a JSON object per line with the times, channel, speaker and words of the
+ * segment, for further processing. SRT and WEBVTT are subtitles with a cue per segment, to caption the audio in a
+ * player.
+ */
+public enum TranscriptFileFormat {
+    TEXT("txt") {
+        @Override
+        public String format(TranscriptUpdate.Segment segment, long sequenceNumber) {
+            return label(segment) + segment.getText() + "\n";
+        }
+    },
+    JSONL("jsonl") {
+        @Override
+        public String format(TranscriptUpdate.Segment segment, long sequenceNumber) {
+            StringBuilder json = new StringBuilder(128 + segment.getText().length() * 4);
+            json.append("{\"resultId\":");
+            appendString(json, segment.getResultId());
+            json.append(",\"channelId\":");
+            appendString(json, segment.getChannelId());
+            json.append(",\"speaker\":");
+            appendString(json, segment.getSpeaker());
+            json.append(String.format(Locale.ROOT, ",\"startTime\":%.3f,\"endTime\":%.3f,\"text\":",
+                    segment.getStartTime(), segment.getEndTime()));
+            appendString(json, segment.getText());
+            json.append(",\"words\":[");
+            for (int i = 0; i < segment.getWords().size(); i++) {
+                TranscriptUpdate.Word word = segment.getWords().get(i);
+                json.append(i == 0 ? "{" : ",{").append("\"content\":");
+                appendString(json, word.getContent());
+                json.append(String.format(Locale.ROOT, ",\"startTime\":%.3f,\"endTime\":%.3f,\"punctuation\":%b",
+                        word.getStartTime(), word.getEndTime(), word.isPunctuation()));
+                if (word.getSpeaker() != null) {
+                    json.append(",\"speaker\":");
+                    appendString(json, word.getSpeaker());
+                }
+                if (!Double.isNaN(word.getConfidence())) {
+                    json.append(String.format(Locale.ROOT, ",\"confidence\":%.4f", word.getConfidence()));
+                }
+                json.append('}');
+            }
+            return json.append("]}\n").toString();
+        }
+    },
+    SRT("srt") {
+        @Override
+        public String format(TranscriptUpdate.Segment segment, long sequenceNumber) {
+            return sequenceNumber + "\n" + timestamp(segment.getStartTime(), ',') + " --> "
+                    + timestamp(segment.getEndTime(), ',') + "\n" + label(segment) + segment.getText() + "\n\n";
+        }
+    },
+    WEBVTT("vtt") {
+        @Override
+        public String getHeader() {
+            return "WEBVTT\n\n";
+        }
+
+        @Override
+        public String format(TranscriptUpdate.Segment segment, long sequenceNumber) {
+            String text = (label(segment) + segment.getText())
+                    .replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+            return timestamp(segment.getStartTime(), '.') + " --> " + timestamp(segment.getEndTime(), '.') + "\n"
+                    + text + "\n\n";
+        }
+    };
+
+    private final String extension;
+
+    TranscriptFileFormat(String extension) {
+        this.extension = extension;
+    }
+
+    /**
+     * @return Extension of files in this format, without the dot
+     */
+    public String getExtension() {
+        return extension;
+    }
+
+    /**
+     * @return Text to start every file with, empty if the format has none
+     */
+    public String getHeader() {
+        return "";
+    }
+
+    /**
+     * @param segment Final segment
+     * @param sequenceNumber Number of the segment in its file, from 1
+     * @return the segment as it is written to the file
+     */
+    public abstract String format(TranscriptUpdate.Segment segment, long sequenceNumber);
+
+    /**
+     * @param extension Extension of a file name, with or without the dot, e.g. "srt"
+     * @return the format with that extension
+     */
+    public static TranscriptFileFormat fromExtension(String extension) {
+        String name = extension.startsWith(".") ? extension.substring(1) : extension;
+        for (TranscriptFileFormat format : values()) {
+            if (format.extension.equalsIgnoreCase(name)) {
+                return format;
+            }
+        }
+        throw new IllegalArgumentException("Unknown transcript format: " + extension);
+    }
+
+    /**
+     * @return Channel and speaker of a segment to show before its text, empty if neither is known
+     */
+    public static String label(TranscriptUpdate.Segment segment) {
+        String speaker = segment.getSpeaker();
+        if (segment.getChannelId() == null) {
+            return speaker == null ? "" : "[" + speaker + "] ";
+        }
+        return speaker == null ? "[" + segment.getChannelId() + "] "
+                : "[" + segment.getChannelId() + " " + speaker + "] ";
+    }
+
+    private static String timestamp(double seconds, char millisSeparator) {
+        long millis = Math.max(0, Math.round(seconds * 1000));
+        return String.format(Locale.ROOT, "%02d:%02d:%02d%c%03d", millis / 3_600_000, millis / 60_000 % 60,
+                millis / 1000 % 60, millisSeparator, millis % 1000);
+    }
+
+    private static void appendString(StringBuilder json, String value) {
+        if (value == null) {
+            json.append("null");
+            return;
+        }
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        json.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+            }
+        }
+        json.append('"');
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.amazonaws.transcribestreaming;
+
+import software.amazon.awssdk.services.transcribestreaming.model.Result;
+import software.amazon.awssdk.services.transcribestreaming.model.StartStreamTranscriptionResponse;
+import software.amazon.awssdk.services.transcribestreaming.model.TranscriptEvent;
+import software.amazon.awssdk.services.transcribestreaming.model.TranscriptResultStream;
+
+import javax.sound.sampled.AudioFormat;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the end-to-end latency of one stream, from the moment audio is captured to the moment a result covering
+ * it arrives. ByteToAudioEventSubscription stamps every chunk with the time it was read, which for a microphone is
+ * when the audio was captured, and the offset in the stream where the chunk ends. When a result arrives its end time
+ * is turned back into an offset, and the latency is the time since the chunk holding that offset was read.
+ *
+ * Latencies of partial and final results go into separate LatencyHistograms, are recorded on
+ * TranscribeStreamingMetrics, and are printed when the stream completes.
+ *
+ * Offsets are in bytes of the audio as sent, so the tracker only applies to PCM streams. Result times must also be
+ * those of the audio as sent, so the behavior returned by track has to sit outside a
+ * TimeMappingTranscriptionBehavior. The stamps of the most recent chunks are kept in a fixed ring, so stamping does
+ * not allocate; results for audio older than the ring are not measured.
+ */
+public class TranscriptLatencyTracker {
+
+    private static final int HISTORY_SIZE = 1024;
+
+    private final double bytesPerSecond;
+    private final TranscribeStreamingMetrics metrics;
+    private final long[] endOffsets = new long[HISTORY_SIZE];
+    private final long[] readNanos = new long[HISTORY_SIZE];
+    private long chunkCount = 0;
+    private long offset = 0;
+    private final LatencyHistogram partialLatency = new LatencyHistogram();
+    private final LatencyHistogram finalLatency = new LatencyHistogram();
+
+    /**
+     * @param format Format of the PCM audio sent
+     */
+    public TranscriptLatencyTracker(AudioFormat format) {
+        this(format, TranscribeStreamingMetrics.getDefault());
+    }
+
+    /**
+     * @param format Format of the PCM audio sent
+     * @param metrics Metrics to record latencies on
+     */
+    public TranscriptLatencyTracker(AudioFormat format, TranscribeStreamingMetrics metrics) {
+        this.bytesPerSecond = format.getFrameRate() * format.getFrameSize();
+        if (bytesPerSecond <= 0) {
+            throw new IllegalArgumentException("Cannot track latency of " + format);
+        }
+        this.metrics = metrics;
+    }
+
+    /**
+     * Stamp a chunk of audio with the current time. Called for every chunk, in order, as it is read.
+     * @param sizeInBytes Size of the chunk
+     */
+    public synchronized void chunkRead(int sizeInBytes) {
+        offset += sizeInBytes;
+        int slot = (int) (chunkCount % HISTORY_SIZE);
+        endOffsets[slot] = offset;
+        readNanos[slot] = System.nanoTime();
+        chunkCount++;
+    }
+
+    /**
+     * Wrap a behavior so the latency of every result passing through it is recorded
+     * @param delegate Behavior to pass everything on to, unchanged
+     * @return the wrapping behavior
+     */
+    public StreamTranscriptionBehavior track(StreamTranscriptionBehavior delegate) {
+        return new StreamTranscriptionBehavior() {
+            @Override
+            public void onError(Throwable e) {
+                delegate.onError(e);
+            }
+
+            @Override
+            public void onStream(TranscriptResultStream e) {
+                if (e instanceof TranscriptEvent) {
+                    record(((TranscriptEvent) e).transcript().results());
+                }
+                delegate.onStream(e);
+            }
+
+            @Override
+            public void onResponse(StartStreamTranscriptionResponse r) {
+                delegate.onResponse(r);
+            }
+
+            @Override
+            public void onComplete() {
+                System.out.println("Partial result latency: " + partialLatency.summary());
+                System.out.println("Final result latency: " + finalLatency.summary());
+                delegate.onComplete();
+            }
+        };
+    }
+
+    /**
+     * @return Latencies from capture to partial results
+     */
+    public LatencyHistogram getPartialLatency() {
+        return partialLatency;
+    }
+
+    /**
+     * @return Latencies from capture to final results
+     */
+    public LatencyHistogram getFinalLatency() {
+        return finalLatency;
+    }
+
+    private void record(List<Result> results) {
+        long now = System.nanoTime();
+        for (int i = 0; i < results.size(); i++) {
+            Result result = results.get(i);
+            if (result.endTime() == null) {
+                continue;
+            }
+            long captured = readNanosAt((long) (result.endTime() * bytesPerSecond));
+            if (captured == 0) {
+                continue;
+            }
+            long latencyNanos = now - captured;
+            if (Boolean.TRUE.equals(result.isPartial())) {
+                partialLatency.record(TimeUnit.NANOSECONDS.toMicros(latencyNanos));
+                metrics.partialResultLatency(latencyNanos);
+            } else {
+                finalLatency.record(TimeUnit.NANOSECONDS.toMicros(latencyNanos));
+                metrics.finalResultLatency(latencyNanos);
+            }
+        }
+    }
+
+    /**
+     * Find when the chunk holding an offset was read, by binary search over the ring
+     * @return read time in nanos, or 0 if the chunk is no longer in the ring
+     */
+    private synchronized long readNanosAt(long targetOffset) {
+        long first = Math.max(0, chunkCount - HISTORY_SIZE);
+        long low = first;
+        long high = chunkCount - 1;
+        //Once the ring has wrapped, the start of its oldest chunk is unknown, so that chunk is not used either
+        if (high < low || first > 0 && targetOffset <= endOffsets[(int) (first % HISTORY_SIZE)]) {
+            return 0;
+        }
+        //Results can end a little past the audio read so far, through rounding of their times
+        if (targetOffset > endOffsets[(int) (high % HISTORY_SIZE)]) {
+            return readNanos[(int) (high % HISTORY_SIZE)];
+        }
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            if (endOffsets[(int) (mid % HISTORY_SIZE)] < targetOffset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return readNanos[(int) (low % HISTORY_SIZE)];
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.amazonaws.transcribestreaming;
+
+import javafx.animation.AnimationTimer;
+import javafx.collections.ObservableList;
+import javafx.scene.control.Label;
+import javafx.scene.control.ListView;
+
+import java.util.List;
+
+/**
+ * Renders a TranscriptSegmentStore into a ListView with a row per segment, at most once per frame. Results can
+ * arrive from SDK threads many times a second, and posting each one to the JavaFX thread floods its queue. Instead
+ * the AnimationTimer checks the store's version every frame and, if it moved, renders only the latest state, so any
+ * number of results between two frames cost one update of the list.
+ *
+ * Final segments are only appended, so rows already rendered for them are never touched again. The partial segments
+ * trailing them are set in place on their rows. The ListView only creates cells for the rows on screen, so the cost
+ * of a frame does not grow with the length of the transcript.
+ *
+ * An optional label shows how many results were received, how many frames rendered them and how many were coalesced.
+ */
+public class TranscriptRenderLoop extends AnimationTimer {
+
+    private final ListView<TranscriptUpdate.Segment> listView;
+    private final Label statsLabel;
+    private TranscriptSegmentStore store = new TranscriptSegmentStore();
+    private long renderedVersion = 0;
+    private int renderedFinals = 0;
+    private long updates = 0;
+    private long renders = 0;
+
+    /**
+     * @param listView List to render segments into, which is given a TranscriptSegmentCell per row
+     * @param statsLabel Optional label to show update counts on, may be null
+     */
+    public TranscriptRenderLoop(ListView<TranscriptUpdate.Segment> listView, Label statsLabel) {
+        this.listView = listView;
+        this.statsLabel = statsLabel;
+        listView.setCellFactory(TranscriptSegmentCell::new);
+    }
+
+    /**
+     * Start rendering another transcript, clearing the list. Must be called on the JavaFX application thread.
+     * @param store Store of the transcript to render
+     */
+    public void show(TranscriptSegmentStore store) {
+        this.store = store;
+        renderedVersion = 0;
+        renderedFinals = 0;
+        updates = 0;
+        renders = 0;
+        listView.getItems().clear();
+    }
+
+    @Override
+    public void handle(long now) {
+        long version;
+        List<TranscriptUpdate.Segment> newFinals;
+        List<TranscriptUpdate.Segment> partials;
+        synchronized (store) {
+            version = store.getVersion();
+            if (version == renderedVersion) {
+                return;
+            }
+            newFinals = store.getFinals(renderedFinals);
+            partials = store.getPartials();
+        }
+        updates += version - renderedVersion;
+        renders++;
+        renderedVersion = version;
+
+        //Rows from renderedFinals on hold the partial segments of the last frame
+        ObservableList<TranscriptUpdate.Segment> items = listView.getItems();
+        int previousRows = items.size();
+        int row = renderedFinals;
+        for (int i = 0; i < newFinals.size() + partials.size(); i++, row++) {
+            TranscriptUpdate.Segment segment = i < newFinals.size()
+                    ? newFinals.get(i) : partials.get(i - newFinals.size());
+            if (row < items.size()) {
+                items.set(row, segment);
+            } else {
+                items.add(segment);
+            }
+        }
+        if (row < items.size()) {
+            items.remove(row, items.size());
+        }
+        renderedFinals += newFinals.size();
+        if (items.size() > previousRows) {
+            listView.scrollTo(items.size() - 1);
+        }
+
+        if (statsLabel != null) {
+            statsLabel.setText("rows " + items.size() + ", updates " + updates + ", rendered " + renders
+                    + ", coalesced " + (updates - renders));
+        }
+    }
+
+    /**
+     * @return Number of store changes seen for the current transcript
+     */
+    public long getUpdateCount() {
+        return updates;
+    }
+
+    /**
+     * @return Number of frames that rendered a change
+     */
+    public long getRenderCount() {
+        return renders;
+    }
+
+    /**
+     * @return Number of store changes merged into a frame with others rather than rendered on their own
+     */
+    public long getCoalescedCount() {
+        return updates - renders;
+    }
+}
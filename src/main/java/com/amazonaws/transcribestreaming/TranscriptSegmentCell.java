@@ -0,0 +1,60 @@
+/*
+ * Copyright 2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.amazonaws.transcribestreaming;
+
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
+
+/**
+ * Row of a transcript ListView: one segment, led by its channel and speaker. Partial segments are shown in italics
+ * until they are final. Text wraps to the width of the list, so long segments stay readable without scrolling
+ * sideways.
+ */
+public class TranscriptSegmentCell extends ListCell<TranscriptUpdate.Segment> {
+
+    private static final String PARTIAL_STYLE = "-fx-font-style: italic; -fx-opacity: 0.7;";
+
+    /**
+     * @param listView List the cell belongs to, whose width the text wraps to
+     */
+    public TranscriptSegmentCell(ListView<TranscriptUpdate.Segment> listView) {
+        setWrapText(true);
+        //A preferred width below the list's keeps the cell from widening the list, so the text wraps instead
+        setPrefWidth(0);
+        maxWidthProperty().bind(listView.widthProperty().subtract(20));
+    }
+
+    @Override
+    protected void updateItem(TranscriptUpdate.Segment segment, boolean empty) {
+        super.updateItem(segment, empty);
+        if (empty || segment == null) {
+            setText(null);
+            setStyle(null);
+        } else {
+            setText(label(segment) + segment.getText());
+            setStyle(segment.isPartial() ? PARTIAL_STYLE : null);
+        }
+    }
+
+    /**
+     * @return Channel and speaker of a segment to show before its text, empty if neither is known
+     */
+    public static String label(TranscriptUpdate.Segment segment) {
+        return TranscriptFileFormat.label(segment);
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.amazonaws.transcribestreaming;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only store of the segments of one transcript, for views that show a segment per row. Final segments are only
+ * ever appended, so a view that has rendered the first n of them only has to fetch the ones after. Each channel has at
+ * most one partial segment, which trails the final ones and is replaced by the next result of that channel.
+ *
+ * Every change bumps a version, so a view polling the store can tell cheaply whether anything changed. Segments may
+ * be added from any thread.
+ */
+public class TranscriptSegmentStore {
+
+    private final List<TranscriptUpdate.Segment> finals = new ArrayList<>();
+    private final Map<String, TranscriptUpdate.Segment> partials = new LinkedHashMap<>();
+    private long version = 0;
+
+    /**
+     * Add every segment of an event
+     * @param update Segments of one event
+     */
+    public synchronized void update(TranscriptUpdate update) {
+        for (TranscriptUpdate.Segment segment : update.getSegments()) {
+            update(segment);
+        }
+    }
+
+    /**
+     * Replace the partial segment of the segment's channel, or append the segment if it is final
+     * @param segment Partial or final segment
+     */
+    public synchronized void update(TranscriptUpdate.Segment segment) {
+        String channel = segment.getChannelId() == null ? "" : segment.getChannelId();
+        if (segment.isPartial()) {
+            partials.put(channel, segment);
+        } else {
+            partials.remove(channel);
+            finals.add(segment);
+        }
+        version++;
+    }
+
+    /**
+     * @return Number of changes made so far
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return Number of final segments
+     */
+    public synchronized int getFinalCount() {
+        return finals.size();
+    }
+
+    /**
+     * @param from Index of the first final segment to return
+     * @return Copy of the final segments from the index on
+     */
+    public synchronized List<TranscriptUpdate.Segment> getFinals(int from) {
+        return new ArrayList<>(finals.subList(from, finals.size()));
+    }
+
+    /**
+     * @return Copy of the current partial segments, one per channel
+     */
+    public synchronized List<TranscriptUpdate.Segment> getPartials() {
+        return new ArrayList<>(partials.values());
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.amazonaws.transcribestreaming;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Destination that final segments of a transcript are persisted to as they arrive, e.g. a file, so a crash loses at
+ * most what was still queued. Sinks are fed by a TranscriptSinkBehavior on the thread delivering results, usually an
+ * SDK event thread, so write must return without waiting on I/O. A sink that does I/O hands segments to a thread of
+ * its own, see AsyncTranscriptFileSink.
+ */
+public interface TranscriptSink {
+
+    /**
+     * Queue a final segment to be persisted. Must not block.
+     * @param segment Final segment
+     */
+    void write(TranscriptUpdate.Segment segment);
+
+    /**
+     * Persist whatever is still queued and release the sink. Segments written after this are ignored. Must not block.
+     * @return Future that completes once everything is persisted, or completes exceptionally if the sink failed
+     */
+    CompletableFuture<Void> close();
+}
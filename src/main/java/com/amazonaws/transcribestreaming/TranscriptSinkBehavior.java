@@ -0,0 +1,112 @@
+/*
+ * Copyright 2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.amazonaws.transcribestreaming;
+
+import software.amazon.awssdk.services.transcribestreaming.model.StartStreamTranscriptionResponse;
+import software.amazon.awssdk.services.transcribestreaming.model.TranscriptResultStream;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Writes every final segment to a number of TranscriptSinks as it arrives, then passes the event on to the wrapped
+ * behavior, if any, unchanged. The sinks are closed when the stream completes or fails, and getClosed() tells when everything
+ * has been persisted.
+ */
+public class TranscriptSinkBehavior implements StreamTranscriptionBehavior {
+
+    private final StreamTranscriptionBehavior delegate;
+    private final List<TranscriptSink> sinks;
+    private final CompletableFuture<Void> closed = new CompletableFuture<>();
+
+    /**
+     * @param sink Sink to write the final segments to, with nothing else done with the events
+     */
+    public TranscriptSinkBehavior(TranscriptSink sink) {
+        this(null, Collections.singletonList(sink));
+    }
+
+    /**
+     * @param delegate Behavior to pass every event to, may be null
+     * @param sinks Sinks to write the final segments to
+     */
+    public TranscriptSinkBehavior(StreamTranscriptionBehavior delegate, List<TranscriptSink> sinks) {
+        this.delegate = delegate;
+        this.sinks = new ArrayList<>(sinks);
+    }
+
+    @Override
+    public void onError(Throwable e) {
+        closeSinks();
+        if (delegate != null) {
+            delegate.onError(e);
+        }
+    }
+
+    @Override
+    public void onStream(TranscriptResultStream e) {
+        for (TranscriptUpdate.Segment segment : TranscriptUpdate.from(e).getSegments()) {
+            if (!segment.isPartial()) {
+                for (int i = 0; i < sinks.size(); i++) {
+                    sinks.get(i).write(segment);
+                }
+            }
+        }
+        if (delegate != null) {
+            delegate.onStream(e);
+        }
+    }
+
+    @Override
+    public void onResponse(StartStreamTranscriptionResponse r) {
+        if (delegate != null) {
+            delegate.onResponse(r);
+        }
+    }
+
+    @Override
+    public void onComplete() {
+        closeSinks();
+        if (delegate != null) {
+            delegate.onComplete();
+        }
+    }
+
+    /**
+     * @return Future that completes once every sink has persisted everything written to it and closed
+     */
+    public CompletableFuture<Void> getClosed() {
+        return closed;
+    }
+
+    private void closeSinks() {
+        CompletableFuture<?>[] sinksClosed = new CompletableFuture<?>[sinks.size()];
+        for (int i = 0; i < sinks.size(); i++) {
+            sinksClosed[i] = sinks.get(i).close();
+        }
+        CompletableFuture.allOf(sinksClosed).whenComplete((r, e) -> {
+            if (e == null) {
+                closed.complete(null);
+            } else {
+                closed.completeExceptionally(e);
+            }
+        });
+    }
+}
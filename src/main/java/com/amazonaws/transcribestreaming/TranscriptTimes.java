@@ -0,0 +1,86 @@
+/*
+ * Copyright 2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.amazonaws.transcribestreaming;
+
+import software.amazon.awssdk.services.transcribestreaming.model.Alternative;
+import software.amazon.awssdk.services.transcribestreaming.model.Item;
+import software.amazon.awssdk.services.transcribestreaming.model.Result;
+import software.amazon.awssdk.services.transcribestreaming.model.Transcript;
+import software.amazon.awssdk.services.transcribestreaming.model.TranscriptEvent;
+import software.amazon.awssdk.services.transcribestreaming.model.TranscriptResultStream;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * Rewrites the start and end times of results and their items, for behaviors that move results onto another
+ * timeline
+ */
+final class TranscriptTimes {
+
+    private TranscriptTimes() {
+    }
+
+    /**
+     * @param event Event from the service
+     * @param mapping Function from a time in the event to the new time
+     * @return a TranscriptEvent with every time mapped, or the event itself if it is not a TranscriptEvent
+     */
+    static TranscriptResultStream mapTimes(TranscriptResultStream event, DoubleUnaryOperator mapping) {
+        if (!(event instanceof TranscriptEvent)) {
+            return event;
+        }
+        List<Result> results = ((TranscriptEvent) event).transcript().results();
+        List<Result> mapped = new ArrayList<>(results.size());
+        for (Result result : results) {
+            mapped.add(mapTimes(result, mapping));
+        }
+        return ((TranscriptEvent) event).toBuilder()
+                .transcript(Transcript.builder().results(mapped).build())
+                .build();
+    }
+
+    /**
+     * @param result Result from the service
+     * @param mapping Function from a time in the result to the new time
+     * @return a copy of the result with every time mapped
+     */
+    static Result mapTimes(Result result, DoubleUnaryOperator mapping) {
+        List<Alternative> alternatives = new ArrayList<>(result.alternatives().size());
+        for (Alternative alternative : result.alternatives()) {
+            List<Item> items = new ArrayList<>(alternative.items().size());
+            for (Item item : alternative.items()) {
+                items.add(item.toBuilder()
+                        .startTime(map(item.startTime(), mapping))
+                        .endTime(map(item.endTime(), mapping))
+                        .build());
+            }
+            alternatives.add(alternative.toBuilder().items(items).build());
+        }
+        return result.toBuilder()
+                .startTime(map(result.startTime(), mapping))
+                .endTime(map(result.endTime(), mapping))
+                .alternatives(alternatives)
+                .build();
+    }
+
+    private static Double map(Double time, DoubleUnaryOperator mapping) {
+        return time == null ? null : mapping.applyAsDouble(time);
+    }
+}
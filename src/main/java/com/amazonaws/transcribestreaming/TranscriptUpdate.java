@@ -0,0 +1,327 @@
+/*
+ * Copyright 2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.amazonaws.transcribestreaming;
+
+import software.amazon.awssdk.services.transcribestreaming.model.Alternative;
+import software.amazon.awssdk.services.transcribestreaming.model.Item;
+import software.amazon.awssdk.services.transcribestreaming.model.ItemType;
+import software.amazon.awssdk.services.transcribestreaming.model.Result;
+import software.amazon.awssdk.services.transcribestreaming.model.TranscriptEvent;
+import software.amazon.awssdk.services.transcribestreaming.model.TranscriptResultStream;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable view of one transcript event with every result in it, built once so any number of consumers can share
+ * it without walking the SDK objects again. Each result becomes a Segment, holding the text of every alternative and
+ * the words of the first one with their times, speaker and confidence. Segments of all channels are kept, in the
+ * order the service sent them.
+ */
+public final class TranscriptUpdate {
+
+    private static final TranscriptUpdate EMPTY = new TranscriptUpdate(Collections.emptyList());
+
+    private final List<Segment> segments;
+
+    private TranscriptUpdate(List<Segment> segments) {
+        this.segments = segments;
+    }
+
+    /**
+     * @param event Event from the service
+     * @return the update for the event, empty if it is not a TranscriptEvent or has no results
+     */
+    public static TranscriptUpdate from(TranscriptResultStream event) {
+        if (!(event instanceof TranscriptEvent)) {
+            return EMPTY;
+        }
+        List<Result> results = ((TranscriptEvent) event).transcript().results();
+        if (results == null || results.isEmpty()) {
+            return EMPTY;
+        }
+        List<Segment> segments = new ArrayList<>(results.size());
+        for (int i = 0; i < results.size(); i++) {
+            Segment segment = Segment.from(results.get(i));
+            if (segment != null) {
+                segments.add(segment);
+            }
+        }
+        return new TranscriptUpdate(Collections.unmodifiableList(segments));
+    }
+
+    /**
+     * @return Segments of the event, partial and final
+     */
+    public List<Segment> getSegments() {
+        return segments;
+    }
+
+    /**
+     * @return True if the event has no segment with text
+     */
+    public boolean isEmpty() {
+        return segments.isEmpty();
+    }
+
+    /**
+     * One result: a segment of audio on one channel, partial until the service finalizes it
+     */
+    public static final class Segment {
+        private final String resultId;
+        private final String channelId;
+        private final double startTime;
+        private final double endTime;
+        private final boolean partial;
+        private final List<String> alternatives;
+        private final List<Word> words;
+
+        private Segment(String resultId, String channelId, double startTime, double endTime, boolean partial,
+                        List<String> alternatives, List<Word> words) {
+            this.resultId = resultId;
+            this.channelId = channelId;
+            this.startTime = startTime;
+            this.endTime = endTime;
+            this.partial = partial;
+            this.alternatives = alternatives;
+            this.words = words;
+        }
+
+        /**
+         * @return the segment, or null if the result has no alternative with text
+         */
+        private static Segment from(Result result) {
+            List<Alternative> alternatives = result.alternatives();
+            if (alternatives == null || alternatives.isEmpty()) {
+                return null;
+            }
+            String transcript = alternatives.get(0).transcript();
+            if (transcript == null || transcript.isEmpty()) {
+                return null;
+            }
+            List<String> texts = new ArrayList<>(alternatives.size());
+            for (int i = 0; i < alternatives.size(); i++) {
+                String text = alternatives.get(i).transcript();
+                texts.add(text == null ? "" : text);
+            }
+            List<Item> items = alternatives.get(0).items();
+            List<Word> words;
+            if (items == null || items.isEmpty()) {
+                words = Collections.emptyList();
+            } else {
+                words = new ArrayList<>(items.size());
+                for (int i = 0; i < items.size(); i++) {
+                    words.add(Word.from(items.get(i)));
+                }
+                words = Collections.unmodifiableList(words);
+            }
+            return new Segment(result.resultId(), result.channelId(), time(result.startTime()),
+                    time(result.endTime()), Boolean.TRUE.equals(result.isPartial()),
+                    Collections.unmodifiableList(texts), words);
+        }
+
+        /**
+         * Rebuild a final segment saved elsewhere, e.g. in a SessionJournal
+         * @return the final segment
+         */
+        static Segment restore(String resultId, String channelId, double startTime, double endTime,
+                               List<String> alternatives, List<Word> words) {
+            if (alternatives.isEmpty()) {
+                throw new IllegalArgumentException("A segment needs at least one alternative");
+            }
+            return new Segment(resultId, channelId, startTime, endTime, false,
+                    Collections.unmodifiableList(new ArrayList<>(alternatives)),
+                    Collections.unmodifiableList(new ArrayList<>(words)));
+        }
+
+        /**
+         * @return Id of the result, the same for every partial result of a segment and its final result
+         */
+        public String getResultId() {
+            return resultId;
+        }
+
+        /**
+         * @return Channel the segment was heard on, or null if channels are not identified
+         */
+        public String getChannelId() {
+            return channelId;
+        }
+
+        /**
+         * @return Start of the segment in seconds from the start of the audio
+         */
+        public double getStartTime() {
+            return startTime;
+        }
+
+        /**
+         * @return End of the segment in seconds from the start of the audio
+         */
+        public double getEndTime() {
+            return endTime;
+        }
+
+        /**
+         * @return True if the service may still change the segment
+         */
+        public boolean isPartial() {
+            return partial;
+        }
+
+        /**
+         * @return Transcript of the most likely alternative
+         */
+        public String getText() {
+            return alternatives.get(0);
+        }
+
+        /**
+         * @return Transcripts of every alternative, most likely first
+         */
+        public List<String> getAlternatives() {
+            return alternatives;
+        }
+
+        /**
+         * @return Words and punctuation of the most likely alternative, empty if the service sent none
+         */
+        public List<Word> getWords() {
+            return words;
+        }
+
+        /**
+         * @return Speaker label of the first word that has one, or null if speakers are not labelled
+         */
+        public String getSpeaker() {
+            for (int i = 0; i < words.size(); i++) {
+                String speaker = words.get(i).getSpeaker();
+                if (speaker != null) {
+                    return speaker;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * One word or punctuation mark of a segment
+     */
+    public static final class Word {
+        private final String content;
+        private final double startTime;
+        private final double endTime;
+        private final boolean punctuation;
+        private final String speaker;
+        private final double confidence;
+        private final boolean stable;
+
+        private Word(String content, double startTime, double endTime, boolean punctuation, String speaker,
+                     double confidence, boolean stable) {
+            this.content = content;
+            this.startTime = startTime;
+            this.endTime = endTime;
+            this.punctuation = punctuation;
+            this.speaker = speaker;
+            this.confidence = confidence;
+            this.stable = stable;
+        }
+
+        private static Word from(Item item) {
+            return new Word(item.content() == null ? "" : item.content(), time(item.startTime()),
+                    time(item.endTime()), item.type() == ItemType.PUNCTUATION, item.speaker(),
+                    item.confidence() == null ? Double.NaN : item.confidence(), Boolean.TRUE.equals(item.stable()));
+        }
+
+        /**
+         * Rebuild a word of a final segment saved elsewhere, e.g. in a SessionJournal
+         * @return the word, marked stable
+         */
+        static Word restore(String content, double startTime, double endTime, boolean punctuation, String speaker,
+                            double confidence) {
+            return new Word(content, startTime, endTime, punctuation, speaker, confidence, true);
+        }
+
+        /**
+         * @return Text of the word or punctuation mark
+         */
+        public String getContent() {
+            return content;
+        }
+
+        /**
+         * @return Start of the word in seconds from the start of the audio
+         */
+        public double getStartTime() {
+            return startTime;
+        }
+
+        /**
+         * @return End of the word in seconds from the start of the audio
+         */
+        public double getEndTime() {
+            return endTime;
+        }
+
+        /**
+         * @return True if this is a punctuation mark rather than a word
+         */
+        public boolean isPunctuation() {
+            return punctuation;
+        }
+
+        /**
+         * @return Speaker label, or null if speakers are not labelled
+         */
+        public String getSpeaker() {
+            return speaker;
+        }
+
+        /**
+         * @return Confidence between 0 and 1, or NaN if the service did not send one
+         */
+        public double getConfidence() {
+            return confidence;
+        }
+
+        /**
+         * @return True if the service marked the word as stable, only sent when partial results stabilization is on
+         */
+        public boolean isStable() {
+            return stable;
+        }
+
+        /**
+         * @param other Word of another partial result of the same segment
+         * @return True if both are the same word at the same time
+         */
+        boolean sameAs(Word other) {
+            return startTime == other.startTime && content.equals(other.content);
+        }
+
+        @Override
+        public String toString() {
+            return content;
+        }
+    }
+
+    private static double time(Double time) {
+        return time == null ? 0 : time;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.amazonaws.transcribestreaming;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * One transcription stream started by TranscribeStreamingSessionManager
+ */
+public class TranscriptionSession {
+
+    private final String sessionId;
+    private final AudioStreamPublisher publisher;
+    private final StreamTranscriptionBehavior behavior;
+    private final long startTimeMillis;
+    private final CompletableFuture<Void> result;
+
+    TranscriptionSession(String sessionId, AudioStreamPublisher publisher, StreamTranscriptionBehavior behavior,
+                         CompletableFuture<Void> result) {
+        this.sessionId = sessionId;
+        this.publisher = publisher;
+        this.behavior = behavior;
+        this.result = result;
+        this.startTimeMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * @return Id of the session, also sent to the service as the stream's session id
+     */
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    /**
+     * @return Behavior receiving the results of this session
+     */
+    public StreamTranscriptionBehavior getBehavior() {
+        return behavior;
+    }
+
+    /**
+     * @return Time the session was started, in milliseconds since the epoch
+     */
+    public long getStartTimeMillis() {
+        return startTimeMillis;
+    }
+
+    /**
+     * @return Future completed when the stream ends, successfully or not, after any retries
+     */
+    public CompletableFuture<Void> getResult() {
+        return result;
+    }
+
+    /**
+     * Stop sending audio. The service finishes transcribing what it has received and the session then completes.
+     */
+    public void stop() {
+        try {
+            publisher.close();
+        } catch (IOException ex) {
+            System.out.println("Error stopping input stream of session " + sessionId + ": " + ex);
+        }
+    }
+}
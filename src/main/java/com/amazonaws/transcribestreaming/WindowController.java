@@ -20,31 +20,36 @@ package com.amazonaws.transcribestreaming;
 import javafx.application.Platform;
 import javafx.collections.FXCollections;
 import javafx.geometry.Insets;
+import javafx.geometry.Pos;
 import javafx.scene.Scene;
 import javafx.scene.control.Button;
 import javafx.scene.control.CheckBox;
 import javafx.scene.control.ChoiceBox;
-import javafx.scene.control.TextArea;
+import javafx.scene.control.Label;
+import javafx.scene.control.ListView;
+import javafx.scene.input.KeyCode;
+import javafx.scene.input.KeyEvent;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.Priority;
+import javafx.scene.layout.StackPane;
 import javafx.scene.layout.VBox;
 import javafx.scene.text.Text;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
-import software.amazon.awssdk.services.transcribestreaming.model.Alternative;
-import software.amazon.awssdk.services.transcribestreaming.model.Result;
 import software.amazon.awssdk.services.transcribestreaming.model.StartStreamTranscriptionResponse;
-import software.amazon.awssdk.services.transcribestreaming.model.TranscriptEvent;
 import software.amazon.awssdk.services.transcribestreaming.model.TranscriptResultStream;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
 
 import javax.sound.sampled.Mixer;
 
@@ -57,13 +62,15 @@ public class WindowController {
 
     private TranscribeStreamingClientWrapper client;
     private TranscribeStreamingSynchronousClient synchronousClient;
-    private TextArea outputTextArea;
+    private ListView<TranscriptUpdate.Segment> outputListView;
+    private TranscriptRenderLoop renderLoop;
     private Button startStopMicButton;
     private Button fileStreamButton;
     private Button saveButton;
-    private TextArea finalTextArea;
+    private ListView<TranscriptUpdate.Segment> finalListView;
     private CompletableFuture<Void> inProgressStreamingRequest;
-    private String finalTranscript = "";
+    private CompletableFuture<String> inProgressFileRequest;
+    private List<TranscriptUpdate.Segment> finalSegments = Collections.emptyList();
     private Stage primaryStage;
 
     private List<Mixer> mics;
@@ -71,9 +78,12 @@ public class WindowController {
 
     private ChoiceBox<String> langChoiceBox;
     private CheckBox showSpeakerCheckBox;
+    private CheckBox identifyChannelsCheckBox;
+    private CheckBox saveWhileStreamingCheckBox;
 
     public WindowController(Stage primaryStage) {
         client = new TranscribeStreamingClientWrapper();
+        client.setTrackLatency(true);
         synchronousClient = new TranscribeStreamingSynchronousClient(TranscribeStreamingClientWrapper.getClient());
         this.primaryStage = primaryStage;
         this.mics = AudioUtil.getAvailableMics();
@@ -84,47 +94,87 @@ public class WindowController {
         if (inProgressStreamingRequest != null) {
             inProgressStreamingRequest.completeExceptionally(new InterruptedException());
         }
+        if (inProgressFileRequest != null) {
+            inProgressFileRequest.cancel(true);
+        }
+        renderLoop.stop();
         client.close();
     }
 
     private void startFileTranscriptionRequest(File inputFile) {
-        if (inProgressStreamingRequest == null) {
-            finalTextArea.clear();
-            finalTranscript = "";
+        if (inProgressStreamingRequest == null && inProgressFileRequest == null) {
+            finalListView.getItems().clear();
+            finalSegments = Collections.emptyList();
             startStopMicButton.setText("Streaming...");
             startStopMicButton.setDisable(true);
-            outputTextArea.clear();
-            finalTextArea.clear();
+            fileStreamButton.setDisable(true);
             saveButton.setDisable(true);
-            finalTranscript = synchronousClient.transcribeFile(inputFile);
-            finalTextArea.setText(finalTranscript);
-            startStopMicButton.setDisable(false);
-            saveButton.setDisable(false);
-            startStopMicButton.setText("Start Microphone Transcription");
+            TranscriptSegmentStore segmentStore = new TranscriptSegmentStore();
+            renderLoop.show(segmentStore);
+            TranscriptSink sink = openStreamingSink();
+            //Transcribing a file takes as long as the audio, so it must not block the JavaFX application thread
+            inProgressFileRequest = synchronousClient.transcribeFileAsync(inputFile,
+                    new TranscribeStreamingSynchronousClient.TranscriptionProgressListener() {
+                        @Override
+                        public void onAudioSent(long bytesSent, long totalBytes) {
+                            int percent = (int) (100 * bytesSent / Math.max(1, totalBytes));
+                            Platform.runLater(() -> startStopMicButton.setText("Streaming... " + percent + "%"));
+                        }
+
+                        @Override
+                        public void onSegment(TranscriptUpdate.Segment segment) {
+                            segmentStore.update(segment);
+                            if (sink != null && !segment.isPartial()) {
+                                sink.write(segment);
+                            }
+                        }
+                    });
+            inProgressFileRequest.whenComplete((transcript, e) -> Platform.runLater(() -> {
+                if (sink != null) {
+                    sink.close();
+                }
+                inProgressFileRequest = null;
+                if (e != null) {
+                    System.out.println("Error transcribing file: " + e);
+                } else {
+                    showFinalSegments(segmentStore.getFinals(0));
+                }
+                startStopMicButton.setDisable(false);
+                fileStreamButton.setDisable(false);
+                startStopMicButton.setText("Start Microphone Transcription");
+            }));
         }
     }
 
     private void startTranscriptionRequest(File inputFile) {
         if (inProgressStreamingRequest == null) {
-            finalTextArea.clear();
-            finalTranscript = "";
-            
+            finalListView.getItems().clear();
+            finalSegments = Collections.emptyList();
+
             micChoiceBox.setDisable(true);
             langChoiceBox.setDisable(true);
             showSpeakerCheckBox.setDisable(true);
+            identifyChannelsCheckBox.setDisable(true);
+            saveWhileStreamingCheckBox.setDisable(true);
 
             startStopMicButton.setText("Connecting...");
             startStopMicButton.setDisable(true);
-            outputTextArea.clear();
-            finalTextArea.clear();
             saveButton.setDisable(true);
+            TranscriptSegmentStore segmentStore = new TranscriptSegmentStore();
+            renderLoop.show(segmentStore);
+            StreamTranscriptionBehavior behavior = getResponseHandlerForWindow(segmentStore);
+            TranscriptSink sink = openStreamingSink();
+            if (sink != null) {
+                behavior = new TranscriptSinkBehavior(behavior, Collections.singletonList(sink));
+            }
 
             String languageCode = langChoiceBox.getSelectionModel().getSelectedItem();
             boolean showSpeakerLabel = showSpeakerCheckBox.isSelected();
+            client.setChannelIdentification(identifyChannelsCheckBox.isSelected());
 
             if (inputFile != null) {
                 inProgressStreamingRequest = client.startTranscription(
-                    getResponseHandlerForWindow(),
+                    behavior,
                     inputFile,
                     languageCode,
                     showSpeakerLabel);
@@ -132,7 +182,7 @@ public class WindowController {
                 int index = micChoiceBox.getSelectionModel().getSelectedIndex();
 
                 inProgressStreamingRequest = client.startTranscription(
-                    getResponseHandlerForWindow(), 
+                    behavior,
                     mics.get(index), 
                     languageCode,
                     showSpeakerLabel);
@@ -180,7 +230,10 @@ public class WindowController {
 
         showSpeakerCheckBox = new CheckBox("Show Speaker label");
         showSpeakerCheckBox.setSelected(true);
-        streamOptionsPane.getChildren().addAll(langChoiceBox, showSpeakerCheckBox);
+        identifyChannelsCheckBox = new CheckBox("Identify stereo channels");
+        saveWhileStreamingCheckBox = new CheckBox("Save while streaming");
+        streamOptionsPane.getChildren().addAll(langChoiceBox, showSpeakerCheckBox, identifyChannelsCheckBox,
+                saveWhileStreamingCheckBox);
         
         fileStreamButton = new Button();
         fileStreamButton.setText("Stream From Audio File"); //TODO: what file types do we support?
@@ -195,15 +248,29 @@ public class WindowController {
 
         Text inProgressText = new Text("In Progress Transcriptions:");
 
-        outputTextArea = new TextArea();
-        outputTextArea.setWrapText(true);
-        outputTextArea.setEditable(true);
+        //A row per segment, of which only the rows on screen are laid out, however long the session
+        outputListView = new ListView<>();
+
+        //Render stats drawn over the transcript, toggled with F3
+        Label renderStatsLabel = new Label();
+        renderStatsLabel.setMouseTransparent(true);
+        renderStatsLabel.setVisible(false);
+        renderStatsLabel.setStyle("-fx-background-color: rgba(0, 0, 0, 0.6); -fx-text-fill: white; -fx-padding: 2 4;");
+        StackPane outputPane = new StackPane(outputListView, renderStatsLabel);
+        StackPane.setAlignment(renderStatsLabel, Pos.TOP_RIGHT);
+        StackPane.setMargin(renderStatsLabel, new Insets(4, 20, 0, 0));
+        scene.addEventFilter(KeyEvent.KEY_PRESSED, event -> {
+            if (event.getCode() == KeyCode.F3) {
+                renderStatsLabel.setVisible(!renderStatsLabel.isVisible());
+            }
+        });
+        renderLoop = new TranscriptRenderLoop(outputListView, renderStatsLabel);
+        renderLoop.start();
  
         Text finalText = new Text("Final Transcription:");
 
-        finalTextArea = new TextArea();
-        finalTextArea.setWrapText(true);
-        finalTextArea.setEditable(true);
+        finalListView = new ListView<>();
+        finalListView.setCellFactory(TranscriptSegmentCell::new);
 
         saveButton = new Button();
         saveButton.setDisable(true);
@@ -214,12 +281,12 @@ public class WindowController {
             streamOptionsPane,
             fileStreamButton,
             inProgressText,
-            outputTextArea,
+            outputPane,
             finalText,
-            finalTextArea,
+            finalListView,
             saveButton);
-        VBox.setVgrow(outputTextArea, Priority.ALWAYS);
-        VBox.setVgrow(finalTextArea, Priority.ALWAYS);
+        VBox.setVgrow(outputPane, Priority.ALWAYS);
+        VBox.setVgrow(finalListView, Priority.ALWAYS);
     }
 
     private void stopTranscription() {
@@ -238,6 +305,8 @@ public class WindowController {
                 micChoiceBox.setDisable(false);
                 langChoiceBox.setDisable(false);
                 showSpeakerCheckBox.setDisable(false);
+                identifyChannelsCheckBox.setDisable(false);
+                saveWhileStreamingCheckBox.setDisable(false);
             }
 
         }
@@ -247,8 +316,11 @@ public class WindowController {
      * A StartStreamTranscriptionResponseHandler class listens to events from Transcribe streaming service that return
      * transcriptions, and decides what to do with them. This example displays the transcripts in the GUI window, and
      * combines the transcripts together into a final transcript at the end.
+     * @param segmentStore Store the segments are added to, which the render loop shows at most once per frame
      */
-    private StreamTranscriptionBehavior getResponseHandlerForWindow() {
+    private StreamTranscriptionBehavior getResponseHandlerForWindow(TranscriptSegmentStore segmentStore) {
+        PartialResultStabilizer stabilizer = new PartialResultStabilizer();
+
         return new StreamTranscriptionBehavior() {
 
             //This will handle errors being returned from AWS Transcribe in your response. Here we just print the exception.
@@ -270,37 +342,25 @@ public class WindowController {
 
             /*
             This handles each event being received from the Transcribe service. In this example we are displaying the
-            transcript as it is updated, and when we receive a "final" transcript, we append it to our finalTranscript
-            which is returned at the end of the microphone streaming.
+            transcript as it is updated, and when we receive a "final" transcript, we append it to our segment store,
+            whose final segments are shown at the end of the microphone streaming. An event can hold segments of
+            several channels, so every segment is used, and each channel's partial segment gets a row of its own.
+            Words are printed once, as soon as they are stable, rather than printing every partial result.
              */
             @Override
             public void onStream(TranscriptResultStream event) {
-                List<Result> results = ((TranscriptEvent) event).transcript().results();
-                if(results.size()>0) {
-                    Result firstResult = results.get(0);
-                    if (firstResult.alternatives().size() > 0 && !firstResult.alternatives().get(0).transcript().isEmpty()) {
-                        String transcript = firstResult.alternatives().get(0).transcript();
-                        // Alternative firstAlternative = firstResult.alternatives().get(0);
-                        // System.out.println(firstAlternative);
-                        // System.out.println("Speaker: " + firstAlternative.items().get(0).speaker());
-                        if(!transcript.isEmpty()) {
-                            System.out.print(transcript);
-                            String displayText;
-                            if (!firstResult.isPartial()) {
-                                finalTranscript += transcript + "\n";
-                                displayText = finalTranscript;
-                                System.out.println("(complete)");
-                            } else {
-                                displayText = finalTranscript + " " + transcript;
-                                System.out.println("(partial)");
-                            }
-                            Platform.runLater(() -> {
-                                outputTextArea.setText(displayText);
-                                outputTextArea.setScrollTop(Double.MAX_VALUE);
-                            });
-                        }
+                TranscriptUpdate update = TranscriptUpdate.from(event);
+                segmentStore.update(update);
+                for (TranscriptUpdate.Segment segment : update.getSegments()) {
+                    List<TranscriptUpdate.Word> stableWords = stabilizer.update(segment);
+                    if (!stableWords.isEmpty()) {
+                        System.out.println("(stable) " + label(segment) + stableWords.stream()
+                                .map(TranscriptUpdate.Word::getContent)
+                                .collect(Collectors.joining(" ")));
+                    }
+                    if (!segment.isPartial()) {
+                        System.out.println("(complete) " + label(segment) + segment.getText());
                     }
-
                 }
             }
 
@@ -327,27 +387,85 @@ public class WindowController {
             @Override
             public void onComplete() {
                 System.out.println("=== All records streamed successfully ===");
-                Platform.runLater(() -> {
-                    finalTextArea.setText(finalTranscript);
-                    saveButton.setDisable(false);
-                    saveButton.setOnAction(__ -> {
-                        FileChooser fileChooser = new FileChooser();
-                        fileChooser.setTitle("Save Transcript");
-                        File file = fileChooser.showSaveDialog(primaryStage);
-                        if (file != null) {
-                            try {
-                                FileWriter writer = new FileWriter(file);
-                                writer.write(finalTranscript);
-                                writer.close();
-                            } catch (IOException e) {
-                                System.out.println("Error saving transcript to file: " + e);
-                            }
-                        }
-                    });
-
-                });
+                List<TranscriptUpdate.Segment> segments = segmentStore.getFinals(0);
+                Platform.runLater(() -> showFinalSegments(segments));
             }
         };
     }
 
+    private static String label(TranscriptUpdate.Segment segment) {
+        return TranscriptSegmentCell.label(segment);
+    }
+
+    /**
+     * Show the final segments of a finished transcription and let them be saved
+     */
+    private void showFinalSegments(List<TranscriptUpdate.Segment> segments) {
+        finalSegments = segments;
+        finalListView.getItems().setAll(segments);
+        enableSave();
+    }
+
+    /**
+     * Ask for a file to save the transcript to as it streams, if the user chose to. Segments are written by the
+     * sink's own thread, so a crash loses at most the last second of the transcript.
+     * @return Sink to write final segments to, or null if the transcript is only saved at the end
+     */
+    private TranscriptSink openStreamingSink() {
+        if (!saveWhileStreamingCheckBox.isSelected()) {
+            return null;
+        }
+        FileChooser fileChooser = getTranscriptFileChooser("Save Transcript While Streaming");
+        File file = fileChooser.showSaveDialog(primaryStage);
+        if (file == null) {
+            return null;
+        }
+        try {
+            return new AsyncTranscriptFileSink(file.toPath(), getChosenFormat(fileChooser));
+        } catch (IOException e) {
+            System.out.println("Error opening transcript file: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * @return File chooser offering every TranscriptFileFormat, in the order they are declared
+     */
+    private static FileChooser getTranscriptFileChooser(String title) {
+        FileChooser fileChooser = new FileChooser();
+        fileChooser.setTitle(title);
+        for (TranscriptFileFormat format : TranscriptFileFormat.values()) {
+            fileChooser.getExtensionFilters().add(new FileChooser.ExtensionFilter(
+                    format + " (*." + format.getExtension() + ")", "*." + format.getExtension()));
+        }
+        return fileChooser;
+    }
+
+    private static TranscriptFileFormat getChosenFormat(FileChooser fileChooser) {
+        int index = fileChooser.getExtensionFilters().indexOf(fileChooser.getSelectedExtensionFilter());
+        return index < 0 ? TranscriptFileFormat.TEXT : TranscriptFileFormat.values()[index];
+    }
+
+    /**
+     * Enable the save button, to write the final transcript to a file chosen by the user
+     */
+    private void enableSave() {
+        saveButton.setDisable(false);
+        saveButton.setOnAction(__ -> {
+            FileChooser fileChooser = getTranscriptFileChooser("Save Transcript");
+            File file = fileChooser.showSaveDialog(primaryStage);
+            if (file != null) {
+                TranscriptFileFormat format = getChosenFormat(fileChooser);
+                try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+                    writer.write(format.getHeader());
+                    for (int i = 0; i < finalSegments.size(); i++) {
+                        writer.write(format.format(finalSegments.get(i), i + 1));
+                    }
+                } catch (IOException e) {
+                    System.out.println("Error saving transcript to file: " + e);
+                }
+            }
+        });
+    }
+
 }
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.amazonaws.transcribestreaming;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.reactivestreams.tck.PublisherVerification;
+import org.reactivestreams.tck.TestEnvironment;
+import org.testng.annotations.Test;
+import software.amazon.awssdk.services.transcribestreaming.model.AudioEvent;
+import software.amazon.awssdk.services.transcribestreaming.model.AudioStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Runs AudioStreamPublisher through the reactive-streams TCK. Among the inherited rules are 3.9, a request of zero
+ * or less is signalled as onError, and 3.17, demand adds up to at most Long.MAX_VALUE.
+ *
+ * Every element is a chunk of CHUNK_SIZE bytes read from a synthetic input stream. The publisher only ever emits
+ * AudioEvents, so it is verified as a publisher of AudioEvent.
+ */
+public class AudioStreamPublisherTest extends PublisherVerification<AudioEvent> {
+
+    private static final int CHUNK_SIZE = 16;
+    private static final long TIMEOUT_MILLIS = 1000;
+
+    public AudioStreamPublisherTest() {
+        super(new TestEnvironment(TIMEOUT_MILLIS));
+    }
+
+    @Override
+    public Publisher<AudioEvent> createPublisher(long elements) {
+        long length = elements >= Long.MAX_VALUE / CHUNK_SIZE ? Long.MAX_VALUE : elements * CHUNK_SIZE;
+        AudioStreamPublisher publisher = new AudioStreamPublisher(new SyntheticInputStream(length));
+        publisher.setChunkSizeInBytes(CHUNK_SIZE);
+        return asAudioEvents(publisher);
+    }
+
+    /**
+     * The publisher only fails when a read fails, which needs demand first, so it cannot be made to fail on subscribe
+     */
+    @Override
+    public Publisher<AudioEvent> createFailedPublisher() {
+        return null;
+    }
+
+    /**
+     * Cancel while a read is blocked, then subscribe again. The chunk being read when the first subscription was
+     * cancelled goes to the second subscriber, which receives the rest of the stream without a gap.
+     */
+    @Test
+    public void cancelDuringReadMustHandUnsentAudioToTheNextSubscription() throws Exception {
+        byte[] audio = new byte[CHUNK_SIZE * 64];
+        for (int i = 0; i < audio.length; i++) {
+            audio[i] = (byte) i;
+        }
+        BlockingInputStream input = new BlockingInputStream(audio);
+        AudioStreamPublisher publisher = new AudioStreamPublisher(input);
+        publisher.setChunkSizeInBytes(CHUNK_SIZE);
+        publisher.setPrefetch(4);
+
+        RecordingSubscriber first = new RecordingSubscriber(1);
+        publisher.subscribe(first);
+        assertTrue(input.readStarted.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS), "Read was not started");
+        first.subscription.cancel();
+        input.release.countDown();
+
+        RecordingSubscriber second = new RecordingSubscriber(Long.MAX_VALUE);
+        publisher.subscribe(second);
+        assertTrue(second.completed.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS), "Stream did not complete");
+        assertNull(second.error.get());
+        assertEquals(first.audio.size(), 0);
+        assertTrue(Arrays.equals(second.audio.toByteArray(), audio), "Audio was lost or reordered");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Publisher<AudioEvent> asAudioEvents(Publisher<AudioStream> publisher) {
+        return (Publisher<AudioEvent>) (Publisher<?>) publisher;
+    }
+
+    /**
+     * Stream of the given number of bytes, or an endless one for Long.MAX_VALUE
+     */
+    private static class SyntheticInputStream extends InputStream {
+        private long remaining;
+
+        SyntheticInputStream(long length) {
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) <= 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int count = (int) Math.min(len, remaining);
+            Arrays.fill(b, off, off + count, (byte) remaining);
+            if (remaining != Long.MAX_VALUE) {
+                remaining -= count;
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Stream whose first read blocks until it is released
+     */
+    private static class BlockingInputStream extends InputStream {
+        private final byte[] audio;
+        private final CountDownLatch readStarted = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private int position = 0;
+
+        BlockingInputStream(byte[] audio) {
+            this.audio = audio;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) <= 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            readStarted.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+            if (position == audio.length) {
+                return -1;
+            }
+            int count = Math.min(len, audio.length - position);
+            System.arraycopy(audio, position, b, off, count);
+            position += count;
+            return count;
+        }
+    }
+
+    private static class RecordingSubscriber implements Subscriber<AudioStream> {
+        private final long demand;
+        private final ByteArrayOutputStream audio = new ByteArrayOutputStream();
+        private final CountDownLatch completed = new CountDownLatch(1);
+        private final AtomicReference<Throwable> error = new AtomicReference<>();
+        private volatile Subscription subscription;
+
+        RecordingSubscriber(long demand) {
+            this.demand = demand;
+        }
+
+        @Override
+        public void onSubscribe(Subscription s) {
+            subscription = s;
+            s.request(demand);
+        }
+
+        @Override
+        public void onNext(AudioStream event) {
+            audio.writeBytes(((AudioEvent) event).audioChunk().asByteArray());
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            error.set(t);
+            completed.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            completed.countDown();
+        }
+    }
+}